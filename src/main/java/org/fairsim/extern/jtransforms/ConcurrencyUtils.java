@@ -27,9 +27,14 @@
 
 // Code modified for inclusion with fairSIM:
 // - changed package name
+// - tasks run on the thread pools of org.fairsim.utils.ComputeResources,
+//   number of threads follows its thread budget
+// - per-thread limit of the number of threads
 
 package org.fairsim.extern.jtransforms;
 
+import org.fairsim.utils.ComputeResources;
+
 import java.util.concurrent.*;
 
 /**
@@ -39,11 +44,6 @@ import java.util.concurrent.*;
  */
 public class ConcurrencyUtils {
 
-    /**
-     * Thread pool.
-     */
-    private static ExecutorService THREAD_POOL = Executors.newCachedThreadPool(new CustomThreadFactory(new CustomExceptionHandler()));
-
     private static long THREADS_BEGIN_N_1D_FFT_2THREADS = 8192;
 
     private static long THREADS_BEGIN_N_1D_FFT_4THREADS = 65536;
@@ -54,35 +54,19 @@ public class ConcurrencyUtils {
 
     private static long THREADS_BEGIN_N_3D = 65536;
 
-    private static int NTHREADS = prevPow2(getNumberOfProcessors());
-
-    private ConcurrencyUtils() {
-
-    }
-
-    private static class CustomExceptionHandler implements Thread.UncaughtExceptionHandler {
+    // 0: follow the thread budget
+    private static int NTHREADS = 0;
 
-        public void uncaughtException(Thread t, Throwable e) {
-            e.printStackTrace();
+    // limit for transforms started by the current thread, 0: none
+    private static final ThreadLocal<int[]> THREAD_LIMIT = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
         }
+    };
 
-    }
-
-    private static class CustomThreadFactory implements ThreadFactory {
-
-        private static final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
-
-        private final Thread.UncaughtExceptionHandler handler;
-
-        CustomThreadFactory(Thread.UncaughtExceptionHandler handler) {
-            this.handler = handler;
-        }
+    private ConcurrencyUtils() {
 
-        public Thread newThread(Runnable r) {
-            Thread t = defaultFactory.newThread(r);
-            t.setUncaughtExceptionHandler(handler);
-            return t;
-        }
     }
 
     /**
@@ -95,22 +79,42 @@ public class ConcurrencyUtils {
     }
 
     /**
-     * Returns the current number of threads.
+     * Returns the current number of threads. Unless set by
+     * {@link #setNumberOfThreads}, this is the closest power-of-two number
+     * less than or equal to the threads available to the calling thread.
      *
      * @return the current number of threads.
      */
     public static int getNumberOfThreads() {
-        return NTHREADS;
+        int n = NTHREADS;
+        n = (n > 0) ? (n) : (prevPow2(ComputeResources.currentParallelism()));
+        int limit = THREAD_LIMIT.get()[0];
+        return (limit > 0 && limit < n) ? (prevPow2(limit)) : (n);
+    }
+
+    /**
+     * Limits the number of threads used by transforms started from the
+     * calling thread. Used to run several transforms side by side.
+     *
+     * @param n maximal number of threads, 0 for no limit
+     * @return the previous limit
+     */
+    public static int setThreadLimit(int n) {
+        int[] l = THREAD_LIMIT.get();
+        int prev = l[0];
+        l[0] = n;
+        return prev;
     }
 
     /**
      * Sets the number of threads. If n is not a power-of-two number, then the
      * number of threads is set to the closest power-of-two number less than n.
+     * If n is 0, the number of threads follows the thread budget again.
      *
      * @param n number of threads
      */
     public static void setNumberOfThreads(int n) {
-        NTHREADS = prevPow2(n);
+        NTHREADS = (n == 0) ? (0) : (prevPow2(n));
     }
 
     /**
@@ -351,37 +355,20 @@ public class ConcurrencyUtils {
 
     /**
      * Submits a Runnable task for execution and returns a Future representing
-     * that task.
+     * that task. The task runs on the pool of the calling thread.
      *
      * @param task a Runnable task for execution
      * @return a Future representing the task
      */
     public static Future<?> submit(Runnable task) {
-        if (THREAD_POOL.isShutdown() || THREAD_POOL.isTerminated()) {
-            THREAD_POOL = Executors.newCachedThreadPool(new CustomThreadFactory(new CustomExceptionHandler()));
-        }
-        return THREAD_POOL.submit(task);
+        return ComputeResources.submit(task);
     }
 
     /**
-     * Shutdowns all submitted tasks.
+     * Shutdowns all submitted tasks. Nothing to do here, the threads
+     * are owned by ComputeResources.
      */
     public static void shutdownAndAwaitTermination() {
-        THREAD_POOL.shutdown(); // Disable new tasks from being submitted
-        try {
-            // Wait a while for existing tasks to terminate
-            if (!THREAD_POOL.awaitTermination(60, TimeUnit.SECONDS)) {
-                THREAD_POOL.shutdownNow(); // Cancel currently executing tasks
-                // Wait a while for tasks to respond to being cancelled
-                if (!THREAD_POOL.awaitTermination(60, TimeUnit.SECONDS))
-                    System.err.println("Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            // (Re-)Cancel if current thread also interrupted
-            THREAD_POOL.shutdownNow();
-            // Preserve interrupt status
-            Thread.currentThread().interrupt();
-        }
     }
 
     /**
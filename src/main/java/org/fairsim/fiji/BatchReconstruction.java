@@ -0,0 +1,238 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.fiji;
+
+import ij.IJ;
+import ij.ImagePlus;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.sim_algorithm.BatchReconstructor;
+import org.fairsim.sim_algorithm.OtfProvider;
+import org.fairsim.sim_algorithm.ParameterTracker;
+import org.fairsim.sim_algorithm.SimParam;
+import org.fairsim.utils.Args;
+import org.fairsim.utils.ComputeResources;
+import org.fairsim.utils.Conf;
+import org.fairsim.utils.ImageSelector;
+import org.fairsim.utils.TiffStackWriter;
+import org.fairsim.utils.Tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line batch reconstruction, usable without a display.
+ * Reads a raw stack and a saved parameter file (SIM parameters
+ * and OTF), runs {@link BatchReconstructor} and writes the results
+ * as (hyper-)stacks to TIFF files. TIFF input is opened as virtual stack,
+ * so raw images are read from disk when needed, and every finished frame
+ * is written to its output file right away: memory use does not
+ * depend on the length of the data set.
+ */
+public class BatchReconstruction {
+
+    /**
+     * Make a single opened ImagePlus available as ImageSelector
+     */
+    static class StackSelector implements ImageSelector {
+
+        final ImagePlus ip;
+        final ImageInfo info;
+
+        StackSelector(ImagePlus ip, double micronsPerPxl) {
+            this.ip = ip;
+            this.info = new ImageInfo(ip.getWidth(), ip.getHeight(),
+                    ip.getStackSize(), micronsPerPxl, ip.getTitle(), 0);
+        }
+
+        @Override
+        public int getOpenImageCount() {
+            return 1;
+        }
+
+        @Override
+        public ImageInfo[] getOpenImages() {
+            return new ImageInfo[]{info};
+        }
+
+        @Override
+        public Vec2d.Real getImage(ImageInfo which, int pos) {
+            return ImageVector.copy(ip.getStack().getProcessor(pos + 1));
+        }
+
+        @Override
+        public Vec2d.Real[] getImages(ImageInfo which) {
+            Vec2d.Real[] ret = new Vec2d.Real[which.depth];
+            for (int i = 0; i < which.depth; i++)
+                ret[i] = getImage(which, i);
+            return ret;
+        }
+    }
+
+    /**
+     * Writes the frames of one output to a TIFF (hyper-)stack as they arrive
+     */
+    static class FrameWriter {
+        final String fname;
+        final int t0, z0;
+        final TiffStackWriter tw;
+
+        FrameWriter(String fname, int size, int t0, int nT, int z0, int nZ, double micronsPerPxl)
+                throws IOException {
+            this.fname = fname;
+            this.t0 = t0;
+            this.z0 = z0;
+            this.tw = new TiffStackWriter(fname, size, size, nZ, nT, micronsPerPxl);
+        }
+
+        void put(int t, int z, Vec2d.Real img) {
+            try {
+                tw.write(t - t0, z - z0, img);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write " + fname + ": " + e.getMessage(), e);
+            }
+        }
+
+        void close() throws IOException {
+            tw.close();
+            Tool.trace("Written: " + fname);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        Args arg = new Args();
+        arg.addInt("nrZ", 1, "Number of z-slices per time point");
+        arg.addInt("tStart", 1, "First time point to reconstruct");
+        arg.addInt("tStop", -1, "Last time point to reconstruct (-1: all)");
+        arg.addInt("workers", 1, "Number of frames reconstructed in parallel");
+        arg.addInt("threads", 0, "Total number of compute threads (0: default)");
+        arg.addInt("pipeline", 0, "Run read, estimate, reconstruct and output as pipeline (1: yes)");
+        arg.addInt("readers", 1, "Pipeline: number of read + FFT workers");
+        arg.addInt("estimators", 1, "Pipeline: number of parameter estimation workers");
+        arg.addInt("reconstructors", 1, "Pipeline: number of reconstruction workers");
+        arg.addInt("queue", 2, "Pipeline: length of the queues between stages");
+        arg.addInt("estimate", 0, "Refit the SIM parameters for every frame (1: yes)");
+        arg.addInt("fitBand", 2, "Estimation: band to fit against band 0");
+        arg.addDbl("fitExclude", 0.6, "Estimation: portion of OTF support to exclude");
+        arg.addDbl("track", 0, "Estimation: track k-vectors between frames, search +-pxl (0: off)");
+        arg.addInt("fastFit", 0, "Estimation: peak fit by direct DFT (1), plus gradient polishing (2)");
+        arg.addInt("reducedFit", -1, "Estimation: at reduced resolution (1: yes, 0: no, -1: as in param.xml)");
+        arg.addDbl("background", -1, "Background to subtract (-1: off)");
+        arg.addInt("fadeBorder", 10, "Fade raw image borders (pxl)");
+        arg.addInt("widefield", 0, "Also output widefield (1: yes)");
+        arg.addInt("filteredWidefield", 0, "Also output filtered widefield (1: yes)");
+
+        List<String> files = new ArrayList<String>();
+        for (String a : args)
+            if (!a.contains("="))
+                files.add(a);
+
+        if (arg.parseArgs(args) < 0 || files.size() != 3) {
+            System.out.println("Use: BatchReconstruction raw.tif param.xml output-prefix [option=value ...]");
+            arg.printParams();
+            System.exit(-1);
+        }
+
+        if (arg.getInt("threads") > 0)
+            ComputeResources.setThreadBudget(arg.getInt("threads"));
+
+        // load parameters and OTF
+        Conf cfg = Conf.loadFile(files.get(1));
+        SimParam sp = SimParam.loadConfig(cfg.r());
+        if (!cfg.r().contains("otf2d")) {
+            System.err.println("No OTF found in " + files.get(1));
+            System.exit(-1);
+        }
+        sp.otf(OtfProvider.loadFromConfig(cfg));
+        sp.setFastPeakFit(arg.getInt("fastFit") > 0, arg.getInt("fastFit") > 1);
+        if (arg.getInt("reducedFit") >= 0)
+            sp.setReducedEstimation(arg.getInt("reducedFit") > 0);
+        final double microns = 1. / (sp.pxlSizeCyclesMicron() * sp.vectorWidth());
+
+        // open the raw data, as virtual stack if possible (TIFF)
+        ImagePlus raw = IJ.openVirtual(files.get(0));
+        if (raw == null) {
+            Tool.trace("Could not open as virtual stack, loading " + files.get(0));
+            raw = IJ.openImage(files.get(0));
+        }
+        if (raw == null) {
+            System.err.println("Could not open " + files.get(0));
+            System.exit(-1);
+        }
+
+        StackSelector sel = new StackSelector(raw, microns);
+        BatchReconstructor br = new BatchReconstructor(sp, sel, sel.info, arg.getInt("nrZ"));
+
+        final int t0 = arg.getInt("tStart") - 1;
+        final int t1 = (arg.getInt("tStop") < 0) ? (br.nrTimePoints()) : (arg.getInt("tStop"));
+        final boolean wf = arg.getInt("widefield") > 0;
+        final boolean fwf = arg.getInt("filteredWidefield") > 0;
+        final int nZ = br.nrZSlices(), size = br.outputSize();
+
+        br.setTimeRange(t0, t1)
+                .setWorkers(arg.getInt("workers"))
+                .setBackground(arg.getDbl("background"))
+                .setFadeBorder(arg.getInt("fadeBorder"))
+                .setWidefield(wf, fwf)
+                .setEstimation(arg.getInt("estimate") > 0, arg.getInt("fitBand"), arg.getDbl("fitExclude"))
+                .setTracking((arg.getDbl("track") > 0) ? (new ParameterTracker(arg.getDbl("track"), 0.5)) : (null))
+                .setStageWorkers(arg.getInt("readers"), arg.getInt("estimators"),
+                        arg.getInt("reconstructors"), 1)
+                .setQueueLength(arg.getInt("queue"));
+
+        arg.printParams();
+        Tool.trace(sp.prettyPrint(false));
+
+        // run, writing the results as they come in
+        String prefix = files.get(2);
+        final FrameWriter simOut = new FrameWriter(prefix + "-sim.tif",
+                size, t0, t1 - t0, 0, nZ, microns / 2);
+        final FrameWriter wfOut = (wf) ? (new FrameWriter(prefix + "-widefield.tif",
+                size, t0, t1 - t0, 0, nZ, microns / 2)) : (null);
+        final FrameWriter fwfOut = (fwf) ? (new FrameWriter(prefix + "-filtered-widefield.tif",
+                size, t0, t1 - t0, 0, nZ, microns / 2)) : (null);
+
+        BatchReconstructor.FrameSink sink = new BatchReconstructor.FrameSink() {
+            public void put(int t, int z, Vec2d.Real sim, Vec2d.Real wfImg, Vec2d.Real fwfImg) {
+                simOut.put(t, z, sim);
+                if (wfOut != null) wfOut.put(t, z, wfImg);
+                if (fwfOut != null) fwfOut.put(t, z, fwfImg);
+            }
+        };
+
+        try {
+            if (arg.getInt("pipeline") > 0)
+                br.runPipelined(sink);
+            else
+                br.run(sink);
+        } finally {
+            simOut.close();
+            if (wfOut != null)
+                wfOut.close();
+            if (fwfOut != null)
+                fwfOut.close();
+        }
+
+        Tool.trace(ComputeResources.printState());
+        Tool.shutdown();
+    }
+
+}
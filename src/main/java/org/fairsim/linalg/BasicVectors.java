@@ -347,35 +347,9 @@ class BasicVector implements VectorFactory {
 
         @Override
         public void fourierShift(final double kx, final double ky) {
-
-            final boolean fast = true; // TODO: make this user-settable??
-
-            final float[] val = vectorData();
             final int N = Vec2d.checkSquare(this);
-
-            // run outer loop in parallel
-            new SimpleMT.PFor(0, N) {
-                public void at(int y) {
-                    for (int x = 0; x < N; x++) {
-                        float phaVal = (float) (2 * Math.PI * (kx * x + ky * y) / N);
-                        float si, co;
-                        if (fast) {
-                            co = (float) MTool.fcos(phaVal);
-                            si = (float) MTool.fsin(phaVal);
-                        } else {
-                            co = (float) Math.cos(phaVal);
-                            si = (float) Math.sin(phaVal);
-                        }
-                        // get
-                        float re = val[(y * N + x) * 2 + 0];
-                        float im = val[(y * N + x) * 2 + 1];
-                        // set
-                        val[(y * N + x) * 2 + 0] = Cplx.multReal(re, im, co, si);
-                        val[(y * N + x) * 2 + 1] = Cplx.multImag(re, im, co, si);
-                    }
-                }
-            };
-
+            PhaseRamp.timesShift(vectorData(), N, kx, ky);
+            syncBuffer();
         }
 
         @Override
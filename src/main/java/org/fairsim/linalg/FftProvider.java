@@ -26,11 +26,56 @@ import org.fairsim.utils.Tool;
 public abstract class FftProvider {
 
 
+    /**
+     * An FFT plan for one size. {@link Transforms} hands each instance to
+     * one transform at a time, so implementations do not have to be
+     * thread-safe (FloatFFT_2D, for one, changes its own fields while
+     * transforming).
+     */
     public interface Instance {
         /**
          * run the fft
          */
         void fftTransform(float[] v, boolean inverse);
+
+        /**
+         * One-dimensional fft of the 'n' complex values starting at
+         * v[off] (scaled by 1/n if inverse). Only for 1D instances, the
+         * default implementation runs the fft on a copy.
+         */
+        default void fftTransform(float[] v, int off, int n, boolean inverse) {
+            float[] tmp = java.util.Arrays.copyOfRange(v, off, off + 2 * n);
+            fftTransform(tmp, inverse);
+            System.arraycopy(tmp, 0, v, off, 2 * n);
+        }
+
+        /**
+         * Forward fft of real data. On input, the first half of 'v' holds
+         * the real values, on output 'v' holds the full complex spectrum.
+         * The default implementation spreads the data and runs the complex fft.
+         */
+        default void realForwardFull(float[] v) {
+            for (int i = v.length / 2 - 1; i >= 0; i--) {
+                v[2 * i + 0] = v[i];
+                v[2 * i + 1] = 0;
+            }
+            fftTransform(v, false);
+        }
+
+        /**
+         * Inverse fft, keeping only the real part of the result.
+         * The default implementation runs the complex fft on a copy, allocated
+         * per call; implementations should override this with a reused buffer.
+         *
+         * @param in  Full complex spectrum (not changed)
+         * @param out Real result, half the length of 'in'
+         */
+        default void realInverse(float[] in, float[] out) {
+            float[] tmp = in.clone();
+            fftTransform(tmp, true);
+            for (int i = 0; i < out.length; i++)
+                out[i] = tmp[2 * i];
+        }
     }
 
     private static FftProvider defaultFftFactory = null;
@@ -43,6 +88,17 @@ public abstract class FftProvider {
 
     public abstract String getImplementationName();
 
+    /**
+     * Limit the number of threads used by transforms started from the
+     * calling thread (0: no limit). Implementations that can not limit
+     * their threads per caller ignore this.
+     *
+     * @return The previous limit
+     */
+    protected int setThreadLimit(int n) {
+        return 0;
+    }
+
 
     // this code pokes classes to add them to the factory system
     static {
@@ -86,6 +142,13 @@ public abstract class FftProvider {
     }
 
 
+    final static int limitThreads(int n) {
+        if (defaultFftFactory == null) {
+            throw new RuntimeException("No FFT implementation available!");
+        }
+        return defaultFftFactory.setThreadLimit(n);
+    }
+
     final static Instance get1Dfft(int n) {
         if (defaultFftFactory == null) {
             throw new RuntimeException("No FFT implementation available!");
@@ -108,6 +171,16 @@ public abstract class FftProvider {
     }
 
 
+    // max. abs. difference, relative to max. abs. value of the reference
+    private static double relDiff(float[] a, float[] ref) {
+        double d = 0, m = 0;
+        for (int i = 0; i < a.length; i++) {
+            d = Math.max(d, Math.abs(a[i] - ref[i]));
+            m = Math.max(m, Math.abs(ref[i]));
+        }
+        return d / m;
+    }
+
     public static void main(String[] args) {
 
 	/*
@@ -126,6 +199,206 @@ public abstract class FftProvider {
         vec3d.fft3d(true);
         vec3d.fft3d(false);
 
+        // real-to-complex and complex-to-real, vs. complex transforms
+        for (int size : new int[]{512, 480}) {
+            java.util.Random rnd = new java.util.Random(42);
+            Vec2d.Real img = Vec2d.createReal(size, size);
+            Vec2d.Cplx spec = Vec2d.createCplx(size, size);
+            float[] dat = img.vectorData();
+            for (int i = 0; i < dat.length; i++)
+                dat[i] = 100 + (float) rnd.nextGaussian();
+            img.syncBuffer();
+
+            Vec2d.Cplx ref = Vec2d.createCplx(size, size);
+            ref.copy(img);
+            ref.fft2d(false);
+            Transforms.fft2dReal(img, spec);
+            Tool.trace(String.format("%d x %d, R2C vs. complex fft: rel. diff %5.3e",
+                    size, size, relDiff(spec.vectorData(), ref.vectorData())));
+
+            // some non-hermitian spectrum, the imaginary part of its inverse is dropped
+            float[] sd = spec.vectorData();
+            for (int i = 0; i < sd.length; i++)
+                sd[i] += (float) rnd.nextGaussian() * 1000;
+            spec.syncBuffer();
+            ref.copy(spec);
+            ref.fft2d(true);
+            Vec2d.Real refImg = Vec2d.createReal(size, size);
+            refImg.copy(ref);
+            Transforms.ifft2dReal(spec, img);
+            Tool.trace(String.format("%d x %d, C2R vs. complex fft: rel. diff %5.3e",
+                    size, size, relDiff(img.vectorData(), refImg.vectorData())));
+
+            // allocation per C2R call, after the first one
+            java.lang.management.ThreadMXBean tb = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (tb instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean stb = (com.sun.management.ThreadMXBean) tb;
+                long a0 = stb.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int i = 0; i < 10; i++)
+                    Transforms.ifft2dReal(spec, img);
+                long a1 = stb.getThreadAllocatedBytes(Thread.currentThread().getId());
+                Tool.trace(String.format("%d x %d, C2R allocates %d kB per call (spectrum: %d kB)",
+                        size, size, (a1 - a0) / 10 / 1024, sd.length * 4 / 1024));
+            }
+
+            // timings
+            Tool.Timer tc = Tool.getTimer(), tr = Tool.getTimer();
+            for (int r = 0; r < 3; r++) {
+                tc.start();
+                for (int i = 0; i < 10; i++) {
+                    ref.copy(img);
+                    ref.fft2d(false);
+                    ref.fft2d(true);
+                    refImg.copy(ref);
+                }
+                tc.stop();
+                tr.start();
+                for (int i = 0; i < 10; i++) {
+                    Transforms.fft2dReal(img, spec);
+                    Transforms.ifft2dReal(spec, refImg);
+                }
+                tr.stop();
+                Tool.trace(String.format("%d x %d, 10x forward+inverse: complex %s, R2C/C2R %s",
+                        size, size, tc, tr));
+            }
+        }
+
+        // concurrent use of one size, from threads outside the pools: every
+        // transform runs on a plan of its own
+        final int nThreads = 4, size = 512;
+        {
+            final Vec2d.Cplx[] res = new Vec2d.Cplx[nThreads];
+            final java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+            Thread[] th = new Thread[nThreads];
+            for (int t = 0; t < nThreads; t++) {
+                final int tn = t;
+                th[t] = new Thread() {
+                    public void run() {
+                        Vec2d.Cplx v = Vec2d.createCplx(size, size);
+                        v.set(3, 5, new Cplx.Float(1, 0));
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < 10; i++) {
+                            v.fft2d(false);
+                            v.fft2d(true);
+                        }
+                        res[tn] = v;
+                    }
+                };
+                th[t].start();
+            }
+            Tool.Timer t1 = Tool.getTimer();
+            t1.start();
+            go.countDown();
+            for (Thread t : th) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            t1.stop();
+            double diff = 0;
+            for (int t = 1; t < nThreads; t++)
+                diff = Math.max(diff, relDiff(res[t].vectorData(), res[0].vectorData()));
+            Tool.trace(String.format("%d threads, same size: %s, %d plan(s), rel. diff %5.3e %s",
+                    nThreads, t1, Transforms.getPlanCount(size, size), diff, (diff == 0) ? ("OK") : ("FAIL")));
+        }
+
+        // batch of 15 images: one by one (row-parallel) vs. batched
+        final Vec2d.Cplx[] batch = Vec2d.createArrayCplx(15, size, size);
+        final Vec2d.Cplx[] single = Vec2d.createArrayCplx(15, size, size);
+        java.util.Random rnd = new java.util.Random(1);
+        for (int i = 0; i < batch.length; i++) {
+            float[] dat = batch[i].vectorData();
+            for (int j = 0; j < dat.length; j++)
+                dat[j] = (float) rnd.nextGaussian();
+            batch[i].syncBuffer();
+            single[i].copy(batch[i]);
+        }
+        Transforms.prewarm2d(new int[]{size, size});
+        for (int r = 0; r < 3; r++) {
+            Tool.Timer ts = Tool.getTimer(), tb = Tool.getTimer();
+            ts.start();
+            for (Vec2d.Cplx v : single)
+                v.fft2d(r % 2 == 1);
+            ts.stop();
+            tb.start();
+            Transforms.fft2dBatch(batch, r % 2 == 1);
+            tb.stop();
+            double diff = 0;
+            for (int i = 0; i < batch.length; i++)
+                diff = Math.max(diff, relDiff(batch[i].vectorData(), single[i].vectorData()));
+            Tool.trace(String.format("15x %d x %d: one by one %s, batch %s, rel. diff %5.3e",
+                    size, size, ts, tb, diff));
+        }
+
+        // same-size transforms from inside a parallel loop: every loop
+        // iteration gets its own instance, so no transform runs into one
+        // of the same size it waits for
+        final int prevPar = org.fairsim.utils.SimpleMT.getParallelism();
+        org.fairsim.utils.SimpleMT.setParallelism(Math.max(4, prevPar));
+        final Vec2d.Cplx[] nested = Vec2d.createArrayCplx(16, 256, 256);
+        final Vec2d.Cplx[] serial = Vec2d.createArrayCplx(16, 256, 256);
+        for (int i = 0; i < nested.length; i++) {
+            float[] dat = nested[i].vectorData();
+            for (int j = 0; j < dat.length; j++)
+                dat[j] = (float) rnd.nextGaussian();
+            nested[i].syncBuffer();
+            serial[i].copy(nested[i]);
+            for (int r = 0; r < 5; r++) {
+                serial[i].fft2d(false);
+                serial[i].fft2d(true);
+            }
+        }
+        Tool.Timer tn = Tool.getTimer();
+        tn.start();
+        new org.fairsim.utils.SimpleMT.PFor(0, nested.length) {
+            public void at(int i) {
+                for (int r = 0; r < 5; r++) {
+                    nested[i].fft2d(false);
+                    nested[i].fft2d(true);
+                }
+            }
+        };
+        tn.stop();
+        org.fairsim.utils.SimpleMT.setParallelism(prevPar);
+        double nestedDiff = 0;
+        for (int i = 0; i < nested.length; i++)
+            nestedDiff = Math.max(nestedDiff, relDiff(nested[i].vectorData(), serial[i].vectorData()));
+        Tool.trace(String.format("16x 256 x 256 in a parallel loop: %s, rel. diff to serial %5.3e %s",
+                tn, nestedDiff, (nestedDiff == 0) ? ("OK") : ("FAIL")));
+
+        // fused paste + inverse FFT vs. paste, then full inverse FFT
+        for (int[] c : new int[][]{{256, 0, 0}, {256, 7, -12}, {240, 0, 0}, {240, -3, 5}}) {
+            final int n = c[0];
+            Vec2d.Cplx small = Vec2d.createCplx(n, n);
+            float[] dat = small.vectorData();
+            for (int j = 0; j < dat.length; j++)
+                dat[j] = (float) rnd.nextGaussian();
+            small.syncBuffer();
+            Vec2d.Cplx ref = Vec2d.createCplx(2 * n, 2 * n), fused = Vec2d.createCplx(2 * n, 2 * n);
+            Tool.Timer tr = Tool.getTimer(), tf = Tool.getTimer();
+            for (int r = 0; r < 40; r++) {
+                if (r == 10) {
+                    tr = Tool.getTimer();
+                    tf = Tool.getTimer();
+                }
+                tr.start();
+                ref.pasteFreq(small, c[1], c[2]);
+                ref.fft2d(true);
+                tr.hold();
+                tf.start();
+                Transforms.pasteFreqIfft2d(small, fused, c[1], c[2]);
+                tf.hold();
+            }
+            Tool.trace(String.format("paste %d -> %d (offset %d,%d) + ifft, 30x: separate %s, fused %s, rel. diff %5.3e",
+                    n, 2 * n, c[1], c[2], tr, tf, relDiff(fused.vectorData(), ref.vectorData())));
+        }
+
         Tool.trace("done");
         System.exit(0);
     }
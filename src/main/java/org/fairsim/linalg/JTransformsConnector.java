@@ -94,6 +94,18 @@ class JTransformsConnector extends FftProvider {
                     fft2ds.complexInverse(v, true);
                 }
             }
+
+            // scratch buffer of the complex inverse
+            private float[] scratch = null;
+
+            public void realInverse(float[] in, float[] out) {
+                if (scratch == null)
+                    scratch = new float[2 * x * y];
+                System.arraycopy(in, 0, scratch, 0, scratch.length);
+                fft2ds.complexInverse(scratch, true);
+                for (int i = 0; i < out.length; i++)
+                    out[i] = scratch[2 * i];
+            }
         };
 
         return ret;
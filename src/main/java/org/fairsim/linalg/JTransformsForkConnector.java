@@ -18,6 +18,7 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 
 package org.fairsim.linalg;
 
+import org.fairsim.extern.jtransforms.ConcurrencyUtils;
 import org.fairsim.extern.jtransforms.FloatFFT_1D;
 import org.fairsim.extern.jtransforms.FloatFFT_2D;
 import org.fairsim.extern.jtransforms.FloatFFT_3D;
@@ -41,6 +42,11 @@ class JTransformsForkConnector extends FftProvider {
         FftProvider.setFftFactory(this);
     }
 
+    @Override
+    protected int setThreadLimit(int n) {
+        return ConcurrencyUtils.setThreadLimit(n);
+    }
+
     /**
      * return a 1D instance of JTransforms
      */
@@ -57,6 +63,16 @@ class JTransformsForkConnector extends FftProvider {
                     fft1ds.complexInverse(v, true);
                 }
             }
+
+            public void fftTransform(float[] v, int off, int len, boolean inverse) {
+                if (len != n)
+                    throw new IllegalArgumentException("FFT size mismatch: " + len + " vs. " + n);
+                if (!inverse) {
+                    fft1ds.complexForward(v, off);
+                } else {
+                    fft1ds.complexInverse(v, off, true);
+                }
+            }
         };
 
         return ret;
@@ -71,6 +87,7 @@ class JTransformsForkConnector extends FftProvider {
         FftProvider.Instance ret = new FftProvider.Instance() {
 
             final FloatFFT_2D fft2ds = new FloatFFT_2D(y, x);
+            final boolean packedInverse = Transforms.powerOf2(x) && Transforms.powerOf2(y);
 
             public void fftTransform(float[] v, boolean inverse) {
                 if (!inverse) {
@@ -79,6 +96,28 @@ class JTransformsForkConnector extends FftProvider {
                     fft2ds.complexInverse(v, true);
                 }
             }
+
+            public void realForwardFull(float[] v) {
+                fft2ds.realForwardFull(v);
+            }
+
+            // scratch buffer of the complex inverse for other sizes
+            private float[] scratch = null;
+
+            public void realInverse(float[] in, float[] out) {
+                // the packed real inverse only exists for 2^n sizes
+                if (!packedInverse) {
+                    if (scratch == null)
+                        scratch = new float[2 * x * y];
+                    System.arraycopy(in, 0, scratch, 0, scratch.length);
+                    fft2ds.complexInverse(scratch, true);
+                    for (int i = 0; i < out.length; i++)
+                        out[i] = scratch[2 * i];
+                    return;
+                }
+                packHermitian(in, out, x, y);
+                fft2ds.realInverse(out, true);
+            }
         };
 
         return ret;
@@ -105,6 +144,41 @@ class JTransformsForkConnector extends FftProvider {
         return ret;
     }
 
+    /**
+     * Packs the hermitian part (X(k) + conj X(-k))/2 of the w x h spectrum 'in'
+     * into the layout expected by FloatFFT_2D.realInverse. Its inverse is
+     * the real part of the inverse of 'in'.
+     */
+    static void packHermitian(final float[] in, final float[] a, final int w, final int h) {
+
+        // k2 = 1 .. w/2-1, all rows
+        for (int k1 = 0; k1 < h; k1++) {
+            final int m1 = (h - k1) % h;
+            for (int k2 = 1; k2 < w / 2; k2++) {
+                final int p = 2 * (k1 * w + k2), n = 2 * (m1 * w + (w - k2));
+                a[k1 * w + 2 * k2 + 0] = .5f * (in[p + 0] + in[n + 0]);
+                a[k1 * w + 2 * k2 + 1] = .5f * (in[p + 1] - in[n + 1]);
+            }
+        }
+
+        // columns 0 and w/2, k1 = 1 .. h/2-1
+        for (int k1 = 1; k1 < h / 2; k1++) {
+            final int m1 = h - k1;
+            final int p0 = 2 * (k1 * w), n0 = 2 * (m1 * w);
+            final int pc = 2 * (k1 * w + w / 2), nc = 2 * (m1 * w + w / 2);
+            a[k1 * w + 0] = .5f * (in[p0 + 0] + in[n0 + 0]);
+            a[k1 * w + 1] = .5f * (in[p0 + 1] - in[n0 + 1]);
+            a[m1 * w + 1] = .5f * (in[pc + 0] + in[nc + 0]);
+            a[m1 * w + 0] = -.5f * (in[pc + 1] - in[nc + 1]);
+        }
+
+        // purely real elements
+        a[0] = in[0];
+        a[1] = in[2 * (w / 2)];
+        a[(h / 2) * w + 0] = in[2 * ((h / 2) * w)];
+        a[(h / 2) * w + 1] = in[2 * ((h / 2) * w + w / 2)];
+    }
+
     public String getImplementationName() {
         return "fairSIM forked JTransforms connector";
     }
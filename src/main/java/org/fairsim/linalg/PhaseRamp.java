@@ -0,0 +1,412 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.linalg;
+
+import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Separable Fourier shift. The phase ramp exp(2 pi i (kx*x+ky*y)/N)
+ * is the outer product of two 1D ramps, so only 2N complex exponentials
+ * have to be evaluated per shift instead of N*N. The 1D ramps are
+ * computed in double precision and cached per (N,k).
+ */
+public final class PhaseRamp {
+
+    private PhaseRamp() {
+    }
+
+    /**
+     * Maximum number of cached 1D ramps
+     */
+    static final int MAX_CACHED = 256;
+
+    private static final Map<Key, double[]> cache =
+            new LinkedHashMap<Key, double[]>(64, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, double[]> e) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    /**
+     * key to store ramps
+     */
+    private static class Key {
+        final int n;
+        final long k;
+
+        Key(int n, double k) {
+            this.n = n;
+            this.k = Double.doubleToLongBits(k);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key c = (Key) o;
+            return (c.n == n && c.k == k);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * n + (int) (k ^ (k >>> 32));
+        }
+    }
+
+    /**
+     * The 1D ramp exp(2 pi i k n/N), n = 0..N-1, as interleaved
+     * re/im values. Returned arrays are shared, do not modify.
+     */
+    static double[] ramp(final int n, final double k) {
+        final Key key = new Key(n, k);
+        synchronized (cache) {
+            double[] r = cache.get(key);
+            if (r != null)
+                return r;
+        }
+
+        double[] r = rampUncached(n, k);
+
+        synchronized (cache) {
+            cache.put(key, r);
+        }
+        return r;
+    }
+
+    /**
+     * Multiply the N x N complex data with the Fourier shift phases
+     * exp(2 pi i (kx*x+ky*y)/N).
+     *
+     * @param val Interleaved complex data, N x N
+     * @param N   Width (and height) of the data
+     * @param kx  x-coordinate of shift
+     * @param ky  y-coordinate of shift
+     */
+    static public void timesShift(final float[] val, final int N,
+                                  final double kx, final double ky) {
+        timesShift(val, N, kx, ky, true);
+    }
+
+    /**
+     * Multiply the N x N complex data with the Fourier shift phases, see
+     * {@link #timesShift(float[], int, double, double)}. With 'cached' false,
+     * the ramps are computed but not stored, so one-off shifts (e.g. the
+     * points of a peak search grid) do not evict the ramps of the reconstruction.
+     */
+    static public void timesShift(final float[] val, final int N,
+                                  final double kx, final double ky, final boolean cached) {
+
+        final double[] rx = (cached) ? (ramp(N, kx)) : (rampUncached(N, kx));
+        final double[] ry = (cached) ? (ramp(N, ky)) : (rampUncached(N, ky));
+
+        // run outer loop in parallel
+        new SimpleMT.PFor(0, N) {
+            public void at(int y) {
+                final double yr = ry[2 * y + 0], yi = ry[2 * y + 1];
+                for (int x = 0; x < N; x++) {
+                    float co = (float) (rx[2 * x + 0] * yr - rx[2 * x + 1] * yi);
+                    float si = (float) (rx[2 * x + 0] * yi + rx[2 * x + 1] * yr);
+                    // get
+                    float re = val[(y * N + x) * 2 + 0];
+                    float im = val[(y * N + x) * 2 + 1];
+                    // set
+                    val[(y * N + x) * 2 + 0] = Cplx.multReal(re, im, co, si);
+                    val[(y * N + x) * 2 + 1] = Cplx.multImag(re, im, co, si);
+                }
+            }
+        };
+    }
+
+    /**
+     * Correlations c = sum( a * conj(b) * exp(2 pi i (kx*x+ky*y)/N) ) for
+     * all combinations of kx[i], ky[j]. Each is a single DFT coefficient of
+     * the product a*conj(b), so this gives the same as shifting 'a' by
+     * timesShift for every (kx,ky) and summing a*conj(b), but the product
+     * is formed once and the sums are separable: cost is about
+     * kx.length*N*N instead of a full shift per point. The ramps of the
+     * grid are not cached.
+     *
+     * @param a  Interleaved complex data, N x N (the data to shift)
+     * @param b  Interleaved complex data, N x N
+     * @param N  Width (and height) of the data
+     * @param kx x-coordinates of shifts
+     * @param ky y-coordinates of shifts
+     * @return c[i][j] for kx[i], ky[j]
+     */
+    static public Cplx.Double[][] correlate(final float[] a, final float[] b, final int N,
+                                            final double[] kx, final double[] ky) {
+
+        final int nx = kx.length, ny = ky.length;
+        final double[][] rx = new double[nx][], ry = new double[ny][];
+        for (int i = 0; i < nx; i++)
+            rx[i] = rampUncached(N, kx[i]);
+        for (int j = 0; j < ny; j++)
+            ry[j] = rampUncached(N, ky[j]);
+
+        // sums over x, for every row and every kx
+        final double[] q = new double[2 * nx * N];
+        new SimpleMT.PFor(0, N) {
+            public void at(int y) {
+                final double[] p = new double[2 * N];
+                productRow(a, b, N, y, p);
+                for (int i = 0; i < nx; i++) {
+                    final double[] r = rx[i];
+                    double re = 0, im = 0;
+                    for (int x = 0; x < N; x++) {
+                        re += p[2 * x] * r[2 * x] - p[2 * x + 1] * r[2 * x + 1];
+                        im += p[2 * x] * r[2 * x + 1] + p[2 * x + 1] * r[2 * x];
+                    }
+                    q[2 * (i * N + y) + 0] = re;
+                    q[2 * (i * N + y) + 1] = im;
+                }
+            }
+        };
+
+        // sums over y
+        Cplx.Double[][] ret = new Cplx.Double[nx][ny];
+        for (int i = 0; i < nx; i++)
+            for (int j = 0; j < ny; j++) {
+                final double[] r = ry[j];
+                double re = 0, im = 0;
+                for (int y = 0; y < N; y++) {
+                    double qr = q[2 * (i * N + y)], qi = q[2 * (i * N + y) + 1];
+                    re += qr * r[2 * y] - qi * r[2 * y + 1];
+                    im += qr * r[2 * y + 1] + qi * r[2 * y];
+                }
+                ret[i][j] = new Cplx.Double(re, im);
+            }
+        return ret;
+    }
+
+    /**
+     * Correlation as in {@link #correlate} at a single (kx,ky), with its
+     * derivatives. Ramps are computed, not taken from the cache, as
+     * this is meant for iterative refinement at arbitrary positions.
+     *
+     * @return c, dc/dkx, dc/dky, each as re,im
+     */
+    static public double[] correlateWithGradient(final float[] a, final float[] b, final int N,
+                                                 final double kx, final double ky) {
+
+        final double[] rx = rampUncached(N, kx), ry = rampUncached(N, ky);
+        // per row: sum over x of p*rx and of x*p*rx
+        final double[] q = new double[4 * N];
+        new SimpleMT.PFor(0, N) {
+            public void at(int y) {
+                final double[] p = new double[2 * N];
+                productRow(a, b, N, y, p);
+                double re = 0, im = 0, xre = 0, xim = 0;
+                for (int x = 0; x < N; x++) {
+                    double tr = p[2 * x] * rx[2 * x] - p[2 * x + 1] * rx[2 * x + 1];
+                    double ti = p[2 * x] * rx[2 * x + 1] + p[2 * x + 1] * rx[2 * x];
+                    re += tr;
+                    im += ti;
+                    xre += x * tr;
+                    xim += x * ti;
+                }
+                q[4 * y + 0] = re;
+                q[4 * y + 1] = im;
+                q[4 * y + 2] = xre;
+                q[4 * y + 3] = xim;
+            }
+        };
+
+        double cr = 0, ci = 0, xr = 0, xi = 0, yr = 0, yi = 0;
+        for (int y = 0; y < N; y++) {
+            double sr = ry[2 * y], si = ry[2 * y + 1];
+            double tr = q[4 * y] * sr - q[4 * y + 1] * si;
+            double ti = q[4 * y] * si + q[4 * y + 1] * sr;
+            cr += tr;
+            ci += ti;
+            yr += y * tr;
+            yi += y * ti;
+            xr += q[4 * y + 2] * sr - q[4 * y + 3] * si;
+            xi += q[4 * y + 2] * si + q[4 * y + 3] * sr;
+        }
+
+        // d/dk exp(2 pi i k n/N) = (2 pi i n/N) exp(..)
+        final double f = 2 * Math.PI / N;
+        return new double[]{cr, ci, -f * xi, f * xr, -f * yi, f * yr};
+    }
+
+    // row y of a*conj(b), in double
+    private static void productRow(float[] a, float[] b, int N, int y, double[] p) {
+        for (int x = 0; x < N; x++) {
+            int o = 2 * (y * N + x);
+            double ar = a[o], ai = a[o + 1], br = b[o], bi = b[o + 1];
+            p[2 * x + 0] = ar * br + ai * bi;
+            p[2 * x + 1] = ai * br - ar * bi;
+        }
+    }
+
+    // 1D ramp as in 'ramp', without caching
+    private static double[] rampUncached(final int n, final double k) {
+        double[] r = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            // reduce to one period first, so large k*i keep their precision
+            double pha = (k * i) / n;
+            pha = 2 * Math.PI * (pha - Math.floor(pha));
+            r[2 * i + 0] = Math.cos(pha);
+            r[2 * i + 1] = Math.sin(pha);
+        }
+        return r;
+    }
+
+    /**
+     * Clear the ramp cache
+     */
+    static public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    // per-pixel shift, as used before, for comparison
+    private static void timesShiftPerPixel(final float[] val, final int N,
+                                           final double kx, final double ky, final boolean fast) {
+        new SimpleMT.PFor(0, N) {
+            public void at(int y) {
+                for (int x = 0; x < N; x++) {
+                    float phaVal = (float) (2 * Math.PI * (kx * x + ky * y) / N);
+                    float si, co;
+                    if (fast) {
+                        co = (float) MTool.fcos(phaVal);
+                        si = (float) MTool.fsin(phaVal);
+                    } else {
+                        co = (float) Math.cos(phaVal);
+                        si = (float) Math.sin(phaVal);
+                    }
+                    float re = val[(y * N + x) * 2 + 0];
+                    float im = val[(y * N + x) * 2 + 1];
+                    val[(y * N + x) * 2 + 0] = Cplx.multReal(re, im, co, si);
+                    val[(y * N + x) * 2 + 1] = Cplx.multImag(re, im, co, si);
+                }
+            }
+        };
+    }
+
+    // shift computed fully in double precision, as reference
+    private static double[] timesShiftReference(final float[] val, final int N,
+                                                final double kx, final double ky) {
+        double[] ret = new double[val.length];
+        for (int y = 0; y < N; y++)
+            for (int x = 0; x < N; x++) {
+                double pha = (kx * x + ky * y) / N;
+                pha = 2 * Math.PI * (pha - Math.floor(pha));
+                double co = Math.cos(pha), si = Math.sin(pha);
+                double re = val[(y * N + x) * 2 + 0];
+                double im = val[(y * N + x) * 2 + 1];
+                ret[(y * N + x) * 2 + 0] = re * co - im * si;
+                ret[(y * N + x) * 2 + 1] = re * si + im * co;
+            }
+        return ret;
+    }
+
+    // max. abs. difference, relative to max. abs. value of the reference
+    private static double maxRelDiff(float[] a, double[] ref) {
+        double d = 0, m = 0;
+        for (int i = 0; i < a.length; i++) {
+            d = Math.max(d, Math.abs(a[i] - ref[i]));
+            m = Math.max(m, Math.abs(ref[i]));
+        }
+        return d / m;
+    }
+
+    /**
+     * For testing: equivalence to the per-pixel shift, timings
+     */
+    public static void main(String[] args) {
+
+        final int N = (args.length > 0) ? (Integer.parseInt(args[0])) : (1024);
+        final int loops = (args.length > 1) ? (Integer.parseInt(args[1])) : (20);
+
+        java.util.Random rnd = new java.util.Random(42);
+        float[] data = new float[2 * N * N];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (float) rnd.nextGaussian();
+
+        // equivalence, including typical SIM k-vectors and large shifts
+        double[][] shifts = {{0, 0}, {1, 0}, {0.5, -0.25}, {137.23, -92.71},
+                {-N / 3.7, N / 5.1}, {N / 2., N / 2.}};
+        double worstNew = 0, worstOld = 0;
+        for (double[] k : shifts) {
+            double[] ref = timesShiftReference(data, N, k[0], k[1]);
+
+            float[] a = data.clone();
+            timesShift(a, N, k[0], k[1]);
+            float[] b = data.clone();
+            timesShiftPerPixel(b, N, k[0], k[1], true);
+
+            double dn = maxRelDiff(a, ref), dp = maxRelDiff(b, ref);
+            worstNew = Math.max(worstNew, dn);
+            worstOld = Math.max(worstOld, dp);
+            Tool.trace(String.format("k = (%8.3f, %8.3f): separable %5.3e, per-pixel %5.3e",
+                    k[0], k[1], dn, dp));
+        }
+        Tool.trace(String.format("Max. rel. error vs. double reference: separable %5.3e, per-pixel %5.3e",
+                worstNew, worstOld));
+        Tool.trace((worstNew < 1e-6) ? "Equivalence: OK" : "Equivalence: FAIL");
+
+        // one-off grids (peak search) must not enter the cache
+        clearCache();
+        timesShift(data.clone(), N, 12.5, -7.25);
+        int cached;
+        synchronized (cache) {
+            cached = cache.size();
+        }
+        timesShift(data.clone(), N, 3.1, 4.2, false);
+        correlate(data, data, N, new double[]{1.1, 2.2, 3.3}, new double[]{-1.1, -2.2});
+        synchronized (cache) {
+            Tool.trace(String.format("Cached ramps: %d after shift, %d after uncached shift and grid -> %s",
+                    cached, cache.size(), (cached == 2 && cache.size() == 2) ? ("OK") : ("FAIL")));
+        }
+
+        // timing, new k-vector every call (no cache hits) vs. repeated k-vector
+        Tool.Timer tOld = Tool.getTimer(), tNew = Tool.getTimer(), tCached = Tool.getTimer();
+        float[] w = data.clone();
+        for (int r = 0; r < 3; r++) {
+            tOld.start();
+            for (int i = 0; i < loops; i++)
+                timesShiftPerPixel(w, N, 100 + 0.1 * i, -50 - 0.1 * i, true);
+            tOld.stop();
+
+            clearCache();
+            tNew.start();
+            for (int i = 0; i < loops; i++)
+                timesShift(w, N, 100 + 0.1 * i, -50 - 0.1 * i);
+            tNew.stop();
+
+            tCached.start();
+            for (int i = 0; i < loops; i++)
+                timesShift(w, N, 100 + 0.1 * i, -50 - 0.1 * i);
+            tCached.stop();
+
+            Tool.trace(String.format("%d shifts, %dx%d: per-pixel %s, separable %s, separable cached %s",
+                    loops, N, N, tOld, tNew, tCached));
+        }
+
+        System.exit(0);
+    }
+
+}
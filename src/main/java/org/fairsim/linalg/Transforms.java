@@ -19,9 +19,10 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 package org.fairsim.linalg;
 
 import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Provides FFTs for vector elements.
@@ -36,6 +37,225 @@ public abstract class Transforms {
         in.fft2d(inverse);
     }
 
+    /**
+     * Two-dimensional FFTs of a batch of same-sized vectors. The vectors are
+     * transformed in parallel, each one by a single thread. If there are
+     * fewer vectors than threads, the threads are split among them.
+     */
+    static public void fft2dBatch(final Vec2d.Cplx[] in, final boolean inverse) {
+        if (in.length == 0)
+            return;
+        boolean basic = true;
+        for (Vec2d.Cplx v : in) {
+            Vec2d.failSize(v, in[0]);
+            basic &= (v instanceof BasicVector.BCplx2D);
+        }
+
+        final int threads = SimpleMT.getParallelism();
+        if (in.length == 1 || threads == 1 || !basic) {
+            for (Vec2d.Cplx v : in)
+                v.fft2d(inverse);
+            return;
+        }
+
+        final FFTkey k = new FFTkey(in[0].vectorWidth(), in[0].vectorHeight());
+        final int perVector = Math.max(1, threads / in.length);
+        new SimpleMT.PFor(0, in.length) {
+            public void at(int i) {
+                int prevLimit = FftProvider.limitThreads(perVector);
+                FftProvider.Instance ffti = acquireInstance(k);
+                try {
+                    ffti.fftTransform(in[i].vectorData(), inverse);
+                } finally {
+                    releaseInstance(k, ffti);
+                    FftProvider.limitThreads(prevLimit);
+                }
+                in[i].syncBuffer();
+            }
+        };
+    }
+
+    // number of columns transformed together in pasteFreqIfft2d
+    private static final int COL_BLOCK = 8;
+
+    // column buffers of pasteFreqIfft2d, per thread
+    private static final ThreadLocal<float[]> colBuffer = new ThreadLocal<float[]>();
+
+    /**
+     * Paste a spectrum into a larger vector and transform it to real space, the
+     * same as {@code out.pasteFreq(in, xOffset, yOffset); out.fft2d(true);}.
+     * Columns that receive no data are all zero, so the first (column) pass
+     * only transforms the others, filled directly from 'in'. For the usual 2x
+     * upsampling, this saves a quarter of the FFT work.
+     */
+    static public void pasteFreqIfft2d(final Vec2d.Cplx in, final Vec2d.Cplx out,
+                                       final int xOffset, final int yOffset) {
+
+        final int wi = in.vectorWidth(), hi = in.vectorHeight();
+        final int wo = out.vectorWidth(), ho = out.vectorHeight();
+        if (!(out instanceof BasicVector.BCplx2D) || wi > wo || hi > ho) {
+            out.pasteFreq(in, xOffset, yOffset);
+            out.fft2d(true);
+            return;
+        }
+
+        final float[] src = in.vectorData(), dst = out.vectorData();
+
+        // output row of each input row, output column of each input column
+        final int[] rowTo = new int[hi];
+        for (int y = 0; y < hi; y++)
+            rowTo[y] = (((y < hi / 2) ? (y) : (y + ho / 2)) + yOffset + ho) % ho;
+        final int[] colTo = new int[wi];
+        for (int x = 0; x < wi; x++)
+            colTo[x] = (((x < wi / 2) ? (x) : (x + wo / 2)) + xOffset + wo) % wo;
+
+        final FFTkey kRow = new FFTkey(wo), kCol = new FFTkey(ho);
+
+        // columns without data stay zero
+        new SimpleMT.PFor(0, ho) {
+            public void at(int yo) {
+                java.util.Arrays.fill(dst, 2 * wo * yo, 2 * wo * (yo + 1), 0f);
+            }
+        };
+
+        // columns with data: paste into a buffer, transform, copy to the output
+        new SimpleMT.PFor(0, (wi + COL_BLOCK - 1) / COL_BLOCK) {
+            public void at(int blk) {
+                final int x0 = blk * COL_BLOCK, nc = Math.min(COL_BLOCK, wi - x0);
+                float[] buf = colBuffer.get();
+                if (buf == null || buf.length < COL_BLOCK * 2 * ho) {
+                    buf = new float[COL_BLOCK * 2 * ho];
+                    colBuffer.set(buf);
+                }
+                java.util.Arrays.fill(buf, 0, nc * 2 * ho, 0f);
+
+                for (int y = 0; y < hi; y++) {
+                    final int p = 2 * (wi * y + x0), yo = rowTo[y];
+                    for (int c = 0; c < nc; c++) {
+                        buf[c * 2 * ho + 2 * yo + 0] = src[p + 2 * c + 0];
+                        buf[c * 2 * ho + 2 * yo + 1] = src[p + 2 * c + 1];
+                    }
+                }
+
+                // (single-threaded, so this thread does not pick up other work
+                // that might use the same buffer while waiting)
+                int prevLimit = FftProvider.limitThreads(1);
+                FftProvider.Instance ffti = acquireInstance(kCol);
+                try {
+                    for (int c = 0; c < nc; c++)
+                        ffti.fftTransform(buf, c * 2 * ho, ho, true);
+                } finally {
+                    releaseInstance(kCol, ffti);
+                    FftProvider.limitThreads(prevLimit);
+                }
+
+                for (int yo = 0; yo < ho; yo++)
+                    for (int c = 0; c < nc; c++) {
+                        final int p = 2 * (wo * yo + colTo[x0 + c]);
+                        dst[p + 0] = buf[c * 2 * ho + 2 * yo + 0];
+                        dst[p + 1] = buf[c * 2 * ho + 2 * yo + 1];
+                    }
+            }
+        };
+
+        // all rows, in place
+        new SimpleMT.PFor(0, ho) {
+            public void at(int yo) {
+                int prevLimit = FftProvider.limitThreads(1);
+                FftProvider.Instance ffti = acquireInstance(kRow);
+                try {
+                    ffti.fftTransform(dst, 2 * wo * yo, wo, true);
+                } finally {
+                    releaseInstance(kRow, ffti);
+                    FftProvider.limitThreads(prevLimit);
+                }
+            }
+        };
+
+        out.syncBuffer();
+    }
+
+    /**
+     * Two-dimensional forward FFT of real input data.
+     *
+     * @param in  Real input (not changed)
+     * @param out Complex output, same size as input
+     */
+    static public void fft2dReal(Vec2d.Real in, Vec2d.Cplx out) {
+        Vec2d.failSize(in, out);
+        final FFTkey k = new FFTkey(in.vectorWidth(), in.vectorHeight());
+        float[] dat = out.vectorData();
+        System.arraycopy(in.vectorData(), 0, dat, 0, in.vectorSize());
+        FftProvider.Instance ffti = acquireInstance(k);
+        try {
+            ffti.realForwardFull(dat);
+        } finally {
+            releaseInstance(k, ffti);
+        }
+        out.syncBuffer();
+    }
+
+    /**
+     * Two-dimensional forward FFTs of a batch of same-sized real inputs,
+     * scheduled like {@link #fft2dBatch}.
+     *
+     * @param in  Real inputs (not changed)
+     * @param out Complex outputs, same size as inputs
+     */
+    static public void fft2dRealBatch(final Vec2d.Real[] in, final Vec2d.Cplx[] out) {
+        if (in.length != out.length)
+            throw new IllegalArgumentException("Number of inputs and outputs differ");
+        if (in.length == 0)
+            return;
+        for (int i = 0; i < in.length; i++) {
+            Vec2d.failSize(in[i], in[0]);
+            Vec2d.failSize(in[i], out[i]);
+        }
+
+        final int threads = SimpleMT.getParallelism();
+        if (in.length == 1 || threads == 1) {
+            for (int i = 0; i < in.length; i++)
+                fft2dReal(in[i], out[i]);
+            return;
+        }
+
+        final FFTkey k = new FFTkey(in[0].vectorWidth(), in[0].vectorHeight());
+        final int perVector = Math.max(1, threads / in.length);
+        new SimpleMT.PFor(0, in.length) {
+            public void at(int i) {
+                float[] dat = out[i].vectorData();
+                System.arraycopy(in[i].vectorData(), 0, dat, 0, in[i].vectorSize());
+                int prevLimit = FftProvider.limitThreads(perVector);
+                FftProvider.Instance ffti = acquireInstance(k);
+                try {
+                    ffti.realForwardFull(dat);
+                } finally {
+                    releaseInstance(k, ffti);
+                    FftProvider.limitThreads(prevLimit);
+                }
+                out[i].syncBuffer();
+            }
+        };
+    }
+
+    /**
+     * Two-dimensional inverse FFT, keeping only the real part of the result.
+     *
+     * @param in  Complex input (not changed)
+     * @param out Real output, same size as input
+     */
+    static public void ifft2dReal(Vec2d.Cplx in, Vec2d.Real out) {
+        Vec2d.failSize(in, out);
+        final FFTkey k = new FFTkey(in.vectorWidth(), in.vectorHeight());
+        FftProvider.Instance ffti = acquireInstance(k);
+        try {
+            ffti.realInverse(in.vectorData(), out.vectorData());
+        } finally {
+            releaseInstance(k, ffti);
+        }
+        out.syncBuffer();
+    }
+
     /**
      * Three-dimensional FFT of the input vector.
      */
@@ -48,10 +268,7 @@ public abstract class Transforms {
         // get parameters
         final int w = in.vectorWidth();
         final int h = in.vectorHeight();
-        // see if we have an instance already, otherwise make one
-        FftProvider.Instance ffti = getOrCreateInstance(new FFTkey(w, h));
-        float[] dat = in.vectorData();
-        ffti.fftTransform(dat, inverse);
+        runfft(new FFTkey(w, h), in.vectorData(), inverse);
         in.syncBuffer();
     }
 
@@ -60,10 +277,7 @@ public abstract class Transforms {
         final int w = in.vectorWidth();
         final int h = in.vectorHeight();
         final int d = in.vectorDepth();
-        // see if we have an instance already, otherwise make one
-        FftProvider.Instance ffti = getOrCreateInstance(new FFTkey(w, h, d));
-        float[] dat = in.vectorData();
-        ffti.fftTransform(dat, inverse);
+        runfft(new FFTkey(w, h, d), in.vectorData(), inverse);
         in.syncBuffer();
     }
 
@@ -73,9 +287,7 @@ public abstract class Transforms {
      */
     static public void fft1d(Vec.Cplx in, boolean inverse) {
         final int len = in.vectorSize();
-        FftProvider.Instance ffti = getOrCreateInstance(new FFTkey(len));
-        float[] dat = in.vectorData();
-        ffti.fftTransform(dat, inverse);
+        runfft(new FFTkey(len), in.vectorData(), inverse);
         in.syncBuffer();
     }
 
@@ -86,8 +298,17 @@ public abstract class Transforms {
      */
     static public void fft1d(float[] in, boolean inverse) {
         final int len = in.length / 2;
-        FftProvider.Instance ffti = getOrCreateInstance(new FFTkey(len));
-        ffti.fftTransform(in, inverse);
+        runfft(new FFTkey(len), in, inverse);
+    }
+
+    // complex transform of 'dat', with an instance for size 'k'
+    static private void runfft(FFTkey k, float[] dat, boolean inverse) {
+        FftProvider.Instance ffti = acquireInstance(k);
+        try {
+            ffti.fftTransform(dat, inverse);
+        } finally {
+            releaseInstance(k, ffti);
+        }
     }
 
     // -----------------------------------------------------------
@@ -129,28 +350,83 @@ public abstract class Transforms {
             if (z != t.z) return (t.z - z);
             return 0;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof FFTkey) && compareTo((FFTkey) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((d * 31 + x) * 31 + y) * 31 + z;
+        }
+
+        @Override
+        public String toString() {
+            return (d == 1) ? ("" + x) : ((d == 2) ? (x + "x" + y) : (x + "x" + y + "x" + z));
+        }
     }
 
     /**
-     * FFT instances
+     * FFT instances not in use. FFT plans are not thread-safe, so every
+     * transform takes one for its size from here, and puts it back when
+     * done. Concurrent transforms of the same size thus run on plans of
+     * their own, without waiting for each other. Plans are kept and reused,
+     * so there are at most as many per size as transforms ever ran at the
+     * same time.
      */
-    static private Map<FFTkey, FftProvider.Instance> instances;
+    static private final ConcurrentHashMap<FFTkey, ConcurrentLinkedQueue<FftProvider.Instance>> idle =
+            new ConcurrentHashMap<FFTkey, ConcurrentLinkedQueue<FftProvider.Instance>>();
 
-    /** static initialization of the instances list. */
-    static {
-        if (instances == null) {
-            instances = new TreeMap<FFTkey, FftProvider.Instance>();
+    /**
+     * Create the FFT instances for a list of 2D sizes { w, h } ahead
+     * of time, so the first transform does not wait for them. This
+     * includes one instance per thread for batched and concurrent transforms.
+     */
+    static public void prewarm2d(int[]... sizes) {
+        for (int[] s : sizes) {
+            if (s.length != 2)
+                throw new IllegalArgumentException("Sizes have to be given as { w, h }");
+            FFTkey k = new FFTkey(s[0], s[1]);
+            ConcurrentLinkedQueue<FftProvider.Instance> q = idleQueue(k);
+            for (int i = q.size(); i < SimpleMT.getParallelism(); i++)
+                q.offer(createInstance(k));
         }
     }
 
-
     /**
-     * returns an instance, creates one if none exists
+     * Number of FFT plans for 2D size w x h, i.e. the most transforms of
+     * that size that ran at the same time (only counts plans not in use)
      */
-    static protected FftProvider.Instance getOrCreateInstance(final FFTkey k) {
-        FftProvider.Instance ffti = instances.get(k);
-        if (ffti != null) return ffti;
-        //Tool.trace("FFT: creating new instance");
+    static int getPlanCount(int w, int h) {
+        return idleQueue(new FFTkey(w, h)).size();
+    }
+
+    // get an idle instance for size 'k' (or create one), to be handed back with releaseInstance
+    static private FftProvider.Instance acquireInstance(final FFTkey k) {
+        FftProvider.Instance ffti = idleQueue(k).poll();
+        return (ffti != null) ? (ffti) : (createInstance(k));
+    }
+
+    static private void releaseInstance(final FFTkey k, FftProvider.Instance ffti) {
+        idleQueue(k).offer(ffti);
+    }
+
+    static private ConcurrentLinkedQueue<FftProvider.Instance> idleQueue(final FFTkey k) {
+        ConcurrentLinkedQueue<FftProvider.Instance> q = idle.get(k);
+        if (q == null) {
+            q = new ConcurrentLinkedQueue<FftProvider.Instance>();
+            ConcurrentLinkedQueue<FftProvider.Instance> other = idle.putIfAbsent(k, q);
+            if (other != null)
+                q = other;
+        }
+        return q;
+    }
+
+    static private FftProvider.Instance createInstance(final FFTkey k) {
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+        FftProvider.Instance ffti = null;
         if (k.d == 1)
             ffti = FftProvider.get1Dfft(k.x);
         if (k.d == 2)
@@ -159,7 +435,8 @@ public abstract class Transforms {
             ffti = FftProvider.get3Dfft(k.x, k.y, k.z);
         if (ffti == null)
             throw new RuntimeException("Unsupported dimensions");
-        instances.put(k, ffti);
+        t1.stop();
+        Tool.trace("FFT: created instance " + k + ", took " + t1);
         return ffti;
     }
 
@@ -435,34 +712,15 @@ public abstract class Transforms {
     }
 
 
+    /**
+     * Multiply a vector with Fourier shift theorem phases, see {@link PhaseRamp}.
+     * Vector has to be of square size (w==h). The separable ramps are
+     * computed in double precision, there is no faster, less precise variant.
+     */
     static public void runTimesShiftVector(final Vec2d.Cplx vec,
-                                           final double kx, final double ky, final boolean fast) {
-        final float[] val = vec.vectorData();
+                                           final double kx, final double ky) {
         final int N = Vec2d.checkSquare(vec);
-
-        // run outer loop in parallel
-        new SimpleMT.PFor(0, N) {
-            public void at(int y) {
-                for (int x = 0; x < N; x++) {
-                    float phaVal = (float) (2 * Math.PI * (kx * x + ky * y) / N);
-                    float si, co;
-                    if (fast) {
-                        co = (float) MTool.fcos(phaVal);
-                        si = (float) MTool.fsin(phaVal);
-                    } else {
-                        co = (float) Math.cos(phaVal);
-                        si = (float) Math.sin(phaVal);
-                    }
-                    // get
-                    float re = val[(y * N + x) * 2 + 0];
-                    float im = val[(y * N + x) * 2 + 1];
-                    // set
-                    val[(y * N + x) * 2 + 0] = Cplx.multReal(re, im, co, si);
-                    val[(y * N + x) * 2 + 1] = Cplx.multImag(re, im, co, si);
-                }
-            }
-        };
-
+        PhaseRamp.timesShift(vec.vectorData(), N, kx, ky);
         vec.syncBuffer();
     }
 
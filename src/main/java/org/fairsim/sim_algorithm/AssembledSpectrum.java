@@ -0,0 +1,196 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
+
+/**
+ * A reconstruction before its final filter step, as returned by
+ * {@link SimAlgorithm#assembleSpectrum}: the sum of all shifted,
+ * OTF-weighted bands (the Wiener numerator), and the Wiener denominator
+ * (sum of |OTF|^2) for the same parameters. Changing only filter settings,
+ * the spectrum can be filtered again by {@link SimAlgorithm#filterSpectrum}.
+ */
+public class AssembledSpectrum {
+
+    private final SimParam param;
+    private final Vec2d.Cplx numerator;
+    private WienerFilter wFilter = null;
+
+    // attenuation setting of the OTF at assembly time (the OTF itself is shared)
+    private final boolean attenuate;
+    private final double attStr, attFWHM;
+
+    /**
+     * Stores copies of 'param' and 'spectrum'
+     */
+    AssembledSpectrum(SimParam param, Vec2d.Cplx spectrum) {
+        this.param = param.duplicate();
+        this.numerator = spectrum.duplicate();
+        this.attenuate = param.otf().isAttenuate();
+        this.attStr = param.otf().getAttStr(0);
+        this.attFWHM = param.otf().getAttFWHM(0);
+    }
+
+    /**
+     * The assembled spectrum (Wiener numerator), 2w x 2h. Do not modify.
+     */
+    public Vec2d.Cplx getNumerator() {
+        return numerator;
+    }
+
+    /**
+     * The reciproc Wiener denominator for parameter 'wParam', 2w x 2h
+     */
+    public Vec2d.Real getDenominator(double wParam) {
+        return wienerFilter().getDenominator(wParam);
+    }
+
+    /**
+     * Check if the spectrum is still valid for 'p', i.e. all parameters
+     * but the Wiener, APO and RL settings are the same as it was assembled
+     * with. The filter style and the band shift method change the
+     * assembly, so they have to match.
+     */
+    public boolean fits(SimParam p) {
+        if (p.getFilterStyle() != param.getFilterStyle() || p.useFastShift() != param.useFastShift())
+            return false;
+        if (p.vectorWidth() != param.vectorWidth() || p.vectorHeight() != param.vectorHeight()
+                || p.pxlSizeCyclesMicron() != param.pxlSizeCyclesMicron()
+                || p.nrDir() != param.nrDir() || p.nrBand() != param.nrBand() || p.nrPha() != param.nrPha())
+            return false;
+
+        OtfProvider o1 = p.otf(), o2 = param.otf();
+        if (o1 != o2 || o1.isAttenuate() != attenuate
+                || o1.getAttStr(0) != attStr || o1.getAttFWHM(0) != attFWHM)
+            return false;
+
+        for (int d = 0; d < p.nrDir(); d++) {
+            SimParam.Dir d1 = p.dir(d), d2 = param.dir(d);
+            if (d1.px(1) != d2.px(1) || d1.py(1) != d2.py(1))
+                return false;
+            for (int i = 0; i < p.nrPha(); i++)
+                if (d1.getPhase(i) != d2.getPhase(i) || d1.getIntensityQuotient(i) != d2.getIntensityQuotient(i))
+                    return false;
+            double[] m1 = d1.getRawModulations(), m2 = d2.getRawModulations();
+            for (int b = 0; b < m1.length; b++)
+                if (m1[b] != m2[b])
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parameters to filter with: a copy of the assembled parameters,
+     * with the Wiener, APO and RL settings taken from 'p'
+     */
+    SimParam setFilter(SimParam p) {
+        if (p.getFilterStyle() != param.getFilterStyle())
+            throw new IllegalArgumentException("Filter style differs from the assembled spectrum");
+        SimParam ret = param.duplicate();
+        ret.setWienerFilter(p.getWienerFilter());
+        ret.setApoCutoff(p.getApoCutoff());
+        ret.setApoBend(p.getApoBend());
+        ret.setRLiterations(p.getRLiterations());
+        ret.setRLAcceleration(p.useRLAcceleration(), p.getRLTolerance());
+        return ret;
+    }
+
+    /**
+     * The Wiener filter for the assembled parameters, created on first use
+     */
+    synchronized WienerFilter wienerFilter() {
+        if (wFilter == null)
+            wFilter = new WienerFilter(param);
+        return wFilter;
+    }
+
+    /**
+     * Memory used by the stored vectors, in bytes
+     */
+    public long getBytes() {
+        long b = (long) numerator.vectorSize() * 8;
+        if (wFilter != null)
+            b += (long) numerator.vectorSize() * 4;
+        return b;
+    }
+
+    /**
+     * For testing: full reconstructions vs. one assembly and re-filtering,
+     * for a range of Wiener and APO settings, on simulated data
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final double[] wiener = {0.02, 0.05, 0.1, 0.2};
+        final double[] apoBend = {0.8, 1.0, 1.2, 0.9};
+
+        SimParam param = SimUtils.simulatedParam(size);
+        Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(param, 42, 0);
+
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        Tool.Timer tFull = Tool.getTimer(), tAsm = Tool.getTimer(), tFilt = Tool.getTimer();
+
+        AssembledSpectrum spec = SimAlgorithm.assembleSpectrum(param, inFFT, ws, false, tAsm);
+        double maxErr = 0;
+
+        for (int i = 0; i < wiener.length; i++) {
+            param.setWienerFilter(wiener[i]);
+            param.setApoBend(apoBend[i]);
+
+            tFull.start();
+            Vec2d.Real full = SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null).duplicate();
+            tFull.hold();
+
+            if (!spec.fits(param))
+                throw new IllegalStateException("Spectrum should still fit");
+            tFilt.start();
+            Vec2d.Real filt = SimAlgorithm.filterSpectrum(spec, param, ws, SimParam.CLIPSCALE.NONE, null);
+            tFilt.hold();
+
+            filt.axpy(-1, full);
+            maxErr = Math.max(maxErr, Math.sqrt(filt.norm2() / full.norm2()));
+        }
+
+        // filter parameters are copies, the assembled ones stay unchanged
+        SimParam f1 = spec.setFilter(param);
+        param.setWienerFilter(wiener[0] * 2);
+        SimParam f2 = spec.setFilter(param);
+        boolean copies = (f1 != f2 && f1.getWienerFilter() == wiener[wiener.length - 1]
+                && f2.getWienerFilter() == wiener[0] * 2);
+
+        // changing the shift method or a k-vector invalidates the spectrum
+        param.setFastShift(!param.useFastShift());
+        boolean invalid = !spec.fits(param);
+        param.setFastShift(!param.useFastShift());
+        param.dir(1).setPxPy(param.dir(1).px(1) + 0.1, param.dir(1).py(1));
+        invalid &= !spec.fits(param);
+
+        Tool.trace(String.format("%dx%d, %d filter settings: full reconstructions %s, assembly once %s, re-filtering %s",
+                size, size, wiener.length, tFull, tAsm, tFilt));
+        Tool.trace(String.format("max. rel. difference %5.3e, filter params copied: %b, " +
+                        "invalidated by shift method and k change: %b -> %s",
+                maxErr, copies, invalid, (maxErr < 1e-5 && copies && invalid) ? ("OK") : ("FAIL")));
+        SimpleMT.shutdown();
+    }
+
+}
@@ -163,14 +163,8 @@ public class BandSeparation {
         if (out.length != (bands * 2) - 1)
             throw new IndexOutOfBoundsException("#output images != #bands*2-1");
 
-        // compute phases for higher bands
-        double[][] pha = new double[bands - 1][phases.length];
-        for (int b = 1; b < bands; b++)
-            for (int p = 0; p < phases.length; p++)
-                pha[b - 1][p] = phases[p] * b;
-
         // create separation matrix
-        MatrixComplex SpM = createSeparationMatrix(pha, bands, fac);
+        MatrixComplex SpM = separationMatrix(phases, bands, fac);
 
         // some debug output
         String lg = "Band sep. (" + bands + " bands) with phases";
@@ -189,6 +183,71 @@ public class BandSeparation {
     }
 
 
+    /**
+     * Compute a single component of the spectral separation, and
+     * add it to 'out'. Gives the same result as adding out[comp]
+     * of {@link #separateBands}, without computing the other components.
+     *
+     * @param in     FFT'd input images, array size: #images = #phases/#bands
+     * @param out    Vector to add the component to
+     * @param phases Phases 0..2pi, length >= (bands*2)-1
+     * @param bands  Number of bands, convention: 2 for 2beam, 3 for 3beam data
+     * @param fac    Scaling factors, one for each band
+     * @param comp   The component, band*2 for pos, band*2-1 for neg shift, 0 for band 0
+     */
+    static public void addSeparatedComponent(Vec.Cplx[] in, Vec.Cplx out,
+                                             double[] phases, final int bands, double[] fac, int comp) {
+
+        // check length
+        if (in.length != phases.length)
+            throw new IndexOutOfBoundsException("#input images != phases per band");
+        if (comp < 0 || comp >= (bands * 2) - 1)
+            throw new IndexOutOfBoundsException("component index out of range");
+
+        MatrixComplex SpM = separationMatrix(phases, bands, fac);
+
+        for (int p = 0; p < phases.length; p++)
+            out.axpy(SpM.get(comp, p).toFlt(), in[p]);
+    }
+
+    /**
+     * Add the contribution of a single input image to all components
+     * of the spectral separation. As the separation is linear, replacing
+     * one input image of {@link #separateBands} only needs the contribution
+     * of the difference between the new and the old image to be added.
+     *
+     * @param in     FFT'd input image (or difference of images) at phase 'pha'
+     * @param out    Band-separated output, the contribution is added
+     * @param phases Phases 0..2pi, length >= (bands*2)-1
+     * @param bands  Number of bands, convention: 2 for 2beam, 3 for 3beam data
+     * @param fac    Scaling factors, one for each band
+     * @param pha    Index of the input image's phase
+     */
+    static public void addSeparatedInput(Vec.Cplx in, Vec.Cplx[] out,
+                                         double[] phases, final int bands, double[] fac, int pha) {
+
+        // check length
+        if (out.length != (bands * 2) - 1)
+            throw new IndexOutOfBoundsException("#output images != #bands*2-1");
+        if (pha < 0 || pha >= phases.length)
+            throw new IndexOutOfBoundsException("phase index out of range");
+
+        MatrixComplex SpM = separationMatrix(phases, bands, fac);
+
+        for (int b = 0; b < (bands * 2 - 1); b++)
+            out[b].axpy(SpM.get(b, pha).toFlt(), in);
+    }
+
+    // separation matrix for phases of band 1, higher bands set to multiples
+    private static MatrixComplex separationMatrix(double[] phases, final int bands, double[] fac) {
+        double[][] pha = new double[bands - 1][phases.length];
+        for (int b = 1; b < bands; b++)
+            for (int p = 0; p < phases.length; p++)
+                pha[b - 1][p] = phases[p] * b;
+        return createSeparationMatrix(pha, bands, fac);
+    }
+
+
     /**
      * Compute the spectral separation. This creates the matrix
      * first (see {@link #createSeparationMatrix}),
@@ -0,0 +1,809 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Transforms;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.ComputeResources;
+import org.fairsim.utils.ImageSelector;
+import org.fairsim.utils.TiffStackWriter;
+import org.fairsim.utils.Tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless batch reconstruction of a raw SIM stack (time series and / or
+ * z-stack), with fixed, previously determined parameters. Does not touch
+ * any GUI state: raw images are read through an {@link ImageSelector},
+ * results are handed to a {@link FrameSink}.
+ * <p>
+ * Frames (one time point of one z-slice) are reconstructed
+ * by a configurable number of workers, each owning its own
+ * {@link ReconstructionWorkspace}. With several workers, each one runs
+ * on its own partition of the compute threads (see
+ * {@link ComputeResources.PartFor}), so concurrent reconstructions do not
+ * compete for the same threads; a single worker uses all of them.
+ * Alternatively, {@link #runPipelined} splits the work into stages
+ * (read, estimate, reconstruct, output) that run concurrently, which
+ * hides the time spent reading raw data from slow storage.
+ */
+public class BatchReconstructor {
+
+    /**
+     * Receives the reconstructed frames. Calls are serialized, but
+     * may come from different threads and in any order. The vectors
+     * passed are reused once the call returns, so copy them if needed.
+     */
+    public interface FrameSink {
+        /**
+         * @param t                 Time point
+         * @param z                 z-slice
+         * @param sim               SIM reconstruction
+         * @param widefield         Widefield image, or null if not requested
+         * @param filteredWidefield Filtered widefield, or null if not requested
+         */
+        void put(int t, int z, Vec2d.Real sim, Vec2d.Real widefield,
+                 Vec2d.Real filteredWidefield);
+    }
+
+    private final SimParam param;
+    private final ImageSelector source;
+    private final ImageSelector.ImageInfo img;
+    private final int nrZ, nrT, imgSize;
+
+    private int tStart = 0, tStop;
+    private int zStart = 0, zStop;
+    private int workers = 1;
+    private boolean compWidefield = false, compFilteredWidefield = false;
+    private double background = -1;
+    private int fadeBorder = 10;
+
+    private boolean estimate = false;
+    private int fitBand = 2;
+    private double fitExclude = 0.6;
+    private ParameterTracker tracker = null;
+
+    private int[] stageWorkers = {1, 1, 1, 1};
+    private int queueLength = 2;
+
+    private volatile boolean cancel = false;
+
+    /**
+     * Create a batch reconstruction.
+     *
+     * @param param  SIM parameters, with OTF set, for the (padded) raw image size.
+     *               A snapshot is taken, later changes do not affect the batch.
+     * @param source Where to read the raw images from
+     * @param img    The raw stack, ordered as set by {@link SimParam#getImgSeq}
+     * @param nrZ    Number of z-slices per time point
+     */
+    public BatchReconstructor(SimParam param, ImageSelector source,
+                              ImageSelector.ImageInfo img, int nrZ) {
+        if (param.otf() == null)
+            throw new IllegalArgumentException("No OTF set in SimParam");
+        if (nrZ < 1)
+            throw new IllegalArgumentException("Number of z-slices has to be at least 1");
+
+        final int perT = param.getImgPerZ() * nrZ;
+        if (img.depth < perT || img.depth % perT != 0)
+            throw new IllegalArgumentException(String.format(
+                    "Stack length %d is not a multiple of %d (images per z-slice) x %d (z-slices)",
+                    img.depth, param.getImgPerZ(), nrZ));
+
+        this.imgSize = next32(Math.max(img.width, img.height));
+        if (imgSize != param.vectorWidth())
+            throw new IllegalArgumentException(String.format(
+                    "Raw images (padded to %d pxl) do not match the SIM parameters (%d pxl)",
+                    imgSize, param.vectorWidth()));
+
+        this.param = param.snapshot();
+        this.source = source;
+        this.img = img;
+        this.nrZ = nrZ;
+        this.nrT = img.depth / perT;
+        this.tStop = nrT;
+        this.zStop = nrZ;
+    }
+
+    /**
+     * Number of time points in the raw stack
+     */
+    public int nrTimePoints() {
+        return nrT;
+    }
+
+    /**
+     * Number of z-slices in the raw stack
+     */
+    public int nrZSlices() {
+        return nrZ;
+    }
+
+    /**
+     * Size of the reconstructed images
+     */
+    public int outputSize() {
+        return 2 * imgSize;
+    }
+
+    /**
+     * Reconstruct only time points start (incl.) to stop (excl.)
+     */
+    public BatchReconstructor setTimeRange(int start, int stop) {
+        if (start < 0 || stop > nrT || start >= stop)
+            throw new IllegalArgumentException("Time range out of bounds");
+        tStart = start;
+        tStop = stop;
+        return this;
+    }
+
+    /**
+     * Reconstruct only z-slices start (incl.) to stop (excl.)
+     */
+    public BatchReconstructor setZRange(int start, int stop) {
+        if (start < 0 || stop > nrZ || start >= stop)
+            throw new IllegalArgumentException("z range out of bounds");
+        zStart = start;
+        zStop = stop;
+        return this;
+    }
+
+    /**
+     * Number of frames to reconstruct in parallel. Each worker holds its own
+     * set of buffers, see {@link ReconstructionWorkspace#estimateBytes}.
+     */
+    public BatchReconstructor setWorkers(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Need at least one worker");
+        workers = n;
+        return this;
+    }
+
+    /**
+     * Also output widefield and / or filtered widefield images
+     */
+    public BatchReconstructor setWidefield(boolean wf, boolean fwf) {
+        compWidefield = wf;
+        compFilteredWidefield = fwf;
+        return this;
+    }
+
+    /**
+     * Subtract a constant background from the raw images, negative values to switch off
+     */
+    public BatchReconstructor setBackground(double bgr) {
+        background = bgr;
+        return this;
+    }
+
+    /**
+     * Width of the cosine fade applied to the raw image borders (pxl)
+     */
+    public BatchReconstructor setFadeBorder(int px) {
+        fadeBorder = px;
+        return this;
+    }
+
+    /**
+     * Refit the SIM parameters for every frame, off by default. The parameters
+     * passed in then serve as starting point, each frame is reconstructed
+     * with its own snapshot of the refitted parameters.
+     *
+     * @param fitBand    Which band to fit band 0 against
+     * @param fitExclude Portion of OTF support to exclude
+     */
+    public BatchReconstructor setEstimation(boolean on, int fitBand, double fitExclude) {
+        estimate = on;
+        this.fitBand = Math.min(fitBand, param.nrBand() - 1);
+        this.fitExclude = fitExclude;
+        return this;
+    }
+
+    /**
+     * Track the k-vectors from frame to frame when refitting (see
+     * {@link #setEstimation}), off by default. Each fit starts from the
+     * last one, with a narrow search, and falls back to the full search
+     * when tracking is lost (see {@link ParameterTracker}).
+     *
+     * @param tracker Tracker to use, null to switch tracking off
+     */
+    public BatchReconstructor setTracking(ParameterTracker tracker) {
+        this.tracker = tracker;
+        return this;
+    }
+
+    /**
+     * Number of workers for each stage of {@link #runPipelined}. Several
+     * reconstruction workers each get their own partition of the compute
+     * threads; read and estimation workers use the shared pool.
+     */
+    public BatchReconstructor setStageWorkers(int read, int estimate, int reconstruct, int write) {
+        if (read < 1 || estimate < 1 || reconstruct < 1 || write < 1)
+            throw new IllegalArgumentException("Need at least one worker per stage");
+        stageWorkers = new int[]{read, estimate, reconstruct, write};
+        return this;
+    }
+
+    /**
+     * Capacity of the queues between stages of {@link #runPipelined}
+     */
+    public BatchReconstructor setQueueLength(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Queue length has to be at least 1");
+        queueLength = n;
+        return this;
+    }
+
+    /**
+     * Stop a running reconstruction after the frames currently processed
+     */
+    public void cancel() {
+        cancel = true;
+    }
+
+    /**
+     * Buffers for one frame, reused from frame to frame
+     */
+    private class Frame {
+        int t, z;
+        SimParam param;
+        final Vec2d.Cplx[][] inFFT;
+        final Vec2d.Real[] padded;
+        final Vec2d.Real sim, widefield, filteredWidefield;
+
+        Frame(boolean ownResult) {
+            final int simSize = 2 * imgSize;
+            inFFT = new Vec2d.Cplx[BatchReconstructor.this.param.nrDir()][];
+            for (int d = 0; d < inFFT.length; d++)
+                inFFT[d] = Vec2d.createArrayCplx(BatchReconstructor.this.param.dir(d).nrPha(),
+                        imgSize, imgSize);
+            padded = (img.width != imgSize || img.height != imgSize)
+                    ? (Vec2d.createArrayReal(BatchReconstructor.this.param.getImgPerZ(), imgSize, imgSize))
+                    : (null);
+            sim = (ownResult) ? (Vec2d.createReal(simSize, simSize)) : (null);
+            widefield = (compWidefield) ? (Vec2d.createReal(simSize, simSize)) : (null);
+            filteredWidefield = (compFilteredWidefield) ? (Vec2d.createReal(simSize, simSize)) : (null);
+        }
+
+        // marks the end of the frame stream
+        Frame() {
+            inFFT = null;
+            padded = null;
+            sim = widefield = filteredWidefield = null;
+        }
+
+        // read, FFT and (if enabled) fit the parameters of frame f
+        void load(int f, int nZ) {
+            t = tStart + f / nZ;
+            z = zStart + f % nZ;
+            importFrame(t, z, inFFT, padded);
+            param = BatchReconstructor.this.param;
+        }
+
+        void estimate() {
+            if (!estimate)
+                return;
+            SimParam fit = BatchReconstructor.this.param.duplicate();
+            SimAlgorithm.estimateParameters(fit, inFFT, fitBand, fitExclude, null, 0, null,
+                    false, tracker);
+            param = fit.snapshot();
+        }
+
+        Vec2d.Real reconstruct(ReconstructionWorkspace ws) {
+            return SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1,
+                    false, param.getClipScale(), widefield, filteredWidefield, null);
+        }
+    }
+
+    /**
+     * Run the batch reconstruction.
+     *
+     * @param sink Receives the results
+     * @return Number of frames reconstructed
+     */
+    public int run(final FrameSink sink) {
+
+        final int nZ = zStop - zStart;
+        final int nrFrames = (tStop - tStart) * nZ;
+        final int nw = Math.min(workers, nrFrames);
+        final int[] done = new int[1];
+        cancel = false;
+        prewarm();
+
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+
+        if (nw == 1) {
+            // single worker: run in the calling thread
+            runWorker(0, 1, nrFrames, nZ, sink, done);
+        } else {
+            // each worker on its own share of the compute threads
+            new ComputeResources.PartFor(0, nw) {
+                public void at(int worker) {
+                    runWorker(worker, nw, nrFrames, nZ, sink, done);
+                }
+            };
+        }
+
+        t1.stop();
+        Tool.trace(String.format("Batch reconstruction: %d frames, %d workers, took %s",
+                done[0], nw, t1));
+        return done[0];
+    }
+
+    // create the FFT instances for raw and reconstructed size up front
+    private void prewarm() {
+        final int w = param.vectorWidth();
+        Transforms.prewarm2d(new int[]{w, w}, new int[]{2 * w, 2 * w});
+    }
+
+    // reconstruct every nw-th frame, starting at 'worker'
+    private void runWorker(int worker, int nw, int nrFrames, int nZ,
+                           FrameSink sink, int[] done) {
+
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        Frame fr = new Frame(false);
+
+        for (int f = worker; f < nrFrames; f += nw) {
+            if (cancel)
+                break;
+
+            fr.load(f, nZ);
+            fr.estimate();
+            Vec2d.Real res = fr.reconstruct(ws);
+
+            synchronized (sink) {
+                sink.put(fr.t, fr.z, res, fr.widefield, fr.filteredWidefield);
+                done[0]++;
+                Tool.tell(String.format("Batch: %d/%d frames", done[0], nrFrames));
+            }
+        }
+    }
+
+    /**
+     * Run the batch reconstruction as a pipeline: reading and FFT, parameter
+     * estimation (if enabled), reconstruction and output each run in their own
+     * stage, see {@link #setStageWorkers}. Stages are connected by bounded queues,
+     * so frame t+1 is read while frame t is reconstructed and frame t-1 is
+     * written out. Frame buffers are recycled, a stage that falls behind
+     * stalls the stages before it.
+     *
+     * @param sink Receives the results, called from the output stage
+     * @return Number of frames reconstructed
+     */
+    public int runPipelined(final FrameSink sink) {
+
+        final int nZ = zStop - zStart;
+        final int nrFrames = (tStop - tStart) * nZ;
+        final int nRead = stageWorkers[0], nEst = (estimate) ? (stageWorkers[1]) : (0);
+        final int nRec = stageWorkers[2], nWrite = stageWorkers[3];
+        cancel = false;
+        prewarm();
+
+        // recycled frame buffers, their number bounds the frames in flight
+        final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(
+                nRead + nEst + nRec + nWrite + queueLength);
+        while (free.remainingCapacity() > 0)
+            free.add(new Frame(true));
+
+        final BlockingQueue<Frame> toEst = new ArrayBlockingQueue<Frame>(queueLength);
+        final BlockingQueue<Frame> toRec = new ArrayBlockingQueue<Frame>(queueLength);
+        final BlockingQueue<Frame> toWrite = new ArrayBlockingQueue<Frame>(queueLength);
+
+        final AtomicInteger nextFrame = new AtomicInteger(0);
+        final AtomicInteger done = new AtomicInteger(0);
+        final long[] busy = new long[4];
+
+        final List<Callable<Object>> stages = new ArrayList<Callable<Object>>();
+
+        // read + FFT
+        final AtomicInteger readersLeft = new AtomicInteger(nRead);
+        final BlockingQueue<Frame> afterRead = (estimate) ? (toEst) : (toRec);
+        for (int i = 0; i < nRead; i++)
+            stages.add(new Callable<Object>() {
+                public Object call() throws InterruptedException {
+                    int f;
+                    while (!cancel && (f = nextFrame.getAndIncrement()) < nrFrames) {
+                        Frame fr = free.take();
+                        long t0 = System.nanoTime();
+                        fr.load(f, nZ);
+                        addBusy(busy, 0, t0);
+                        afterRead.put(fr);
+                    }
+                    if (readersLeft.decrementAndGet() == 0)
+                        endStream(afterRead, (estimate) ? (nEst) : (nRec));
+                    return null;
+                }
+            });
+
+        // parameter estimation
+        final AtomicInteger estLeft = new AtomicInteger(nEst);
+        for (int i = 0; i < nEst; i++)
+            stages.add(new Callable<Object>() {
+                public Object call() throws InterruptedException {
+                    Frame fr;
+                    while ((fr = toEst.take()) != END) {
+                        long t0 = System.nanoTime();
+                        fr.estimate();
+                        addBusy(busy, 1, t0);
+                        toRec.put(fr);
+                    }
+                    if (estLeft.decrementAndGet() == 0)
+                        endStream(toRec, nRec);
+                    return null;
+                }
+            });
+
+        // reconstruction, each worker with its own workspace and,
+        // if there are several, its own share of the compute threads
+        final ComputeResources.Partition[] recPart = acquirePartitions(nRec);
+        final AtomicInteger recLeft = new AtomicInteger(nRec);
+        for (int i = 0; i < nRec; i++) {
+            final ComputeResources.Partition part = recPart[i];
+            stages.add(new Callable<Object>() {
+                public Object call() throws InterruptedException {
+                    final ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+                    Frame fr;
+                    while ((fr = toRec.take()) != END) {
+                        long t0 = System.nanoTime();
+                        final Frame cur = fr;
+                        Runnable rec = new Runnable() {
+                            public void run() {
+                                cur.sim.copy(cur.reconstruct(ws));
+                            }
+                        };
+                        if (part != null)
+                            part.run(rec);
+                        else
+                            rec.run();
+                        addBusy(busy, 2, t0);
+                        toWrite.put(fr);
+                    }
+                    if (recLeft.decrementAndGet() == 0)
+                        endStream(toWrite, nWrite);
+                    return null;
+                }
+            });
+        }
+
+        // output
+        for (int i = 0; i < nWrite; i++)
+            stages.add(new Callable<Object>() {
+                public Object call() throws InterruptedException {
+                    Frame fr;
+                    while ((fr = toWrite.take()) != END) {
+                        long t0 = System.nanoTime();
+                        synchronized (sink) {
+                            sink.put(fr.t, fr.z, fr.sim, fr.widefield, fr.filteredWidefield);
+                            Tool.tell(String.format("Batch: %d/%d frames",
+                                    done.incrementAndGet(), nrFrames));
+                        }
+                        addBusy(busy, 3, t0);
+                        free.put(fr);
+                    }
+                    return null;
+                }
+            });
+
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+
+        // stage threads block on the queues, so they get their own pool
+        ExecutorService pool = Executors.newFixedThreadPool(stages.size());
+        CompletionService<Object> cs = new ExecutorCompletionService<Object>(pool);
+        try {
+            for (Callable<Object> c : stages)
+                cs.submit(c);
+            for (int i = 0; i < stages.size(); i++)
+                cs.take().get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Batch reconstruction failed: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Batch reconstruction interrupted");
+        } finally {
+            pool.shutdownNow();
+            for (ComputeResources.Partition p : recPart)
+                if (p != null)
+                    p.release();
+        }
+
+        t1.stop();
+        Tool.trace(String.format("Batch pipeline: %d frames, took %s, busy (ms): " +
+                        "read %d x %.0f, estimate %d x %.0f, reconstruct %d x %.0f, output %d x %.0f",
+                done.get(), t1, nRead, busy[0] / 1e6, nEst, busy[1] / 1e6,
+                nRec, busy[2] / 1e6, nWrite, busy[3] / 1e6));
+        return done.get();
+    }
+
+    // partitions of the thread budget for 'n' concurrent reconstructions,
+    // all null if there is only one or more than threads in the budget
+    private static ComputeResources.Partition[] acquirePartitions(int n) {
+        ComputeResources.Partition[] ret = new ComputeResources.Partition[n];
+        final int b = ComputeResources.getThreadBudget();
+        if (n < 2 || n > b)
+            return ret;
+        try {
+            for (int i = 0; i < n; i++)
+                ret[i] = ComputeResources.acquire(b / n + ((i < b % n) ? (1) : (0)));
+        } catch (InterruptedException e) {
+            for (ComputeResources.Partition p : ret)
+                if (p != null)
+                    p.release();
+            throw new RuntimeException("Batch reconstruction interrupted");
+        }
+        return ret;
+    }
+
+    // marks the end of the frame stream
+    private final Frame END = new Frame();
+
+    // pass the end marker to all workers of the next stage
+    private void endStream(BlockingQueue<Frame> q, int workers) throws InterruptedException {
+        for (int i = 0; i < workers; i++)
+            q.put(END);
+    }
+
+    private static void addBusy(long[] busy, int stage, long t0) {
+        long dt = System.nanoTime() - t0;
+        synchronized (busy) {
+            busy[stage] += dt;
+        }
+    }
+
+    // read, preprocess and FFT the raw images of one frame
+    private void importFrame(int t, int z, Vec2d.Cplx[][] inFFT, Vec2d.Real[] padded) {
+        final boolean doResize = (img.width != imgSize || img.height != imgSize);
+        final Vec2d.Real[] raw = new Vec2d.Real[param.getImgPerZ()];
+        final Vec2d.Cplx[] out = new Vec2d.Cplx[raw.length];
+        int i = 0;
+
+        for (int d = 0; d < param.nrDir(); d++)
+            for (int p = 0; p < param.dir(d).nrPha(); p++) {
+
+                int pos = param.getImgSeq().calcPosWithTime(d, p, z, t,
+                        param.nrDir(), param.nrPha(), nrZ);
+
+                Vec2d.Real cur;
+                synchronized (source) {
+                    cur = source.getImage(img, pos);
+                }
+                if (cur == null)
+                    throw new IllegalStateException("Could not read raw image " + pos);
+                cur = cur.duplicate();
+
+                if (background >= 0)
+                    SimUtils.subtractBackground(cur, background);
+                SimUtils.fadeBorderCos(cur, fadeBorder);
+
+                if (doResize) {
+                    padded[i].zero();
+                    padded[i].paste(cur, 0, 0, false);
+                    cur = padded[i];
+                }
+
+                raw[i] = cur;
+                out[i++] = inFFT[d][p];
+            }
+
+        Transforms.fft2dRealBatch(raw, out);
+    }
+
+    /**
+     * The lowest multiple of 32 larger or equal to 'in'
+     */
+    static int next32(int in) {
+        return ((in + 31) / 32) * 32;
+    }
+
+
+    /**
+     * For testing: batch reconstruction of a simulated time series,
+     * with one and with several workers and as pipeline (with simulated
+     * read latency), compared to a direct reconstruction.
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (256);
+        final int nrT = (args.length > 1) ? (Integer.parseInt(args[1])) : (6);
+        final int nw = (args.length > 2) ? (Integer.parseInt(args[2])) : (2);
+
+        final SimParam param = SimUtils.simulatedParam(size);
+        for (int d = 0; d < param.nrDir(); d++)
+            param.dir(d).setPhaOff(0.3 * d + 0.1);
+
+        // simulated raw stack: object moving over time, PAZ order
+        final Vec2d.Real[] stack = new Vec2d.Real[nrT * param.getImgPerZ()];
+        for (int t = 0; t < nrT; t++) {
+            Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(param, 42, 0, 3 * t);
+            for (int d = 0; d < param.nrDir(); d++)
+                for (int p = 0; p < param.nrPha(); p++) {
+                    Vec2d.Real r = Vec2d.createReal(size, size);
+                    Transforms.ifft2dReal(inFFT[d][p], r);
+                    stack[param.getImgSeq().calcPosWithTime(d, p, 0, t,
+                            param.nrDir(), param.nrPha(), 1)] = r;
+                }
+        }
+
+        final int readLatency = 20;    // ms per raw image
+        ImageSelector sel = new ImageSelector() {
+            final ImageInfo info = new ImageInfo(size, size, stack.length, 0.08, "simulated", 0);
+
+            public int getOpenImageCount() {
+                return 1;
+            }
+
+            public ImageInfo[] getOpenImages() {
+                return new ImageInfo[]{info};
+            }
+
+            public Vec2d.Real getImage(ImageInfo w, int pos) {
+                try {
+                    Thread.sleep(readLatency);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return stack[pos];
+            }
+
+            public Vec2d.Real[] getImages(ImageInfo w) {
+                return stack;
+            }
+        };
+
+        // collect results for 1 and nw workers, and the pipeline
+        final Vec2d.Real[][] res = new Vec2d.Real[3][nrT];
+        Tool.Timer[] tm = {Tool.getTimer(), Tool.getTimer(), Tool.getTimer()};
+        for (int run = 0; run < 3; run++) {
+            final int r = run;
+            BatchReconstructor br = new BatchReconstructor(param, sel, sel.getOpenImages()[0], 1)
+                    .setWorkers((run == 1) ? (nw) : (1));
+            FrameSink sink = new FrameSink() {
+                public void put(int t, int z, Vec2d.Real sim, Vec2d.Real wf, Vec2d.Real fwf) {
+                    res[r][t] = sim.duplicate();
+                }
+            };
+            tm[run].start();
+            if (run < 2)
+                br.run(sink);
+            else
+                br.runPipelined(sink);
+            tm[run].stop();
+        }
+
+        // direct reconstruction of the last time point
+        Vec2d.Cplx[][] inFFT = new Vec2d.Cplx[param.nrDir()][param.nrPha()];
+        for (int d = 0; d < param.nrDir(); d++)
+            for (int p = 0; p < param.nrPha(); p++) {
+                Vec2d.Real r = stack[param.getImgSeq().calcPosWithTime(d, p, 0, nrT - 1,
+                        param.nrDir(), param.nrPha(), 1)].duplicate();
+                SimUtils.fadeBorderCos(r, 10);
+                inFFT[d][p] = Vec2d.createCplx(size, size);
+                Transforms.fft2dReal(r, inFFT[d][p]);
+            }
+        Vec2d.Real direct = SimAlgorithm.runReconstruction(param, inFFT,
+                new ReconstructionWorkspace(param), null, -1, false,
+                param.getClipScale(), null, null, null);
+
+        double dWorkers = 0, dDirect = 0;
+        for (int t = 0; t < nrT; t++) {
+            dWorkers = Math.max(dWorkers, relDiff(res[1][t], res[0][t]));
+            dWorkers = Math.max(dWorkers, relDiff(res[2][t], res[0][t]));
+        }
+        dDirect = relDiff(res[0][nrT - 1], direct);
+
+        // real file I/O: raw stack read slice by slice from a TIFF file,
+        // results streamed to a TIFF file, serial vs. pipelined
+        double dFile = 0;
+        Tool.Timer[] tf = {Tool.getTimer(), Tool.getTimer()};
+        try {
+            final java.io.File rawFile = java.io.File.createTempFile("fairsim-raw", ".tif");
+            final java.io.File outFile = java.io.File.createTempFile("fairsim-sim", ".tif");
+            rawFile.deleteOnExit();
+            outFile.deleteOnExit();
+            TiffStackWriter rw = new TiffStackWriter(rawFile.getPath(), size, size, 1, stack.length, 0.08);
+            for (int i = 0; i < stack.length; i++)
+                rw.write(i, 0, stack[i]);
+            rw.close();
+
+            ImageSelector fileSel = new ImageSelector() {
+                final ImageInfo info = new ImageInfo(size, size, stack.length, 0.08, "file", 0);
+
+                public int getOpenImageCount() {
+                    return 1;
+                }
+
+                public ImageInfo[] getOpenImages() {
+                    return new ImageInfo[]{info};
+                }
+
+                public Vec2d.Real getImage(ImageInfo w, int pos) {
+                    Vec2d.Real r = Vec2d.createReal(size, size);
+                    try {
+                        System.arraycopy(TiffStackWriter.readSlice(rawFile.getPath(), pos), 0,
+                                r.vectorData(), 0, size * size);
+                    } catch (java.io.IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    r.syncBuffer();
+                    return r;
+                }
+
+                public Vec2d.Real[] getImages(ImageInfo w) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+            for (int run = 0; run < 2; run++) {
+                final TiffStackWriter ow = new TiffStackWriter(outFile.getPath(),
+                        2 * size, 2 * size, 1, nrT, 0.04);
+                FrameSink sink = new FrameSink() {
+                    public void put(int t, int z, Vec2d.Real sim, Vec2d.Real wf, Vec2d.Real fwf) {
+                        try {
+                            ow.write(t, z, sim);
+                        } catch (java.io.IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                BatchReconstructor br = new BatchReconstructor(param, fileSel, fileSel.getOpenImages()[0], 1);
+                tf[run].start();
+                if (run == 0)
+                    br.run(sink);
+                else
+                    br.runPipelined(sink);
+                ow.close();
+                tf[run].stop();
+
+                for (int t = 0; t < nrT; t++) {
+                    Vec2d.Real r = Vec2d.createReal(2 * size, 2 * size);
+                    System.arraycopy(TiffStackWriter.readSlice(outFile.getPath(), t), 0,
+                            r.vectorData(), 0, r.vectorSize());
+                    dFile = Math.max(dFile, relDiff(r, res[0][t]));
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Tool.trace(String.format("%d frames %dx%d, read latency %d ms/image: " +
+                        "1 worker %s, %d workers %s, pipeline %s",
+                nrT, size, size, readLatency, tm[0], nw, tm[1], tm[2]));
+        Tool.trace(String.format("%d frames %dx%d, TIFF file in and out: serial %s, pipeline %s",
+                nrT, size, size, tf[0], tf[1]));
+        Tool.trace(String.format("rel. difference workers: %5.3e, file output: %5.3e, batch vs. direct: %5.3e %s",
+                dWorkers, dFile, dDirect, (dWorkers < 1e-5 && dFile < 1e-5 && dDirect < 1e-5) ? "OK" : "FAIL"));
+
+        Tool.shutdown();
+    }
+
+    // relative L2 difference
+    private static double relDiff(Vec2d.Real a, Vec2d.Real ref) {
+        float[] x = a.vectorData(), r = ref.vectorData();
+        double diff = 0, norm = 0;
+        for (int i = 0; i < x.length; i++) {
+            diff += (x[i] - r[i]) * (x[i] - r[i]);
+            norm += r[i] * r[i];
+        }
+        return Math.sqrt(diff / norm);
+    }
+
+}
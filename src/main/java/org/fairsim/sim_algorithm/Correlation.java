@@ -19,6 +19,7 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 package org.fairsim.sim_algorithm;
 
 import org.fairsim.linalg.Cplx;
+import org.fairsim.linalg.PhaseRamp;
 import org.fairsim.linalg.Transforms;
 import org.fairsim.linalg.Vec2d;
 import org.fairsim.utils.SimpleMT;
@@ -50,10 +51,59 @@ public class Correlation {
                                    double kx, double ky, double weightLimit,
                                    double search, Vec2d.Real cntrl
     ) {
+        return fitPeak(band0, band1, bn0, bn1, otf, kx, ky, weightLimit, search, cntrl, false, false);
+    }
+
+    /**
+     * Fits SIM parameters by cross-correlation of common frequency components,
+     * see {@link #fitPeak(Vec2d.Cplx, Vec2d.Cplx, int, int, OtfProvider, double, double, double, double, Vec2d.Real)}.
+     * <p>
+     * With 'fast', the correlations of each 10x10 grid are evaluated directly as
+     * DFT coefficients of the real-space product band1*conj(band0) (see
+     * {@link PhaseRamp#correlate}), instead of Fourier-shifting a copy of band1
+     * for every grid point. Results agree with the shift-based search to
+     * float precision.
+     * <p>
+     * With 'polish', the peak found by the last grid is refined further by
+     * gradient ascent on the correlation magnitude, to well below the grid spacing.
+     *
+     * @param fast   evaluate the grid by direct DFT of the product
+     * @param polish refine the final position by gradient ascent
+     */
+    public static double[] fitPeak(Vec2d.Cplx band0, Vec2d.Cplx band1,
+                                   int bn0, int bn1, OtfProvider otf,
+                                   double kx, double ky, double weightLimit,
+                                   double search, Vec2d.Real cntrl,
+                                   boolean fast, boolean polish
+    ) {
+        return fitPeak(band0, band1, bn0, bn1, otf, kx, ky, weightLimit, search, cntrl,
+                fast, polish, false);
+    }
+
+    /**
+     * Fits SIM parameters by cross-correlation of common frequency components,
+     * see {@link #fitPeak(Vec2d.Cplx, Vec2d.Cplx, int, int, OtfProvider, double, double, double, double, Vec2d.Real, boolean, boolean)}.
+     * <p>
+     * With 'crop', only the region where the bands overlap is transformed
+     * to real space: both bands are cut to the smallest square that holds
+     * the overlap (see {@link #cropOverlap}), with the integer part of the
+     * shift taken up by the crop positions. This saves most of the FFT work
+     * for large images, results agree with the full fit to a few 1/1000 pxl.
+     *
+     * @param crop restrict the fit to the overlap of the bands
+     */
+    public static double[] fitPeak(Vec2d.Cplx band0, Vec2d.Cplx band1,
+                                   int bn0, int bn1, OtfProvider otf,
+                                   double kx, double ky, double weightLimit,
+                                   double search, Vec2d.Real cntrl,
+                                   boolean fast, boolean polish, boolean crop
+    ) {
 
         Vec2d.failSize(band0, band1);
         Tool.Timer t1 = Tool.getTimer();
         double resPhase = 0, resMag = 0;
+        Vec2d.Cplx lastB0 = null, lastB1 = null;
+        int lastOx = 0, lastOy = 0;
 
         // loop iterations, each iteration does closer search
         for (int iter = 0; iter < 3; iter++) {
@@ -61,15 +111,29 @@ public class Correlation {
             Tool.tell("fitting peak " + (iter + 1) + "/3");
 
             // copy input data
-            final Vec2d.Cplx b0 = band0.duplicate();
-            final Vec2d.Cplx b1 = band1.duplicate();
+            Vec2d.Cplx c0 = band0.duplicate();
+            Vec2d.Cplx c1 = band1.duplicate();
 
             // define common region, with current search guess
-            commonRegion(b0, b1, bn0, bn1, otf, kx, ky, 0.15, weightLimit, true);
+            commonRegion(c0, c1, bn0, bn1, otf, kx, ky, 0.15, weightLimit, true);
+
+            // if cropping to the overlap, the crop positions hold the
+            // integer part (ox,oy) of the shift
+            int ox = 0, oy = 0;
+            if (crop) {
+                int sx = (int) Math.round(kx), sy = (int) Math.round(-ky);
+                Vec2d.Cplx[] cr = cropOverlap(c0, c1, sx, sy, search);
+                if (cr != null) {
+                    c0 = cr[0];
+                    c1 = cr[1];
+                    ox = sx;
+                    oy = sy;
+                }
+            }
+            final Vec2d.Cplx b0 = c0, b1 = c1;
 
             // go to real space
-            Transforms.fft2d(b0, true);
-            Transforms.fft2d(b1, true);
+            Transforms.fft2dBatch(new Vec2d.Cplx[]{b0, b1}, true);
 
             // store all correlations
             final Cplx.Double[][] corr = new Cplx.Double[10][10];
@@ -83,7 +147,19 @@ public class Correlation {
             // loop 10x10 points +-search around starting guess
             // ( good outer loop to do in parallel )
             final double tkx = kx, tky = ky, ts = search;
-            new SimpleMT.PFor(0, 10 * 10) {
+            final int tox = ox, toy = oy;
+            if (fast) {
+                double[] xpos = new double[10], ypos = new double[10];
+                for (int i = 0; i < 10; i++) {
+                    xpos[i] = tkx + ((i - 4.5) / 4.5) * ts - tox;
+                    ypos[i] = -(tky + ((i - 4.5) / 4.5) * ts) - toy;
+                }
+                Cplx.Double[][] c = PhaseRamp.correlate(b1.vectorData(), b0.vectorData(),
+                        b0.vectorWidth(), xpos, ypos);
+                for (int yi = 0; yi < 10; yi++)
+                    for (int xi = 0; xi < 10; xi++)
+                        corr[xi][yi] = Cplx.mult(c[xi][yi], scal);
+            } else new SimpleMT.PFor(0, 10 * 10) {
                 public void at(int p) {
 
                     // compute position to shift to
@@ -92,9 +168,11 @@ public class Correlation {
                     double xpos = tkx + ((xi - 4.5) / 4.5) * ts;
                     double ypos = tky + ((yi - 4.5) / 4.5) * ts;
 
-                    // copy and Fourier-shift band1
+                    // copy and Fourier-shift band1 (one-off position, ramps not cached)
                     Vec2d.Cplx b1s = b1.duplicate();
-                    b1s.fourierShift(xpos, -ypos);
+                    PhaseRamp.timesShift(b1s.vectorData(), Vec2d.checkSquare(b1s),
+                            xpos - tox, -ypos - toy, false);
+                    b1s.syncBuffer();
 
                     // get correlation by multiplication, summing elements, scaling by b0
                     b1s.timesConj(b0);
@@ -132,6 +210,22 @@ public class Correlation {
             Tool.trace(String.format("Peak, new kx,ky now: %6.3f %6.3f (%6.3f) pha %6.3f mag %5.4e",
                     kx, ky, Math.hypot(ky, kx), resPhase, resMag));
             search /= 5;
+            lastB0 = b0;
+            lastB1 = b1;
+            lastOx = ox;
+            lastOy = oy;
+        }
+
+        // refine by gradient ascent, on the data of the last grid
+        if (polish) {
+            double[] res = polishPeak(lastB1, lastB0, kx - lastOx, ky + lastOy, search);
+            kx = res[0] + lastOx;
+            ky = res[1] - lastOy;
+            Cplx.Double c = Cplx.mult(new Cplx.Double(res[2], res[3]), 1. / lastB0.norm2());
+            resPhase = c.phase();
+            resMag = c.hypot();
+            Tool.trace(String.format("Peak, polished kx,ky:   %6.3f %6.3f (%6.3f) pha %6.3f mag %5.4e",
+                    kx, ky, Math.hypot(ky, kx), resPhase, resMag));
         }
 
         t1.stop();
@@ -142,6 +236,112 @@ public class Correlation {
     }
 
 
+    /**
+     * Cuts the overlap of two bands (as masked by {@link #commonRegion}) out
+     * of the full spectra. 'b1', shifted by the integer index offset
+     * (sx, sy), overlaps with 'b0'. Both are cut to the same square, centred
+     * on the overlap for b0 and on the overlap minus the offset for b1, large
+     * enough that shifting b1 by a further +-search does not wrap it onto b0.
+     *
+     * @return The cropped b0, b1, or null if the crop would not be smaller
+     */
+    static Vec2d.Cplx[] cropOverlap(Vec2d.Cplx b0, Vec2d.Cplx b1, int sx, int sy, double search) {
+        final int w = b0.vectorWidth(), h = b0.vectorHeight();
+        if (w != h)
+            return null;
+
+        // centres of the overlap in b0 and b1
+        final int g0x = sx / 2, g0y = sy / 2;
+        final int g1x = g0x - sx, g1y = g0y - sy;
+        final int l0 = extent(b0, g0x, g0y), l1 = extent(b1, g1x, g1y);
+
+        int m = Math.max(l0 + l1 + (int) Math.ceil(search) + 2, 2 * Math.max(l0, l1) + 2);
+        m = ((m + 31) / 32) * 32;
+        if (m >= w)
+            return null;
+
+        return new Vec2d.Cplx[]{cropAround(b0, g0x, g0y, m), cropAround(b1, g1x, g1y, m)};
+    }
+
+    // largest distance (max-norm, with wrap-around) of a non-zero element to (gx, gy)
+    private static int extent(Vec2d.Cplx v, int gx, int gy) {
+        final int w = v.vectorWidth(), h = v.vectorHeight();
+        final float[] d = v.vectorData();
+        int l = 0;
+        for (int y = 0; y < h; y++) {
+            int dy = Math.abs(centred(y - gy, h));
+            for (int x = 0; x < w; x++)
+                if (d[2 * (y * w + x)] != 0 || d[2 * (y * w + x) + 1] != 0)
+                    l = Math.max(l, Math.max(Math.abs(centred(x - gx, w)), dy));
+        }
+        return l;
+    }
+
+    // m x m spectrum, element u holds element g+u of 'in', for u in [-m/2, m/2)
+    private static Vec2d.Cplx cropAround(Vec2d.Cplx in, int gx, int gy, int m) {
+        final int w = in.vectorWidth(), h = in.vectorHeight();
+        final float[] id = in.vectorData();
+        Vec2d.Cplx out = Vec2d.createCplx(m, m);
+        final float[] od = out.vectorData();
+        for (int v = -m / 2; v < m / 2; v++) {
+            int yi = wrap(gy + v, h), yo = wrap(v, m);
+            for (int u = -m / 2; u < m / 2; u++) {
+                int xi = wrap(gx + u, w), xo = wrap(u, m);
+                od[2 * (yo * m + xo) + 0] = id[2 * (yi * w + xi) + 0];
+                od[2 * (yo * m + xo) + 1] = id[2 * (yi * w + xi) + 1];
+            }
+        }
+        out.syncBuffer();
+        return out;
+    }
+
+    // wrap index i into [0, n)
+    private static int wrap(int i, int n) {
+        return ((i % n) + n) % n;
+    }
+
+    // wrap index i into [-n/2, n/2)
+    private static int centred(int i, int n) {
+        int r = wrap(i, n);
+        return (r < n / 2) ? (r) : (r - n);
+    }
+
+
+    /**
+     * Maximizes |corr|^2 of b1 (shifted to kx,-ky) with b0 by gradient ascent,
+     * starting at kx,ky with step size 'step'. The step grows on success
+     * and shrinks on failure, until it drops below 1e-4 pxl.
+     *
+     * @return kx, ky, re and im of the (unscaled) correlation
+     */
+    static double[] polishPeak(Vec2d.Cplx b1, Vec2d.Cplx b0, double kx, double ky, double step) {
+        final float[] a = b1.vectorData(), b = b0.vectorData();
+        final int N = b0.vectorWidth();
+
+        double[] cur = PhaseRamp.correlateWithGradient(a, b, N, kx, -ky);
+        int steps = 0;
+        while (step > 1e-4 && steps++ < 50) {
+            // gradient of |c|^2, with the sign of ky flipped back
+            double gx = 2 * (cur[0] * cur[2] + cur[1] * cur[3]);
+            double gy = -2 * (cur[0] * cur[4] + cur[1] * cur[5]);
+            double gn = Math.hypot(gx, gy);
+            if (gn == 0)
+                break;
+            double nkx = kx + step * gx / gn, nky = ky + step * gy / gn;
+            double[] next = PhaseRamp.correlateWithGradient(a, b, N, nkx, -nky);
+            if (next[0] * next[0] + next[1] * next[1] > cur[0] * cur[0] + cur[1] * cur[1]) {
+                kx = nkx;
+                ky = nky;
+                cur = next;
+                step *= 1.5;
+            } else {
+                step *= 0.5;
+            }
+        }
+        return new double[]{kx, ky, cur[0], cur[1]};
+    }
+
+
     /**
      * Locates position, magnitute and phase of the highest peak
      * in 'vec'.
@@ -205,8 +405,7 @@ public class Correlation {
         commonRegion(b0, b1, bn0, bn1, otf, kx, ky, 0.15, weightLimit, true);
 
         // go to real space
-        Transforms.fft2d(b0, true);
-        Transforms.fft2d(b1, true);
+        Transforms.fft2dBatch(new Vec2d.Cplx[]{b0, b1}, true);
 
         // Fourier-shift band1 to correct position
         b1.fourierShift(kx, -ky);
@@ -240,7 +439,7 @@ public class Correlation {
      */
     public static void commonRegion(Vec2d.Cplx band0, Vec2d.Cplx band1,
                                     int bn0, int bn1, OtfProvider otf, final double kx, final double ky,
-                                    double dist, double weightLimit, boolean divideByOtf) {
+                                    final double dist, final double weightLimit, final boolean divideByOtf) {
 
         Vec2d.failSize(band0, band1);
         final int w = band0.vectorWidth(), h = band0.vectorHeight();
@@ -255,50 +454,76 @@ public class Correlation {
         otf.writeOtfVector(wt0, bn0, kx, ky);
         otf.writeOtfVector(wt1, bn1, -kx, -ky);
 
-        int cutCount = 0;
+        final float[] w0 = weight0.vectorData(), w1 = weight1.vectorData();
+        final float[] t0 = wt0.vectorData(), t1 = wt1.vectorData();
+        final float[] d0 = band0.vectorData(), d1 = band1.vectorData();
+        final double max = Math.sqrt(kx * kx + ky * ky);
 
         // place the weight1 at its presumed position (currently, to pxl. prec)
-        for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++) {
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                for (int x = 0; x < w; x++) {
+                    final int i = y * w + x;
+
+                    // set zero if minimal weight not reached in one or both OTFs
+                    if ((abs(w0, i) < weightLimit) || (abs(t0, i) < weightLimit)) {
+                        d0[2 * i] = d0[2 * i + 1] = 0;
+                    } else {
+                        if (divideByOtf)
+                            div(d0, w0, i);
+                    }
+                    if ((abs(w1, i) < weightLimit) || (abs(t1, i) < weightLimit)) {
+                        d1[2 * i] = d1[2 * i + 1] = 0;
+                    } else {
+                        if (divideByOtf)
+                            div(d1, w1, i);
+                    }
 
-                // distance to DC component
-                double rad = Math.sqrt(
-                        ((x < w / 2) ? (x * x) : ((x - w) * (x - w))) + ((y < h / 2) ? (y * y) : ((y - h) * (y - h))));
-                double max = Math.sqrt(kx * kx + ky * ky);
-
-                double ratio = rad / max;
-
-                // set zero if minimal weight not reached in one or both OTFs
-                if ((weight0.get(x, y).abs() < weightLimit)
-                        || (wt0.get(x, y).abs() < weightLimit)) {
-                    cutCount++;
-                    band0.set(x, y, Cplx.Float.zero());
-                } else {
-                    if (divideByOtf)
-                        band0.set(x, y, band0.get(x, y).div(weight0.get(x, y)));
-                }
-                if ((weight1.get(x, y).abs() < weightLimit)
-                        || (wt1.get(x, y).abs() < weightLimit)) {
-                    band1.set(x, y, Cplx.Float.zero());
-                } else {
-                    if (divideByOtf)
-                        band1.set(x, y, band1.get(x, y).div(weight1.get(x, y)));
+                    // set zero around DC component
+                    if (nearCenter(x, y, w, h, max, dist))
+                        d0[2 * i] = d0[2 * i + 1] = 0;
                 }
+            }
+        };
+
+        // same for band1, around its own center. Separate pass, as it
+        // writes other rows than it reads
+        final int ix = (int) kx, iy = (int) ky;
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                final int yt = (y + iy + h) % h;
+                for (int x = 0; x < w; x++)
+                    if (nearCenter(x, y, w, h, max, dist)) {
+                        final int i = yt * w + (x - ix + w) % w;
+                        d1[2 * i] = d1[2 * i + 1] = 0;
+                    }
+            }
+        };
+        band0.syncBuffer();
+        band1.syncBuffer();
 
-                // set zero around DC component
-                if ((ratio < dist) || (ratio > (1 - dist))) {
-                    band0.set(x, y, Cplx.Float.zero());
-                    band1.set(
-                            (x - (int) kx + w) % w,
-                            (y + (int) ky + h) % h,
-                            Cplx.Float.zero());
-                    cutCount++;
-                }
+    }
 
-            }
+    // abs of element i, as Cplx.Float.abs
+    private static float abs(float[] v, int i) {
+        return (float) Math.sqrt((double) v[2 * i] * v[2 * i] + (double) v[2 * i + 1] * v[2 * i + 1]);
+    }
 
-        //Tool.trace("Cuts: "+cutCount+"/"+(w*h)+" --> "+(float)cutCount/(w*h));
+    // v[i] /= wt[i], as Cplx.div
+    private static void div(float[] v, float[] wt, int i) {
+        final float s = wt[2 * i] * wt[2 * i] + wt[2 * i + 1] * wt[2 * i + 1];
+        final float rr = wt[2 * i] / s, ri = -wt[2 * i + 1] / s;
+        final float re = v[2 * i], im = v[2 * i + 1];
+        v[2 * i] = re * rr - im * ri;
+        v[2 * i + 1] = re * ri + im * rr;
+    }
 
+    // relative distance to DC (fraction of 'max') below 'dist' or above 1-'dist'
+    private static boolean nearCenter(int x, int y, int w, int h, double max, double dist) {
+        double rad = Math.sqrt(
+                ((x < w / 2) ? (x * x) : ((x - w) * (x - w))) + ((y < h / 2) ? (y * y) : ((y - h) * (y - h))));
+        double ratio = rad / max;
+        return (ratio < dist) || (ratio > (1 - dist));
     }
 
 
@@ -315,10 +540,9 @@ public class Correlation {
         Vec2d.Cplx aV = Vec2d.createCplx(inV, 2);
         Vec2d.Cplx bV = Vec2d.createCplx(inV, 2);
         SimUtils.placeFreq(inV, aV);
-        SimUtils.placeFreq(inV, bV);
 
         // move one copy to its new position kx, ky
-        Transforms.fft2d(bV, true);
+        Transforms.pasteFreqIfft2d(inV, bV, 0, 0);
         Transforms.timesShiftVector(bV, kx, -ky);
         Transforms.fft2d(bV, false);
 
@@ -340,5 +564,56 @@ public class Correlation {
     }
 
 
-}
+    /**
+     * For testing: fits the peak on simulated data with the shift-based
+     * grid search, the fast grid and the fast grid with polishing, and
+     * compares results and timings
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final int reps = (args.length > 1) ? (Integer.parseInt(args[1])) : (3);
+
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam param = SimParam.create(3, 1, 5, size, 0.08, otf);
+        final double kx = 0.2317 * size * Math.cos(0.3), ky = 0.2317 * size * Math.sin(0.3);
+        param.dir(0).setPxPy(2 * kx, 2 * ky);    // k of the outer band
+        param.dir(0).setPhaOff(0.4);
+
+        // simulated raw data of one direction
+        Vec2d.Cplx[] inFFT = SimUtils.simulateRaw(param, 42, 0)[0];
+        Vec2d.Cplx[] separate = Vec2d.createArrayCplx(5, size, size);
+        BandSeparation.separateBands(inFFT, separate, 0, 3, null);
+
+        // coarse start, as from the correlation peak
+        final double sx = -Math.round(2 * kx), sy = -Math.round(2 * ky);
+
+        String[] names = {"grid", "fast", "fast+polish"};
+        double[][] res = new double[3][];
+        for (int m = 0; m < 3; m++) {
+            Tool.Timer t = Tool.getTimer();
+            for (int r = 0; r < reps; r++) {
+                if (r == 1)
+                    t.start();
+                res[m] = fitPeak(separate[0], separate[3], 0, 2, otf, sx, sy, 0.05, 2.5, null,
+                        m > 0, m > 1);
+            }
+            t.stop();
+            Tool.trace(String.format("%12s: kx %9.5f ky %9.5f (err %7.5f pxl) pha %7.4f mag %5.4e, %s",
+                    names[m], -res[m][0], -res[m][1], Math.hypot(res[m][0] + 2 * kx, res[m][1] + 2 * ky),
+                    res[m][2], res[m][3], t));
+        }
 
+        // fast grid has to hit the same grid point, polishing may only improve
+        double dk = Math.hypot(res[1][0] - res[0][0], res[1][1] - res[0][1]);
+        double dm = Math.abs(res[1][3] / res[0][3] - 1);
+        double dp = Math.abs(res[1][2] - res[0][2]);
+        boolean polishOk = res[2][3] >= res[1][3] * (1 - 1e-6);
+        Tool.trace(String.format("fast vs. grid: dk %6.3e, rel. dmag %6.3e, dpha %6.3e, polish %s -> %s",
+                dk, dm, dp, (polishOk) ? ("improves") : ("worse"),
+                (dk < 1e-9 && dm < 1e-4 && dp < 1e-4 && polishOk) ? ("OK") : ("FAIL")));
+
+        SimpleMT.shutdown();
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.Tool;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for the filter vectors of the Wiener reconstruction
+ * (shifted OTFs, Wiener denominator times APO, widefield denominator). These only depend on
+ * image size, k-vectors, OTF, attenuation, Wiener and APO parameters,
+ * so for a time series they can be computed once and reused for
+ * every frame. Entries are keyed by a fingerprint of these parameters,
+ * and evicted least-recently-used first once the byte budget is exceeded.
+ */
+public class FilterKernelCache {
+
+    /**
+     * The filter vectors for one parameter set
+     */
+    public static class Kernels {
+
+        final Vec2d.Cplx[][] otf;    // [dir][comp], shifted OTF (w. attenuation if on), 2w x 2h
+        final Vec2d.Real denomApo;   // Wiener denominator times APO, 2w x 2h
+        final Vec2d.Real wfDenom;    // Wiener denominator for the widefield, 2w x 2h
+        final long bytes;
+
+        Kernels(Vec2d.Cplx[][] otf, Vec2d.Real denomApo, Vec2d.Real wfDenom) {
+            this.otf = otf;
+            this.denomApo = denomApo;
+            this.wfDenom = wfDenom;
+            long b = (long) (denomApo.vectorSize() + wfDenom.vectorSize()) * 4;
+            for (Vec2d.Cplx[] d : otf)
+                for (Vec2d.Cplx c : d)
+                    b += (long) c.vectorSize() * 8;
+            this.bytes = b;
+        }
+
+        /**
+         * The shifted OTF for direction d, component c
+         * (band*2 for pos, band*2-1 for neg shift)
+         */
+        public Vec2d.Cplx getOtf(int d, int c) {
+            return otf[d][c];
+        }
+
+        /**
+         * The (reciproc) Wiener denominator, multiplied with the APO
+         */
+        public Vec2d.Real getDenominatorApo() {
+            return denomApo;
+        }
+
+        /**
+         * The (reciproc) Wiener denominator for filtering the widefield
+         */
+        public Vec2d.Real getWidefieldDenominator() {
+            return wfDenom;
+        }
+
+        /**
+         * Memory used by this set of vectors, in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Fingerprint of all parameters the filter vectors depend on
+     */
+    static class Fingerprint {
+
+        final OtfProvider otf;
+        final double[] vals;
+        final int hash;
+
+        Fingerprint(SimParam param) {
+            otf = param.otf();
+
+            int n = 0;
+            double[] v = new double[12 + param.nrDir() * param.nrBand() * 2];
+            v[n++] = param.vectorWidth();
+            v[n++] = param.vectorHeight();
+            v[n++] = param.pxlSizeCyclesMicron();
+            v[n++] = otf.getPixelSize();
+            v[n++] = param.nrDir();
+            v[n++] = param.nrBand();
+            v[n++] = (otf.isAttenuate()) ? (1) : (0);
+            v[n++] = otf.getAttStr(0);
+            v[n++] = otf.getAttFWHM(0);
+            v[n++] = param.getWienerFilter();
+            v[n++] = param.getApoCutoff();
+            v[n++] = param.getApoBend();
+            for (int d = 0; d < param.nrDir(); d++)
+                for (int b = 0; b < param.nrBand(); b++) {
+                    v[n++] = param.dir(d).px(b);
+                    v[n++] = param.dir(d).py(b);
+                }
+
+            vals = v;
+            hash = 31 * System.identityHashCode(otf) + Arrays.hashCode(vals);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint))
+                return false;
+            Fingerprint f = (Fingerprint) o;
+            return (f.otf == otf && Arrays.equals(f.vals, vals));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+
+    private static FilterKernelCache defaultCache = null;
+
+    private final LinkedHashMap<Fingerprint, Kernels> entries =
+            new LinkedHashMap<Fingerprint, Kernels>(16, .75f, true);
+
+    private long byteBudget;
+    private long bytesUsed = 0;
+    private int hits = 0, misses = 0;
+
+    /**
+     * Create a new cache
+     *
+     * @param byteBudget Maximum memory used by cached vectors, in bytes
+     */
+    public FilterKernelCache(long byteBudget) {
+        setByteBudget(byteBudget);
+    }
+
+    /**
+     * The cache shared by all reconstructions. Its budget defaults
+     * to a quarter of the maximum heap size.
+     */
+    public static synchronized FilterKernelCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new FilterKernelCache(Runtime.getRuntime().maxMemory() / 4);
+        return defaultCache;
+    }
+
+    /**
+     * Set the maximum memory used by cached vectors, evicting entries
+     * if necessary.
+     *
+     * @param byteBudget Maximum memory, in bytes
+     */
+    public synchronized void setByteBudget(long byteBudget) {
+        if (byteBudget < 0)
+            throw new IllegalArgumentException("Byte budget must not be negative");
+        this.byteBudget = byteBudget;
+        evict();
+    }
+
+    /**
+     * Return the filter vectors for 'param', computing them if
+     * they are not in the cache. The computation runs without holding
+     * the cache's lock (it uses parallel loops itself), so on concurrent
+     * misses for the same parameters the kernels may be computed twice.
+     *
+     * @param param SIM parameters, with OTF and image size set
+     */
+    public Kernels get(SimParam param) {
+        if (param.otf() == null)
+            throw new IllegalArgumentException("No OTF set in SimParam");
+
+        Fingerprint fp = new Fingerprint(param);
+        synchronized (this) {
+            Kernels k = entries.get(fp);
+            if (k != null) {
+                hits++;
+                return k;
+            }
+            misses++;
+        }
+
+        Kernels k = compute(param);
+
+        synchronized (this) {
+            // computed by another thread in the meantime
+            Kernels other = entries.get(fp);
+            if (other != null)
+                return other;
+
+            if (k.bytes <= byteBudget) {
+                entries.put(fp, k);
+                bytesUsed += k.bytes;
+                evict();
+            } else {
+                Tool.trace(String.format("Filter kernels (%d MB) exceed cache budget, not cached",
+                        k.bytes / 1024 / 1024));
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Estimate the memory used by the filter vectors for 'param', in bytes
+     */
+    public static long estimateBytes(SimParam param) {
+        final long px = 4L * param.vectorWidth() * param.vectorHeight();
+        final int nrComp = param.nrBand() * 2 - 1;
+        return px * param.nrDir() * nrComp * 8 + px * 2 * 4;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytesUsed = 0;
+    }
+
+    /**
+     * Memory currently used by cached vectors, in bytes
+     */
+    public synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Returns a short summary of cache usage
+     */
+    public synchronized String printState() {
+        return String.format("%d entries, %d MB of %d MB, %d hits, %d misses",
+                entries.size(), bytesUsed / 1024 / 1024, byteBudget / 1024 / 1024,
+                hits, misses);
+    }
+
+    // remove least recently used entries until within budget
+    private void evict() {
+        Iterator<Map.Entry<Fingerprint, Kernels>> it = entries.entrySet().iterator();
+        while (bytesUsed > byteBudget && it.hasNext()) {
+            bytesUsed -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    // compute the filter vectors
+    static Kernels compute(SimParam param) {
+
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+
+        final int w = param.vectorWidth(), h = param.vectorHeight();
+        final OtfProvider otfPr = param.otf();
+
+        // shifted OTFs, per direction and component
+        Vec2d.Cplx[][] otf = new Vec2d.Cplx[param.nrDir()][];
+        for (int d = 0; d < param.nrDir(); d++) {
+            SimParam.Dir par = param.dir(d);
+            otf[d] = Vec2d.createArrayCplx(par.nrComp(), 2 * w, 2 * h);
+            otfPr.writeOtfWithAttVector(otf[d][0], 0, 0, 0);
+            for (int b = 1; b < par.nrBand(); b++) {
+                int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
+                otfPr.writeOtfWithAttVector(otf[d][pos], b, par.px(b), par.py(b));
+                otfPr.writeOtfWithAttVector(otf[d][neg], b, -par.px(b), -par.py(b));
+            }
+        }
+
+        // Wiener denominator times APO
+        WienerFilter wFilter = new WienerFilter(param);
+        Vec2d.Real denomApo = wFilter.getDenominator(param.getWienerFilter());
+        Vec2d.Cplx apo = Vec2d.createCplx(2 * w, 2 * h);
+        otfPr.writeApoVector(apo, param.getApoBend(), param.getApoCutoff());
+        Vec2d.Real apoReal = Vec2d.createReal(2 * w, 2 * h);
+        apoReal.copy(apo);
+        denomApo.times(apoReal);
+
+        Vec2d.Real wfDenom = wFilter.getWidefieldDenominator(param.getWienerFilter());
+
+        t1.stop();
+        Tool.trace("Filter kernels computed, took " + t1);
+
+        return new Kernels(otf, denomApo, wfDenom);
+    }
+
+}
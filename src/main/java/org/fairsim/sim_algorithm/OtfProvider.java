@@ -41,9 +41,9 @@ public class OtfProvider {
         NONE
     }
 
-	// vals[band][idx], where idx = cycles / cyclesPerMicron
-    private Cplx.Float[][] vals = null;
-    private Cplx.Float[][] valsAtt = null;
+	// vals[band][2*idx] (re), vals[band][2*idx+1] (im), where idx = cycles / cyclesPerMicron
+    private float[][] vals = null;
+    private float[][] valsAtt = null;
     private float[][] valsOnlyAtt = null;
 
     // physical units
@@ -68,6 +68,13 @@ public class OtfProvider {
     private double attStrength = .99, attFWHM = 1.2;
     private boolean useAttenuation;
 
+    // snapshot support: frozen copies can not be changed, the
+    // cached frozen copy is renewed whenever this OTF changes
+    private boolean frozen = false;
+    private int modCount = 0;
+    private OtfProvider frozenView = null;
+    private int frozenViewCount = -1;
+
 
     /**
      * For [0..cutoff] normalized to [0..1], return the ideal OTF. OTF of an ideal,
@@ -121,8 +128,8 @@ public class OtfProvider {
         ret.lambda = lambda;
         ret.cutOff = 1000 / (lambda / na / 2);
         ret.cyclesPerMicron = ret.cutOff / ret.samplesLateral;
-        ret.vals = new Cplx.Float[1][ret.samplesLateral];
-        ret.valsAtt = new Cplx.Float[1][ret.samplesLateral];
+        ret.vals = new float[1][2 * ret.samplesLateral];
+        ret.valsAtt = new float[1][2 * ret.samplesLateral];
         ret.valsOnlyAtt = new float[1][ret.samplesLateral];
         ret.isMultiBand = false;
         ret.isEstimate = true;
@@ -142,7 +149,7 @@ public class OtfProvider {
                 r *= (float) (1 - ((1 - a) * (1 - 4 * (Math.pow(v - .5, 2)))));
             }
 
-            ret.vals[0][i] = new Cplx.Float(r, 0);
+            ret.vals[0][2 * i] = r;
         }
 
         // initialize attenuation cache
@@ -152,6 +159,67 @@ public class OtfProvider {
         return ret;
     }
 
+    /**
+     * Returns a copy of this OTF. The copy has its own vector pixel
+     * size and attenuation settings, so it can be used for vectors of
+     * a different size than this OTF.
+     */
+    public OtfProvider duplicate() {
+        OtfProvider ret = new OtfProvider();
+        ret.vals = new float[vals.length][];
+        ret.valsAtt = new float[valsAtt.length][];
+        ret.valsOnlyAtt = new float[valsOnlyAtt.length][];
+        for (int b = 0; b < vals.length; b++) {
+            ret.vals[b] = vals[b].clone();
+            ret.valsAtt[b] = valsAtt[b].clone();
+            ret.valsOnlyAtt[b] = valsOnlyAtt[b].clone();
+        }
+        ret.cyclesPerMicron = cyclesPerMicron;
+        ret.na = na;
+        ret.lambda = lambda;
+        ret.cutOff = cutOff;
+        ret.isEstimate = isEstimate;
+        ret.isMultiBand = isMultiBand;
+        ret.maxBand = maxBand;
+        ret.estimateAValue = estimateAValue;
+        ret.samplesLateral = samplesLateral;
+        ret.vecCyclesPerMicron = vecCyclesPerMicron;
+        ret.attStrength = attStrength;
+        ret.attFWHM = attFWHM;
+        ret.useAttenuation = useAttenuation;
+        return ret;
+    }
+
+    /**
+     * Returns an immutable copy of this OTF, as used by {@link SimParam#snapshot}.
+     * The copy is cached and only renewed after this OTF has changed, so repeated
+     * snapshots share one copy. Setters of the copy throw an IllegalStateException.
+     */
+    public synchronized OtfProvider frozen() {
+        if (frozen)
+            return this;
+        if (frozenView == null || frozenViewCount != modCount) {
+            frozenView = duplicate();
+            frozenView.frozen = true;
+            frozenViewCount = modCount;
+        }
+        return frozenView;
+    }
+
+    /**
+     * Returns true if this OTF is an immutable copy
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    // fail if frozen, otherwise count the change
+    private void modify() {
+        if (frozen)
+            throw new IllegalStateException("Frozen OTF can not be changed, use duplicate()");
+        modCount++;
+    }
+
     /**
      * Returns a short description (GUI display, etc)
      */
@@ -184,38 +252,62 @@ public class OtfProvider {
      * @param att  If true, return attenuated value (see {@link #setAttenuation})
      */
     public Cplx.Float getOtfVal(int band, double cycl, boolean att) {
-        // checks
+        final float[] val = new float[2];
+        getOtfVal(band, cycl, att, val, 0);
+        return new Cplx.Float(val[0], val[1]);
+    }
+
+    /**
+     * Get the OTF value at 'cycl', like {@link #getOtfVal(int, double, boolean)},
+     * but store it to out[pos] (real part) and out[pos+1] (imaginary part)
+     * instead of creating a new object.
+     *
+     * @param band OTF band
+     * @param cycl Position in cycles/micron
+     * @param att  If true, return attenuated value (see {@link #setAttenuation})
+     * @param out  Output array
+     * @param pos  Position in output array
+     */
+    void getOtfVal(int band, double cycl, boolean att, float[] out, int pos) {
+        if (cycl < 0)
+            throw new IndexOutOfBoundsException("cylc negative!");
+        lookup(otfTable(band, att), cycl, out, pos);
+    }
+
+    // checked table access: OTF values of 'band', re/im interleaved
+    private float[] otfTable(int band, boolean att) {
         if (!this.isMultiBand)
             band = 0;
         if ((band >= maxBand) || (band < 0))
             throw new IndexOutOfBoundsException("band idx too high or <0");
-        if (cycl < 0)
-            throw new IndexOutOfBoundsException("cylc negative!");
-
-        // out of support, return 0
-        if (cycl >= cutOff)
-            return Cplx.Float.zero();
-
-        final double pos = cycl / cyclesPerMicron;
-        if (pos + 1 >= samplesLateral)
-            return Cplx.Float.zero();
-
+        return (att) ? (valsAtt[band]) : (vals[band]);
+    }
 
-        // for now, linear interpolation, could be better with a nice cspline
-        int lPos = (int) Math.floor(pos);
-        int hPos = (int) Math.ceil(pos);
-        float f = (float) (pos - lPos);
-
-        if (att) {
-            Cplx.Float retl = valsAtt[band][lPos].mult(1 - f);
-            Cplx.Float reth = valsAtt[band][hPos].mult(f);
-            return Cplx.add(retl, reth);
-        } else {
-            Cplx.Float retl = vals[band][lPos].mult(1 - f);
-            Cplx.Float reth = vals[band][hPos].mult(f);
-            return Cplx.add(retl, reth);
+    // linear interpolation in 'tbl' at 'cycl' (>=0), zero out of support. For
+    // vectors, 'cycl' comes from float radius maps, so values match the
+    // per-pixel double path to about 1e-7 (relative), not bit for bit.
+    private void lookup(final float[] tbl, final double cycl, final float[] out, final int pos) {
+        final double tPos = cycl / cyclesPerMicron;
+        if (cycl >= cutOff || tPos + 1 >= samplesLateral) {
+            out[pos] = 0;
+            out[pos + 1] = 0;
+            return;
         }
+        // for now, linear interpolation, could be better with a nice cspline
+        final int l = (int) tPos;
+        final float f = (float) (tPos - l);
+        out[pos] = tbl[2 * l] * (1 - f) + tbl[2 * l + 2] * f;
+        out[pos + 1] = tbl[2 * l + 1] * (1 - f) + tbl[2 * l + 3] * f;
+    }
 
+    // linear interpolation of the attenuation in 'tbl' at 'cycl' (>=0), one out of support
+    private float lookupAtt(final float[] tbl, final double cycl) {
+        final double tPos = cycl / cyclesPerMicron;
+        if (cycl >= cutOff || tPos + 1 >= samplesLateral)
+            return 1.f;
+        final int l = (int) tPos;
+        final float f = (float) (tPos - l);
+        return tbl[l + 1] * f + tbl[l] * (1 - f);
     }
 
     /**
@@ -226,9 +318,20 @@ public class OtfProvider {
     public void setPixelSize(double cyclesPerMicron) {
         if (cyclesPerMicron <= 0)
             throw new IllegalArgumentException("pxl size must be positive");
+        if (cyclesPerMicron == vecCyclesPerMicron)
+            return;
+        modify();
         vecCyclesPerMicron = cyclesPerMicron;
     }
 
+    /**
+     * Returns the pixel size for output to vectors, in cycles/micron,
+     * or -1 if not set
+     */
+    double getPixelSize() {
+        return vecCyclesPerMicron;
+    }
+
     // ------ Attenuation -----
 
     /**
@@ -256,21 +359,7 @@ public class OtfProvider {
             throw new IndexOutOfBoundsException("band idx too high or <0");
         if (cycl < 0)
             throw new IndexOutOfBoundsException("cylc negative!");
-
-        // out of support, return 1
-        double pos = cycl / cyclesPerMicron;
-
-        if (cycl >= cutOff || pos + 1 >= samplesLateral)
-            return 1.f;
-
-        // for now, linear interpolation, could be better with a nice cspline
-        int lPos = (int) Math.floor(pos);
-        int hPos = (int) Math.ceil(pos);
-        float f = (float) (pos - lPos);
-
-        float reth = valsOnlyAtt[band][lPos] * (1 - f);
-        float retl = valsOnlyAtt[band][hPos] * f;
-        return retl + reth;
+        return lookupAtt(valsOnlyAtt[band], cycl);
     }
 
     /**
@@ -282,15 +371,17 @@ public class OtfProvider {
      */
     public void setAttenuation(double strength, double fwhm) {
 
+        modify();
         attStrength = strength;
         attFWHM = fwhm;
 
         // update cached attenuation values
         for (int b = 0; b < vals.length; b++)
-            for (int v = 0; v < vals[b].length; v++) {
+            for (int v = 0; v < samplesLateral; v++) {
                 double dist = v * cyclesPerMicron;
                 valsOnlyAtt[b][v] = valAttenuation(dist, attStrength, attFWHM);
-                valsAtt[b][v] = vals[b][v].mult(valsOnlyAtt[b][v]);
+                valsAtt[b][2 * v] = vals[b][2 * v] * valsOnlyAtt[b][v];
+                valsAtt[b][2 * v + 1] = vals[b][2 * v + 1] * valsOnlyAtt[b][v];
             }
     }
 
@@ -313,6 +404,9 @@ public class OtfProvider {
      * Set if to apply attenuation to the OTF.
      */
     public void switchAttenuation(boolean on) {
+        if (on == useAttenuation)
+            return;
+        modify();
         useAttenuation = on;
     }
 
@@ -358,40 +452,84 @@ public class OtfProvider {
         if (vecCyclesPerMicron <= 0)
             throw new IllegalStateException("Vector pixel size not initialized");
         final int w = vec.vectorWidth(), h = vec.vectorHeight();
+        final float[] dat = vec.vectorData();
+        final float[] tbl = otfTable(band, useAtt);
+        final RadiusMap dist = RadiusMap.get(w, h, kx, ky, vecCyclesPerMicron);
 
         // loop output vector
         new SimpleMT.StrPFor(0, h) {
             public void at(int y) {
+                final float[] val = new float[2];
                 for (int x = 0; x < w; x++) {
-                    // wrap to coordinates: x in [-w/2,w/2], y in [-h/2, h/2]
-                    double xh = (x < w / 2) ? (x) : (x - w);
-                    double yh = (y < h / 2) ? (-y) : (h - y);
-                    // from these, calculate distance to kx,ky, convert to cycl/microns
-                    double rad = MTool.fhypot(xh - kx, yh - ky);
-                    double cycl = rad * vecCyclesPerMicron;
+                    // distance to kx,ky, in cycl/microns
+                    double cycl = dist.get(x, y);
+                    final int i = 2 * (x + y * w);
 
                     // over cutoff? just set zero
                     if (cycl > cutOff) {
-                        vec.set(x, y, Cplx.Float.zero());
+                        dat[i] = 0;
+                        dat[i + 1] = 0;
+                        continue;
                     }
 
-                    // within cutoff?
-                    if (cycl <= cutOff) {
+                    // get the OTF value
+                    lookup(tbl, cycl, val, 0);
+
+                    // multiply (conj.) to vector or write to vector
+                    if (!write) {
+                        final float re = dat[i], im = dat[i + 1];
+                        dat[i] = re * val[0] + im * val[1];
+                        dat[i + 1] = im * val[0] - re * val[1];
+                    } else {
+                        dat[i] = val[0];
+                        dat[i + 1] = val[1];
+                    }
+                }
+            }
+        };
+
+        vec.syncBuffer();
+    }
 
-                        // get the OTF value
-                        Cplx.Float val = getOtfVal(band, cycl, useAtt);
+    /**
+     * Adds |OTF|^2, centered at kx,ky, to a vector. Used for the Wiener
+     * denominator, so pixel size is passed in and not taken from {@link #setPixelSize}.
+     * Distances come from a float {@link RadiusMap}, so the result differs from
+     * per-pixel double distances by about 1e-7 (relative); the test main ("b")
+     * checks for less than 1e-6.
+     *
+     * @param vec        Vector to add to
+     * @param band       OTF band
+     * @param kx         OTF center position offset x
+     * @param ky         OTF center position offset y
+     * @param cyclMicron Pixel size of the vector, in cycles/micron
+     * @param useAtt     if to multiply the attenuation (not squared)
+     */
+    void addOtfAbs2(final Vec2d.Real vec, final int band,
+                    final double kx, final double ky,
+                    final double cyclMicron, final boolean useAtt) {
 
-                        // multiply to vector or write to vector
-                        if (!write) {
-                            vec.set(x, y, vec.get(x, y).mult(val.conj()));
-                        } else {
-                            vec.set(x, y, val);
-                        }
-                    }
+        final int w = vec.vectorWidth(), h = vec.vectorHeight();
+        final float[] dat = vec.vectorData();
+        final float[] tbl = otfTable(band, false);
+        final float[] att = valsOnlyAtt[(isMultiBand) ? (band) : (0)];
+        final RadiusMap dist = RadiusMap.get(w, h, kx, ky, cyclMicron);
+
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                final float[] val = new float[2];
+                for (int x = 0; x < w; x++) {
+                    double cycl = dist.get(x, y);
+                    lookup(tbl, cycl, val, 0);
+                    float otfVal = val[0] * val[0] + val[1] * val[1];
+                    if (useAtt)
+                        otfVal *= lookupAtt(att, cycl);
+                    dat[x + y * w] += otfVal;
                 }
             }
         };
 
+        vec.syncBuffer();
     }
 
     // ------ Applying OTF to vectors ------
@@ -469,25 +607,26 @@ public class OtfProvider {
         if (vecCyclesPerMicron <= 0)
             throw new IllegalStateException("Vector pixel size not initialized");
         final int w = vec.vectorWidth(), h = vec.vectorHeight();
+        final float[] dat = vec.vectorData();
+        final RadiusMap dist = RadiusMap.get(w, h, 0, 0, vecCyclesPerMicron);
 
         //for (int y=0; y<h; y++)
         new SimpleMT.PFor(0, h) {
             public void at(int y) {
                 for (int x = 0; x < w; x++) {
-                    // wrap to coordinates: x in [-w/2,w/2], y in [-h/2, h/2]
-                    double xh = (x < w / 2) ? (x) : (x - w);
-                    double yh = (y < h / 2) ? (-y) : (h - y);
-                    // from these, calculate distance to 0, convert to phys. units
-                    double rad = MTool.fhypot(xh, yh);
-                    double cycl = rad * vecCyclesPerMicron;
+                    // distance to 0, in phys. units
+                    double cycl = dist.get(x, y);
                     // calculate fraction of cutoff, get idealOTF, augment with 'bend'
                     double frac = cycl / (getCutoff() * cutOff);
                     double val = Math.pow(valIdealOTF(frac), bend);
                     // set output to that value
-                    vec.set(x, y, new Cplx.Float((float) val));
+                    dat[2 * (x + y * w)] = (float) val;
+                    dat[2 * (x + y * w) + 1] = 0;
                 }
             }
         };
+
+        vec.syncBuffer();
     }
 
     /**
@@ -508,24 +647,20 @@ public class OtfProvider {
 
         final int w = out.vectorWidth();
         final int h = out.vectorHeight();
+        final float[] dat = out.vectorData();
+        final RadiusMap dist = RadiusMap.get(w, h, kx, ky, vecCyclesPerMicron);
 
         //for (int y= 0;y<h ;y++)
         new SimpleMT.PFor(0, h) {
             public void at(int y) {
                 for (int x = 0; x < w; x++) {
-
-                    // wrap to coordinates: x in [-w/2,w/2], y in [-h/2, h/2]
-                    double xh = (x < w / 2) ? (x) : (x - w);
-                    double yh = (y < h / 2) ? (-y) : (h - y);
-
-                    // from these, calculate distance to kx,ky, convert to cycl/microns
-                    double rad = MTool.fhypot(xh - kx, yh - ky);
-                    double cycl = rad * vecCyclesPerMicron;
-
-                    out.set(x, y, valAttenuation(cycl, str, fwhm));
+                    // distance to kx,ky, in cycl/microns
+                    dat[x + y * w] = valAttenuation(dist.get(x, y), str, fwhm);
                 }
             }
         };
+
+        out.syncBuffer();
     }
 
     // ------ Mask OTF region ------
@@ -541,23 +676,26 @@ public class OtfProvider {
 
         final int w = vec.vectorWidth(), h = vec.vectorHeight();
         final double otfSupport = getCutoff();
+        final float[] dat = vec.vectorData();
+        final RadiusMap dist = RadiusMap.get(w, h, kx, ky, vecCyclesPerMicron);
 
         //for (int y=0; y<h; y++) {{
         new SimpleMT.PFor(0, h) {
             public void at(int y) {
                 for (int x = 0; x < w; x++) {
-                    // wrap to coordinates: x in [-w,w], y in [-h, h]
-                    double xh = (x < w / 2) ? (x) : (x - w);
-                    double yh = (y < h / 2) ? (-y) : (h - y);
-                    // from these, calculate distance to (kx,ky), convert to cycl/microns
-                    double rad = MTool.fhypot(xh - kx, yh - ky) * vecCyclesPerMicron;
+                    // distance to (kx,ky), in cycl/microns
+                    double rad = dist.get(x, y);
                     // if outside of support, set zero
-                    if (rad > otfSupport)
-                        vec.set(x, y, Cplx.Float.zero());
+                    if (rad > otfSupport) {
+                        dat[2 * (x + y * w)] = 0;
+                        dat[2 * (x + y * w) + 1] = 0;
+                    }
                 }
             }
         };
 
+        vec.syncBuffer();
+
     }
 
     // ------ Load / Save operations ------
@@ -603,19 +741,15 @@ public class OtfProvider {
             ret.cyclesPerMicron = data.getDbl("cycles").val();
 
             // init bands
-            ret.vals = new Cplx.Float[ret.maxBand][ret.samplesLateral];
-            ret.valsAtt = new Cplx.Float[ret.maxBand][ret.samplesLateral];
+            ret.vals = new float[ret.maxBand][2 * ret.samplesLateral];
+            ret.valsAtt = new float[ret.maxBand][2 * ret.samplesLateral];
             ret.valsOnlyAtt = new float[ret.maxBand][ret.samplesLateral];
 
             // copy bands
             for (int b = 0; b < ret.maxBand; b++) {
                 byte[] bytes = data.getData(String.format("band-%d", b)).val();
                 float[] val = Conf.fromByte(bytes);
-
-                for (int i = 0; i < ret.samplesLateral; i++) {
-                    ret.vals[b][i] = new Cplx.Float(val[2 * i], val[2 * i + 1]);
-
-                }
+                System.arraycopy(val, 0, ret.vals[b], 0, 2 * ret.samplesLateral);
             }
 
             ret.setAttenuation(ret.attStrength, ret.attFWHM);
@@ -655,12 +789,7 @@ public class OtfProvider {
 
             // store bands
             for (int b = 0; b < this.maxBand; b++) {
-                float[] tmp = new float[this.samplesLateral * 2];
-                for (int i = 0; i < tmp.length / 2; i++) {
-                    tmp[2 * i + 0] = this.vals[b][i].re;
-                    tmp[2 * i + 1] = this.vals[b][i].im;
-                }
-                byte[] outData = Conf.toByte(tmp);
+                byte[] outData = Conf.toByte(this.vals[b]);
                 data.newData(String.format("band-%d", b)).setVal(outData);
             }
         }
@@ -678,13 +807,43 @@ public class OtfProvider {
 
     // ------ Testing ------
 
+    // per-pixel object version of otfToVector (multiply only), for timing comparison
+    private void applyOtfObjects(final Vec2d.Cplx vec, final int band,
+                                 final double kx, final double ky, final boolean useAtt) {
+        final int w = vec.vectorWidth(), h = vec.vectorHeight();
+        final float[] tbl = otfTable(band, useAtt);
+        final Cplx.Float[] obj = new Cplx.Float[samplesLateral];
+        for (int i = 0; i < samplesLateral; i++)
+            obj[i] = new Cplx.Float(tbl[2 * i], tbl[2 * i + 1]);
+
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                for (int x = 0; x < w; x++) {
+                    double xh = (x < w / 2) ? (x) : (x - w);
+                    double yh = (y < h / 2) ? (-y) : (h - y);
+                    double cycl = MTool.fhypot(xh - kx, yh - ky) * vecCyclesPerMicron;
+                    double pos = cycl / cyclesPerMicron;
+                    Cplx.Float val = Cplx.Float.zero();
+                    if (cycl < cutOff && pos + 1 < samplesLateral) {
+                        int lPos = (int) Math.floor(pos);
+                        int hPos = (int) Math.ceil(pos);
+                        float f = (float) (pos - lPos);
+                        val = Cplx.add(obj[lPos].mult(1 - f), obj[hPos].mult(f));
+                    }
+                    vec.set(x, y, vec.get(x, y).mult(val.conj()));
+                }
+            }
+        };
+    }
+
+
     /**
      * For testing, outputs some OTF to stdout
      */
     public static void main(String[] args) throws Exception {
 
         if (args.length == 0) {
-            System.out.println("Use: t - Timing, o - Output, i - Input ");
+            System.out.println("Use: t - Timing, b - Benchmark [size], o - Output, i - Input ");
             return;
         }
 
@@ -738,6 +897,62 @@ public class OtfProvider {
             }
         }
 
+        // benchmark: primitive tables vs. per-pixel objects, as before
+        if (args[0].equals("b")) {
+
+            final int size = (args.length > 1) ? (Integer.parseInt(args[1])) : (1024);
+            otf.setPixelSize(1 / (size * 0.04));
+            otf.setAttenuation(0.99, 1.2);
+            Vec2d.Cplx ref = Vec2d.createCplx(size, size), res = Vec2d.createCplx(size, size);
+            Vec2d.Real denom = Vec2d.createReal(size, size);
+
+            Tool.Timer tObj = Tool.getTimer(), tPrim = Tool.getTimer(), tDen = Tool.getTimer();
+            for (int loop = 0; loop < 10; loop++) {
+                ref.zero();
+                ref.addConst(new Cplx.Float(1, 0.5f));
+                res.copy(ref);
+                tObj.start();
+                otf.applyOtfObjects(ref, 0, 20.3, -50.7, true);
+                tObj.hold();
+                tPrim.start();
+                otf.otfToVector(res, 0, 20.3, -50.7, true, false);
+                tPrim.hold();
+                tDen.start();
+                otf.addOtfAbs2(denom, 0, 20.3, -50.7, otf.getPixelSize(), true);
+                tDen.hold();
+            }
+            res.axpy(-1, ref);
+            double err = Math.sqrt(res.norm2() / ref.norm2());
+
+            // |OTF|^2 per pixel, with double distances, as the Wiener filter did before
+            final OtfProvider o = otf;
+            final Vec2d.Real denRef = Vec2d.createReal(size, size), den = Vec2d.createReal(size, size);
+            final float[] dr = denRef.vectorData();
+            new SimpleMT.PFor(0, size) {
+                public void at(int y) {
+                    final float[] val = new float[2];
+                    for (int x = 0; x < size; x++) {
+                        double xh = (x < size / 2) ? (x) : (x - size);
+                        double yh = (y < size / 2) ? (-y) : (size - y);
+                        double cycl = MTool.fhypot(xh - 20.3, yh + 50.7) * o.getPixelSize();
+                        o.getOtfVal(0, cycl, false, val, 0);
+                        dr[x + y * size] = (val[0] * val[0] + val[1] * val[1]) * o.getAttVal(0, cycl);
+                    }
+                }
+            };
+            denRef.syncBuffer();
+            otf.addOtfAbs2(den, 0, 20.3, -50.7, otf.getPixelSize(), true);
+            den.axpy(-1, denRef);
+            double errDen = Math.sqrt(den.norm2() / denRef.norm2());
+
+            final double maxRelDiff = 1e-6;
+            Tool.trace(String.format("%dx%d, 10x: per-pixel objects %s, primitive tables %s, |OTF|^2 %s",
+                    size, size, tObj, tPrim, tDen));
+            Tool.trace(String.format("rel. difference to per-pixel path: OTF %5.3e, |OTF|^2 %5.3e (bound %5.3e) -> %s",
+                    err, errDen, maxRelDiff, (err < maxRelDiff && errDen < maxRelDiff) ? ("OK") : ("FAIL")));
+            SimpleMT.shutdown();
+        }
+
         // input
         if (args[0].equals("i")) {
 
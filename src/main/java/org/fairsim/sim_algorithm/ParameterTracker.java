@@ -0,0 +1,212 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Warm start of the parameter estimation across time points. Stores
+ * the k-vector fitted for each pattern direction; the next estimation
+ * (see {@link SimAlgorithm#estimateParameters}) skips the coarse peak
+ * search and starts the peak fit there, with a narrow search window.
+ * <p>
+ * A tracked fit is accepted if its correlation magnitude reaches
+ * 'minConfidence' times that of the last accepted fit, and the peak
+ * stays inside the search window. Otherwise tracking is lost, and the
+ * full search runs for that direction. Thread-safe, so frames estimated
+ * concurrently can share one tracker.
+ */
+public class ParameterTracker {
+
+    private final double search, minConfidence;
+    private final Map<Integer, double[]> last = new HashMap<Integer, double[]>();
+    private int fitBand = -1;
+    private int tracked = 0, lost = 0;
+
+    /**
+     * Tracker with search window +-0.5 pxl, minimum confidence 0.5
+     */
+    public ParameterTracker() {
+        this(0.5, 0.5);
+    }
+
+    /**
+     * @param search        Peak fit window, +-pxl around the last k-vector
+     * @param minConfidence Minimal correlation magnitude, relative to the last accepted fit
+     */
+    public ParameterTracker(double search, double minConfidence) {
+        if (search <= 0 || minConfidence < 0)
+            throw new IllegalArgumentException("Search window has to be > 0, confidence >= 0");
+        this.search = search;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * Search window, +-pxl
+     */
+    public double getSearch() {
+        return search;
+    }
+
+    /**
+     * Start of the tracked peak fit for direction 'dir', as kx, ky
+     * for the correlation to 'band', and the correlation magnitude of
+     * that fit. Null if there is nothing to track (first frame, other
+     * fit band).
+     */
+    synchronized double[] start(int dir, int band) {
+        double[] l = last.get(dir);
+        if (l == null || band != fitBand)
+            return null;
+        return new double[]{l[0], l[1], l[2]};
+    }
+
+    /**
+     * Check a tracked fit ('fit' as returned by
+     * {@link Correlation#fitPeak}) started at 'start' (as returned by
+     * {@link #start}). Counts the fit as tracked or lost. Only uses
+     * 'start', so other frames may update the tracker in between.
+     */
+    synchronized boolean accept(int dir, double[] start, double[] fit) {
+        boolean inWindow = Math.max(Math.abs(fit[0] - start[0]), Math.abs(fit[1] - start[1])) < search;
+        boolean confident = fit[3] >= minConfidence * start[2];
+        if (inWindow && confident) {
+            tracked++;
+            return true;
+        }
+        lost++;
+        Tool.trace(String.format("Tracking lost (dir %d): moved %6.3f pxl, magnitude %5.4e vs. %5.4e",
+                dir, Math.hypot(fit[0] - start[0], fit[1] - start[1]), fit[3], start[2]));
+        return false;
+    }
+
+    /**
+     * Store the fit result of direction 'dir', for 'band'
+     */
+    synchronized void update(int dir, int band, double[] fit) {
+        if (band != fitBand) {
+            last.clear();
+            fitBand = band;
+        }
+        last.put(dir, new double[]{fit[0], fit[1], fit[3]});
+    }
+
+    /**
+     * Forget all stored k-vectors, the next estimation runs the full search
+     */
+    public synchronized void reset() {
+        last.clear();
+        fitBand = -1;
+    }
+
+    /**
+     * Number of direction fits that were tracked successfully
+     */
+    public synchronized int getTracked() {
+        return tracked;
+    }
+
+    /**
+     * Number of direction fits where tracking was lost
+     */
+    public synchronized int getLost() {
+        return lost;
+    }
+
+
+    /**
+     * For testing: parameter estimation on a simulated time series with
+     * slowly drifting k-vectors and one jump, full search vs. tracking
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (256);
+        final int nrT = (args.length > 1) ? (Integer.parseInt(args[1])) : (8);
+        final double drift = 0.02;    // pxl per time point
+
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam base = SimParam.create(3, 3, 5, size, 0.08, otf);
+        base.setFastPeakFit(true, false);
+
+        ParameterTracker tracker = new ParameterTracker();
+        Tool.Timer tFull = Tool.getTimer(), tTrack = Tool.getTimer(), tRec = Tool.getTimer();
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(base);
+        double errFull = 0, errTrack = 0;
+
+        for (int t = 0; t < nrT; t++) {
+            // true k-vectors: slow drift, a jump of 2 pxl in the last frame
+            double[][] k = new double[base.nrDir()][2];
+            for (int d = 0; d < base.nrDir(); d++) {
+                double ang = d * Math.PI / base.nrDir() + 0.2;
+                double len = 0.23 * size + drift * t + ((t == nrT - 1) ? (2) : (0));
+                k[d][0] = len * Math.cos(ang);
+                k[d][1] = len * Math.sin(ang);
+            }
+
+            // simulated raw data, object moving by 1 pxl per time point
+            SimParam truth = base.duplicate();
+            for (int d = 0; d < base.nrDir(); d++) {
+                truth.dir(d).setPxPy(2 * k[d][0], 2 * k[d][1]);    // k of the outer band
+                truth.dir(d).setPhaOff(0.3 * d);
+            }
+            Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(truth, 42, 0, t);
+
+            SimParam full = base.duplicate(), warm = base.duplicate();
+            tFull.start();
+            SimAlgorithm.estimateParameters(full, inFFT, 2, 0.6, null, 0, null, false, null);
+            tFull.hold();
+            tTrack.start();
+            SimAlgorithm.estimateParameters(warm, inFFT, 2, 0.6, null, 0, null, false, tracker);
+            tTrack.hold();
+            tRec.start();
+            SimAlgorithm.runReconstruction(warm, inFFT, ws, null, -1, false,
+                    warm.getClipScale(), null, null, null);
+            tRec.hold();
+
+            for (int d = 0; d < base.nrDir(); d++) {
+                errFull = Math.max(errFull, Math.hypot(full.dir(d).px(1) - k[d][0], full.dir(d).py(1) - k[d][1]));
+                errTrack = Math.max(errTrack, Math.hypot(warm.dir(d).px(1) - k[d][0], warm.dir(d).py(1) - k[d][1]));
+            }
+        }
+
+        // another frame switches the fit band between start and accept
+        ParameterTracker shared = new ParameterTracker();
+        shared.update(0, 2, new double[]{10, 20, 0, 1});
+        double[] s0 = shared.start(0, 2);
+        shared.update(1, 1, new double[]{5, 5, 0, 1});
+        boolean interleaved = shared.accept(0, s0, new double[]{10.1, 20.1, 0, 0.9});
+
+        int dirFits = (nrT - 1) * base.nrDir();
+        Tool.trace(String.format("%d time points: estimation with full search %s, with tracking %s, reconstruction %s",
+                nrT, tFull, tTrack, tRec));
+        Tool.trace(String.format("max. k error: full %7.5f pxl, tracking %7.5f pxl; tracked %d, lost %d, " +
+                        "accepted after another frame's update: %b -> %s",
+                errFull, errTrack, tracker.getTracked(), tracker.getLost(), interleaved,
+                (errTrack < 0.05 && tracker.getTracked() == dirFits - base.nrDir()
+                        && tracker.getLost() == base.nrDir() && interleaved) ? ("OK") : ("FAIL")));
+
+        SimpleMT.shutdown();
+    }
+
+}
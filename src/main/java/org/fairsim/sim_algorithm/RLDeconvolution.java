@@ -19,13 +19,26 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 package org.fairsim.sim_algorithm;
 
 import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.SimpleMT;
 import org.fairsim.utils.Tool;
 
 /**
- * Implementation of 2D Richardson-Lucy deconvolution steps
+ * Implementation of 2D Richardson-Lucy deconvolution steps, optionally
+ * accelerated by vector extrapolation (Biggs, Andrews, Appl. Opt. 36, 1997)
+ * and stopped early once the estimate no longer changes.
  */
 public class RLDeconvolution {
 
+    /**
+     * Iterations between two convergence checks
+     */
+    public static final int CHECK_INTERVAL = 5;
+
+    /**
+     * Number of buffers needed by the accelerated iteration
+     */
+    public static final int NR_BUFFERS = 5;
+
     /**
      * Run Richardson-Lucy deconvolution steps on img.
      *
@@ -47,7 +60,43 @@ public class RLDeconvolution {
      */
     public static void deconvolve(Vec2d.Cplx img, Vec2d.Cplx otf, int steps,
                                   final boolean inputIsInFreqSpace) {
+        deconvolve(img, otf, steps, inputIsInFreqSpace, false, 0, null);
+    }
+
+    /**
+     * Run Richardson-Lucy deconvolution steps on img, with the
+     * acceleration and stopping criterion set in 'param'.
+     *
+     * @param img                Input image, will be modified and contain result
+     * @param otf                The optical transfer function to use
+     * @param param              Provides iteration count, acceleration and tolerance
+     * @param inputIsInFreqSpace If input is already in freq. space, will set output to same space
+     * @param buffers            Buffers of img's size (at least {@link #NR_BUFFERS}), or null to allocate
+     * @return Number of iterations run
+     */
+    public static int deconvolve(Vec2d.Cplx img, Vec2d.Cplx otf, SimParam param,
+                                 boolean inputIsInFreqSpace, Vec2d.Cplx[] buffers) {
+        return deconvolve(img, otf, param.getRLiterations(), inputIsInFreqSpace,
+                param.useRLAcceleration(), param.getRLTolerance(), buffers);
+    }
 
+    /**
+     * Run Richardson-Lucy deconvolution steps on img.
+     *
+     * @param img                Input image, will be modified and contain result
+     * @param otf                The optical transfer function to use
+     * @param steps              Maximum number of iteration steps
+     * @param inputIsInFreqSpace If input is already in freq. space, will set output to same space
+     * @param accelerate         Extrapolate each estimate along the last step (Biggs-Andrews)
+     * @param tolerance          Stop once the rel. change of the estimate per iteration
+     *                           drops below this value, checked every {@link #CHECK_INTERVAL}
+     *                           iterations. Set to 0 to always run all steps.
+     * @param buffers            Buffers of img's size (at least {@link #NR_BUFFERS}), or null to allocate
+     * @return Number of iterations run
+     */
+    public static int deconvolve(final Vec2d.Cplx img, Vec2d.Cplx otf, int steps,
+                                 final boolean inputIsInFreqSpace, boolean accelerate,
+                                 double tolerance, Vec2d.Cplx[] buffers) {
 
         // Richardson-Lucy: iterate each step j:
         // (https://en.wikipedia.org/wiki/Richardson%E2%80%93Lucy_deconvolution)
@@ -58,56 +107,304 @@ public class RLDeconvolution {
         // u_j: est. deconvolved image, d: observed image,
         // psf: point-spread function, psf' : flipped point-spread function
         // stating guess u_0 = d;
+        //
+        // Accelerated: the step is applied to the prediction
+        // y_j = u_j + a_j ( u_j - u_{j-1} ) instead of u_j, with
+        // a_j = sum( g_{j-1} g_{j-2} ) / sum( g_{j-2} g_{j-2} ), clamped to [0,1),
+        // where g_j = u_{j+1} - y_j is the change made by the RL step.
 
-        Vec2d.Cplx deconvImg = Vec2d.createCplx(img);
-        Vec2d.Cplx nextImg = Vec2d.createCplx(img);
-        Vec2d.Cplx errEst = Vec2d.createCplx(img);
+        final int nrBuf = (accelerate) ? (NR_BUFFERS) : (2);
+        if (buffers == null) {
+            buffers = new Vec2d.Cplx[nrBuf];
+            for (int i = 0; i < buffers.length; i++)
+                buffers[i] = Vec2d.createCplx(img);
+        }
+        if (buffers.length < nrBuf)
+            throw new IllegalArgumentException("Not enough RL buffers");
+        for (int i = 0; i < nrBuf; i++)
+            if (buffers[i] == null || buffers[i].vectorSize() != img.vectorSize())
+                throw new IllegalArgumentException("RL buffer missing or of wrong size");
+
+        Vec2d.Cplx deconvImg = buffers[0];  // u_j
+        Vec2d.Cplx nextImg = buffers[1];    // work buffer, then u_{j+1}
+        Vec2d.Cplx lastImg = (accelerate) ? (buffers[2]) : (null); // u_{j-1}, then y_j
+        Vec2d.Cplx grad = (accelerate) ? (buffers[3]) : (null);    // g_j
+        Vec2d.Cplx lastGrad = (accelerate) ? (buffers[4]) : (null); // g_{j-1}
 
         if (inputIsInFreqSpace)
             img.fft2d(true);
 
         deconvImg.copy(img);           // starting guess = observed image
-        nextImg.copy(deconvImg);     // last u_j = starting guess
 
-        for (int i = 0; i < steps; i++) {
+        final int h = img.vectorHeight();
+        final double[] sums = new double[4];
+        final double[] rows = new double[4 * h];
+        double alpha = 0, change = -1;
+        int i = 0;
+
+        for (; i < steps; i++) {
+
+            // 0: prediction y_j, stored in the buffer of u_{j-1}
+            Vec2d.Cplx pred = deconvImg;
+            if (accelerate && i >= 2 && alpha > 0) {
+                extrapolate(deconvImg, lastImg, alpha, h);
+                pred = lastImg;
+            }
 
-            // 1: compute u_j * psf
+            // 1: compute y_j * psf
+            nextImg.copy(pred);
             nextImg.fft2d(false);
             nextImg.times(otf);
             nextImg.fft2d(true);
 
-            // 2: compute d / [1] = d / ( u_j * psf )
-            nextImg.reciproc();
-            nextImg.times(img);
+            // 2: compute d / [1] = d / ( y_j * psf )
+            divide(img, nextImg, h);
 
-            // 3: compute [2]*psf = (d / ( u_j * psf )) * psf'
+            // 3: compute [2]*psf = (d / ( y_j * psf )) * psf'
             nextImg.fft2d(false);
             nextImg.times(otf);
             nextImg.fft2d(true);
 
-            // 4: compute u_j * [3]
-            nextImg.times(deconvImg);
+            // 4: compute y_j * [3], the step g_j, and the sums for alpha and the change
+            final boolean check = (tolerance > 0 && (i + 1) % CHECK_INTERVAL == 0);
+            update(nextImg, pred, grad, lastGrad, (check) ? (deconvImg) : (null), sums, rows, h);
 
-            // 5: now nextImg contains the next guess (u_{j+1})
-            // 5a: compute how much the iteration changed u_j -> u_{j+1}
-            errEst.copy(nextImg);
-            errEst.scal(-1);
-            errEst.add(deconvImg);
-            Tool.trace("RL-iteration " + i + ": " + Math.sqrt(errEst.norm2()) / errEst.vectorSize());
+            if (accelerate) {
+                alpha = (i >= 1 && sums[1] > 0) ? (Math.min(Math.max(sums[0] / sums[1], 0), 0.99)) : (0);
+                Vec2d.Cplx t = lastGrad;
+                lastGrad = grad;
+                grad = t;
+            }
 
-            // 5b: set the new image as the current deconv. image
-            deconvImg.copy(nextImg);
+            // 5: u_{j+1} becomes the current estimate, u_j the last one
+            Vec2d.Cplx t = (accelerate) ? (lastImg) : (deconvImg);
+            if (accelerate)
+                lastImg = deconvImg;
+            deconvImg = nextImg;
+            nextImg = t;
 
+            if (check) {
+                change = (sums[3] > 0) ? (Math.sqrt(sums[2] / sums[3])) : (0);
+                if (change < tolerance) {
+                    i++;
+                    break;
+                }
+            }
         }
 
+        Tool.trace(String.format("RL: %d of %d iterations%s%s", i, steps,
+                (accelerate) ? (", accelerated") : (""),
+                (change >= 0) ? (String.format(", rel. change %5.3e", change)) : ("")));
+
         // copy back the result
         img.copy(deconvImg);
         if (inputIsInFreqSpace)
             img.fft2d(false);
 
+        return i;
     }
 
+    /**
+     * img / est, result stored in est
+     */
+    private static void divide(final Vec2d.Cplx img, final Vec2d.Cplx est, final int h) {
+        final float[] d = img.vectorData();
+        final float[] e = est.vectorData();
+        final int w = img.vectorSize() / h;
 
-}
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                for (int i = 2 * y * w; i < 2 * (y + 1) * w; i += 2) {
+                    final float a = d[i], b = d[i + 1], c = e[i], f = e[i + 1];
+                    final float s = c * c + f * f;
+                    e[i] = (s > 0) ? ((a * c + b * f) / s) : (0);
+                    e[i + 1] = (s > 0) ? ((b * c - a * f) / s) : (0);
+                }
+            }
+        };
+        est.syncBuffer();
+    }
+
+    /**
+     * next = next * pred, and if 'grad' is set, grad = next - pred.
+     * Accumulates sum(grad*lastGrad) in sums[0], sum(lastGrad^2) in sums[1],
+     * and if 'cur' is set, sum((next - cur)^2) in sums[2] and sum(cur^2) in sums[3].
+     * 'rows' (4 * h) holds the sums of each row.
+     */
+    private static void update(final Vec2d.Cplx next, final Vec2d.Cplx pred,
+                               final Vec2d.Cplx grad, final Vec2d.Cplx lastGrad,
+                               final Vec2d.Cplx cur, final double[] sums,
+                               final double[] rows, final int h) {
+        final float[] n = next.vectorData();
+        final float[] p = pred.vectorData();
+        final float[] g = (grad != null) ? (grad.vectorData()) : (null);
+        final float[] lg = (lastGrad != null) ? (lastGrad.vectorData()) : (null);
+        final float[] c = (cur != null) ? (cur.vectorData()) : (null);
+        final int w = next.vectorSize() / h;
+
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                double gg = 0, ll = 0, dd = 0, cc = 0;
+                for (int i = 2 * y * w; i < 2 * (y + 1) * w; i += 2) {
+                    final float a = n[i], b = n[i + 1];
+                    final float re = a * p[i] - b * p[i + 1];
+                    final float im = a * p[i + 1] + b * p[i];
+                    n[i] = re;
+                    n[i + 1] = im;
+                    if (g != null) {
+                        final float gr = re - p[i], gi = im - p[i + 1];
+                        gg += gr * lg[i] + gi * lg[i + 1];
+                        ll += lg[i] * lg[i] + lg[i + 1] * lg[i + 1];
+                        g[i] = gr;
+                        g[i + 1] = gi;
+                    }
+                    if (c != null) {
+                        final float dr = re - c[i], di = im - c[i + 1];
+                        dd += dr * dr + di * di;
+                        cc += c[i] * c[i] + c[i + 1] * c[i + 1];
+                    }
+                }
+                rows[4 * y] = gg;
+                rows[4 * y + 1] = ll;
+                rows[4 * y + 2] = dd;
+                rows[4 * y + 3] = cc;
+            }
+        };
+
+        java.util.Arrays.fill(sums, 0);
+        for (int y = 0; y < h; y++)
+            for (int k = 0; k < 4; k++)
+                sums[k] += rows[4 * y + k];
+        next.syncBuffer();
+        if (grad != null)
+            grad.syncBuffer();
+    }
+
+    /**
+     * last = cur + alpha (cur - last). Where this would turn a non-negative
+     * estimate negative, the estimate is kept unchanged.
+     */
+    private static void extrapolate(final Vec2d.Cplx cur, final Vec2d.Cplx last,
+                                    final double alpha, final int h) {
+        final float[] c = cur.vectorData();
+        final float[] l = last.vectorData();
+        final float a = (float) alpha;
+        final int w = cur.vectorSize() / h;
+
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                for (int i = 2 * y * w; i < 2 * (y + 1) * w; i += 2) {
+                    final float re = c[i] + a * (c[i] - l[i]);
+                    if (re < 0 && c[i] >= 0) {
+                        l[i] = c[i];
+                        l[i + 1] = c[i + 1];
+                    } else {
+                        l[i] = re;
+                        l[i + 1] = c[i + 1] + a * (c[i + 1] - l[i + 1]);
+                    }
+                }
+            }
+        };
+        last.syncBuffer();
+    }
 
+    // rel. residual | est * psf - observed | / | observed |
+    private static double residual(Vec2d.Cplx est, Vec2d.Cplx observed, Vec2d.Cplx otf) {
+        Vec2d.Cplx r = est.duplicate();
+        r.fft2d(false);
+        r.times(otf);
+        r.fft2d(true);
+        r.axpy(-1, observed);
+        return Math.sqrt(r.norm2() / observed.norm2());
+    }
+
+    /**
+     * For testing: plain vs. accelerated RL, both stopped by the tolerance,
+     * on a simulated blurred object. Also finds the number of plain iterations
+     * needed to reach the residual of the accelerated result.
+     */
+    public static void main(String[] args) {
 
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final int steps = (args.length > 1) ? (Integer.parseInt(args[1])) : (100);
+        final double tol = (args.length > 2) ? (Double.parseDouble(args[2])) : (1e-2);
+
+        OtfProvider otfPr = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        otfPr.setPixelSize(1 / (size * 0.04));
+        Vec2d.Cplx otf = Vec2d.createCplx(size, size);
+        otfPr.writeOtfVector(otf, 0, 0, 0);
+
+        // sparse object on a background, imaged by the OTF
+        float[] sparse = SimUtils.sparseObject(size, size, new java.util.Random(42));
+        Vec2d.Cplx obj = Vec2d.createCplx(size, size);
+        float[] dat = obj.vectorData();
+        for (int i = 0; i < size * size; i++)
+            dat[2 * i] = sparse[i];
+        obj.syncBuffer();
+        Vec2d.Cplx blurred = obj.duplicate();
+        blurred.fft2d(false);
+        blurred.times(otf);
+        blurred.fft2d(true);
+
+        Vec2d.Cplx[] buffers = new Vec2d.Cplx[NR_BUFFERS];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = Vec2d.createCplx(size, size);
+
+        // warm up
+        deconvolve(blurred.duplicate(), otf, 10, false, false, 0, buffers);
+        deconvolve(blurred.duplicate(), otf, 10, false, true, 0, buffers);
+
+        Tool.Timer tPlain = Tool.getTimer(), tAcc = Tool.getTimer();
+        Vec2d.Cplx plain = blurred.duplicate();
+        tPlain.start();
+        int nPlain = deconvolve(plain, otf, steps, false, false, tol, buffers);
+        tPlain.stop();
+
+        Vec2d.Cplx acc = blurred.duplicate();
+        tAcc.start();
+        int nAcc = deconvolve(acc, otf, steps, false, true, tol, buffers);
+        tAcc.stop();
+
+        double resPlain = residual(plain, blurred, otf);
+        double resAcc = residual(acc, blurred, otf);
+
+        // plain iterations to the residual of the accelerated result, up to
+        // 10x the maximum: doubling, then bisection (the residual drops with
+        // every RL iteration)
+        int lo = 0, hi = Math.max(1, nAcc);
+        Vec2d.Cplx tmp = blurred.duplicate();
+        boolean reached = false;
+        while (!reached && lo < 10 * steps) {
+            tmp.copy(blurred);
+            deconvolve(tmp, otf, hi, false, false, 0, buffers);
+            reached = residual(tmp, blurred, otf) <= resAcc;
+            if (!reached) {
+                lo = hi;
+                hi = Math.min(2 * hi, 10 * steps);
+            }
+        }
+        while (reached && hi - lo > 1) {
+            int mid = (lo + hi) / 2;
+            tmp.copy(blurred);
+            deconvolve(tmp, otf, mid, false, false, 0, buffers);
+            if (residual(tmp, blurred, otf) <= resAcc)
+                hi = mid;
+            else
+                lo = mid;
+        }
+
+        plain.axpy(-1, obj);
+        acc.axpy(-1, obj);
+        double errPlain = Math.sqrt(plain.norm2() / obj.norm2());
+        double errAcc = Math.sqrt(acc.norm2() / obj.norm2());
+
+        Tool.trace(String.format("%dx%d, tolerance %5.3e: plain %d iterations %s, accelerated %d iterations %s",
+                size, size, tol, nPlain, tPlain, nAcc, tAcc));
+        Tool.trace(String.format("residual: plain %5.3e, accelerated %5.3e; plain needs %s iterations to %5.3e",
+                resPlain, resAcc, (reached) ? ("" + hi) : ("more than " + (10 * steps)), resAcc));
+        Tool.trace(String.format("rel. error to object: plain %5.3e, accelerated %5.3e -> %s",
+                errPlain, errAcc, (nAcc < steps && (!reached || hi > nAcc)) ? ("OK") : ("FAIL")));
+        SimpleMT.shutdown();
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.MTool;
+import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Distance of every pixel of a w x h frequency-space vector to (kx,ky),
+ * in cycles/micron. OTF, attenuation and APO vectors are radially
+ * symmetric, so with a stored map rendering them is a table lookup per pixel.
+ * <p>
+ * Only maps that are requested more than once are stored: the first request
+ * for a (size, kx, ky, pixel size) returns a map that computes its distances
+ * on the fly (as fast as the plain loop), the second one stores the distances
+ * as float. Least-recently-used maps are dropped once the byte budget is
+ * exceeded. For kx=ky=0 only one quadrant is stored and mirrored.
+ */
+public final class RadiusMap {
+
+    private final int w, h, qw;
+    private final double kx, ky, cyclMicron;
+    private final boolean mirrored;
+    private final float[] dist;
+
+    private RadiusMap(final int w, final int h, final double kx, final double ky,
+                      final double cyclMicron, final boolean store) {
+        this.w = w;
+        this.h = h;
+        this.kx = kx;
+        this.ky = ky;
+        this.cyclMicron = cyclMicron;
+        this.mirrored = (kx == 0 && ky == 0);
+        this.qw = (mirrored) ? (w - w / 2 + 1) : (w);
+        final int qh = (mirrored) ? (h - h / 2 + 1) : (h);
+        this.dist = (store) ? (new float[qw * qh]) : (null);
+        if (!store)
+            return;
+
+        new SimpleMT.PFor(0, qh) {
+            public void at(int y) {
+                for (int x = 0; x < qw; x++)
+                    dist[x + y * qw] = (float) compute(x, y);
+            }
+        };
+    }
+
+    // distance of pixel x,y (in the stored quadrant, if mirrored)
+    private double compute(int x, int y) {
+        // wrap to coordinates: x in [-w/2,w/2], y in [-h/2, h/2]
+        double xh = (mirrored || x < w / 2) ? (x) : (x - w);
+        double yh = (mirrored) ? (y) : ((y < h / 2) ? (-y) : (h - y));
+        return MTool.fhypot(xh - kx, yh - ky) * cyclMicron;
+    }
+
+    /**
+     * Distance of pixel x,y to (kx,ky), in cycles/micron
+     */
+    public double get(int x, int y) {
+        if (mirrored) {
+            x = (x < w / 2) ? (x) : (w - x);
+            y = (y < h / 2) ? (y) : (h - y);
+        }
+        return (dist != null) ? (dist[x + y * qw]) : (compute(x, y));
+    }
+
+    /**
+     * If the distances are stored (and not computed on every access)
+     */
+    public boolean isStored() {
+        return dist != null;
+    }
+
+    /**
+     * Memory used by this map, in bytes
+     */
+    public long getBytes() {
+        return (dist != null) ? (4L * dist.length) : (0);
+    }
+
+    // ------ cache ------
+
+    private static class Key {
+        final int w, h;
+        final long kx, ky, cycl;
+
+        Key(int w, int h, double kx, double ky, double cycl) {
+            this.w = w;
+            this.h = h;
+            this.kx = Double.doubleToLongBits(kx);
+            this.ky = Double.doubleToLongBits(ky);
+            this.cycl = Double.doubleToLongBits(cycl);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key c = (Key) o;
+            return (c.w == w && c.h == h && c.kx == kx && c.ky == ky && c.cycl == cycl);
+        }
+
+        @Override
+        public int hashCode() {
+            long l = 31 * (31 * kx + ky) + cycl;
+            return 31 * (31 * w + h) + (int) (l ^ (l >>> 32));
+        }
+    }
+
+    private static final LinkedHashMap<Key, RadiusMap> cache =
+            new LinkedHashMap<Key, RadiusMap>(32, .75f, true);
+    private static long byteBudget = Runtime.getRuntime().maxMemory() / 16;
+    private static long bytesUsed = 0;
+
+    // maps requested once, not stored yet (keys only, the most recent ones)
+    private static final int MAX_SEEN = 256;
+    private static final LinkedHashMap<Key, Boolean> seen = new LinkedHashMap<Key, Boolean>(64, .75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> e) {
+            return size() > MAX_SEEN;
+        }
+    };
+
+    /**
+     * Get the distance map for a w x h vector, centered at kx,ky.
+     * The first request returns a map computing distances on access, later
+     * ones a stored map. Maps larger than the byte budget are never stored.
+     *
+     * @param w          Vector width
+     * @param h          Vector height
+     * @param kx         Center position x, in pixels
+     * @param ky         Center position y, in pixels
+     * @param cyclMicron Pixel size, in cycles/micron
+     */
+    public static RadiusMap get(int w, int h, double kx, double ky, double cyclMicron) {
+        // -0 would not match +0 in the key
+        kx += 0.0;
+        ky += 0.0;
+        final Key key = new Key(w, h, kx, ky, cyclMicron);
+        synchronized (cache) {
+            RadiusMap m = cache.get(key);
+            if (m != null)
+                return m;
+            if (seen.put(key, Boolean.TRUE) == null || byteBudget == 0)
+                return new RadiusMap(w, h, kx, ky, cyclMicron, false);
+        }
+
+        RadiusMap m = new RadiusMap(w, h, kx, ky, cyclMicron, true);
+
+        synchronized (cache) {
+            RadiusMap other = cache.get(key);
+            if (other != null)
+                return other;
+            if (m.getBytes() <= byteBudget) {
+                cache.put(key, m);
+                seen.remove(key);
+                bytesUsed += m.getBytes();
+                evict();
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Set the maximum memory used by stored maps, in bytes (0: distances
+     * are always computed). Defaults to 1/16 of the maximum heap size.
+     */
+    public static void setByteBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Byte budget must not be negative");
+        synchronized (cache) {
+            byteBudget = bytes;
+            evict();
+        }
+    }
+
+    /**
+     * Remove all stored maps, and forget which ones were requested
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+            seen.clear();
+            bytesUsed = 0;
+        }
+    }
+
+    /**
+     * Memory currently used by stored maps, in bytes
+     */
+    public static long getBytesUsed() {
+        synchronized (cache) {
+            return bytesUsed;
+        }
+    }
+
+    // remove least recently used maps until within budget, lock held by caller
+    private static void evict() {
+        Iterator<Map.Entry<Key, RadiusMap>> it = cache.entrySet().iterator();
+        while (bytesUsed > byteBudget && it.hasNext()) {
+            bytesUsed -= it.next().getValue().getBytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * For testing: compare against the direct computation, and time
+     * rendering OTFs with stored maps vs. computed distances
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (1024);
+        final double cycl = 1 / (size * 0.04);
+        final double[][] k = {{0, 0}, {20.3, -50.7}, {-20.3, 50.7}};
+
+        // every pixel: first request computed (exact), second one stored (float)
+        double errComputed = 0, errStored = 0;
+        boolean storedOnSecond = true;
+        for (double[] kk : k) {
+            RadiusMap m1 = get(size, size, kk[0], kk[1], cycl);
+            RadiusMap m2 = get(size, size, kk[0], kk[1], cycl);
+            storedOnSecond &= (!m1.isStored() && m2.isStored());
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++) {
+                    double xh = (x < size / 2) ? (x) : (x - size);
+                    double yh = (y < size / 2) ? (-y) : (size - y);
+                    double d = MTool.fhypot(xh - kk[0], yh - kk[1]) * cycl;
+                    errComputed = Math.max(errComputed, Math.abs(m1.get(x, y) - d));
+                    errStored = Math.max(errStored, Math.abs(m2.get(x, y) - d) / Math.max(d, cycl));
+                }
+        }
+
+        // timing: OTF rendering with stored maps vs. computed distances
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        otf.setPixelSize(cycl);
+        org.fairsim.linalg.Vec2d.Cplx vec = org.fairsim.linalg.Vec2d.createCplx(size, size);
+        Tool.Timer tStored = Tool.getTimer(), tComputed = Tool.getTimer();
+        final long budget = byteBudget;
+        for (int loop = 0; loop < 10; loop++) {
+            setByteBudget(budget);
+            tStored.start();
+            for (double[] kk : k)
+                otf.writeOtfVector(vec, 0, kk[0], kk[1]);
+            tStored.hold();
+            setByteBudget(0);
+            tComputed.start();
+            for (double[] kk : k)
+                otf.writeOtfVector(vec, 0, kk[0], kk[1]);
+            tComputed.hold();
+        }
+        setByteBudget(budget);
+
+        Tool.trace(String.format("%dx%d, 3 OTFs 10x: stored maps %s, computed distances %s, quadrant map %d kB",
+                size, size, tStored, tComputed, get(size, size, 0, 0, cycl).getBytes() / 1024));
+        Tool.trace(String.format("difference to direct distance: computed %5.3e, stored (rel.) %5.3e, " +
+                        "stored on 2nd request: %b -> %s", errComputed, errStored, storedOnSecond,
+                (errComputed == 0 && errStored < 1e-7 && storedOnSecond) ? ("OK") : ("FAIL")));
+        SimpleMT.shutdown();
+    }
+
+}
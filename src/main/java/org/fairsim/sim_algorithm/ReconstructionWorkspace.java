@@ -0,0 +1,376 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Transforms;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.Tool;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Buffers used by {@link SimAlgorithm#runReconstruction}.
+ * Create this once for a parameter set and pass it to every
+ * reconstruction call, so consecutive frames (time series, batch mode)
+ * reuse the same vectors instead of allocating new ones.
+ * The result image returned by the reconstruction is owned by the
+ * workspace, and overwritten by the next call.
+ * <p>
+ * In parallel direction mode, each pattern direction gets its own set
+ * of buffers, so the directions can be reconstructed as independent tasks.
+ */
+public class ReconstructionWorkspace {
+
+    final int w, h;          // size of the input (raw) images
+    final int nrDirs;        // number of pattern directions
+    final int nrComp;        // number of band components per direction
+    final int nrPha;         // number of phases per direction
+    final boolean parallelDirections;
+
+    // buffers, input size (w x h), per slot
+    final Vec2d.Cplx[][] tmpArray;
+    final Vec2d.Cplx[][] separate;
+
+    // buffers, result size (2w x 2h)
+    final Vec2d.Cplx[][] shifted;
+    final Vec2d.Cplx fullResult;
+    final Vec2d.Real resultImage;
+
+    // buffers only needed by some filter styles, created on first use
+    private Vec2d.Real denom = null;
+    private Vec2d.Cplx apo = null;
+    private Vec2d.Cplx inputOtf = null;
+    private Vec2d.Cplx otfSim = null;
+    private Vec2d.Cplx otfTmp = null;
+    private Vec2d.Cplx[] rlBuffers = null;
+    private Vec2d.Cplx[][] rlInputBuffers = null;
+    private Vec2d.Cplx[] widefieldLow = null;
+    private Vec2d.Cplx widefieldSpectrum = null;
+    private Vec2d.Real widefieldImage = null;
+
+    // Wiener filter, and the parameter set it was created for
+    private WienerFilter wFilter = null;
+    private SimParam wFilterParam = null;
+
+    /**
+     * Allocate all buffers needed to reconstruct with 'param',
+     * directions are reconstructed one after another.
+     *
+     * @param param SIM parameters, with image size set
+     */
+    public ReconstructionWorkspace(SimParam param) {
+        this(param, false);
+    }
+
+    /**
+     * Allocate all buffers needed to reconstruct with 'param'.
+     *
+     * @param param              SIM parameters, with image size set
+     * @param parallelDirections Reconstruct pattern directions in parallel (needs
+     *                           one set of band buffers per direction)
+     */
+    public ReconstructionWorkspace(SimParam param, boolean parallelDirections) {
+        if (param.vectorWidth() <= 0 || param.vectorHeight() <= 0)
+            throw new IllegalArgumentException("Image size not set in SimParam");
+
+        w = param.vectorWidth();
+        h = param.vectorHeight();
+        nrDirs = param.nrDir();
+        nrComp = param.nrBand() * 2 - 1;
+        nrPha = param.nrPha();
+        this.parallelDirections = parallelDirections;
+
+        final int slots = (parallelDirections) ? (nrDirs) : (1);
+        tmpArray = new Vec2d.Cplx[slots][];
+        separate = new Vec2d.Cplx[slots][];
+        shifted = new Vec2d.Cplx[slots][];
+        for (int i = 0; i < slots; i++) {
+            tmpArray[i] = Vec2d.createArrayCplx(nrPha, w, h);
+            separate[i] = Vec2d.createArrayCplx(nrComp, w, h);
+            shifted[i] = Vec2d.createArrayCplx(nrComp, 2 * w, 2 * h);
+        }
+        fullResult = Vec2d.createCplx(2 * w, 2 * h);
+        resultImage = Vec2d.createReal(2 * w, 2 * h);
+    }
+
+    /**
+     * Estimate the memory used by a (serial) workspace for 'param', in bytes,
+     * including the buffers for RL filtering and the Wiener filter used with
+     * intermediate output.
+     */
+    public static long estimateBytes(SimParam param) {
+        final long px = (long) param.vectorWidth() * param.vectorHeight();
+        final int nrComp = param.nrBand() * 2 - 1;
+        long cplx = px * (param.nrPha() + nrComp + 1)   // tmpArray, separate, inputOtf
+                + 4 * px * (nrComp + 1 + 3)             // shifted, fullResult, otfSim, otfTmp, apo
+                + 5 * px * ((param.useRLAcceleration()) ? (RLDeconvolution.NR_BUFFERS) : (2)); // RL, out and in
+        long real = 4 * px * 2;                         // resultImage, denom
+        return cplx * 8 + real * 4;
+    }
+
+    /**
+     * Check if this workspace can be used to reconstruct with 'param'.
+     */
+    public boolean fits(SimParam param) {
+        return (param.vectorWidth() == w && param.vectorHeight() == h &&
+                param.nrDir() == nrDirs &&
+                param.nrBand() * 2 - 1 == nrComp &&
+                param.nrPha() == nrPha);
+    }
+
+    /**
+     * Returns true if directions are reconstructed in parallel
+     */
+    public boolean isParallelDirections() {
+        return parallelDirections;
+    }
+
+    /**
+     * Return a Wiener filter for 'param', with its cache up to date.
+     * The filter is created on first use and updated in place afterwards.
+     */
+    WienerFilter wienerFilter(SimParam param) {
+        if (wFilter == null || wFilterParam != param) {
+            wFilter = new WienerFilter(param);
+            wFilterParam = param;
+        } else {
+            wFilter.updateCache();
+        }
+        return wFilter;
+    }
+
+    /**
+     * Wiener denominator buffer, 2w x 2h
+     */
+    Vec2d.Real denom() {
+        if (denom == null)
+            denom = Vec2d.createReal(2 * w, 2 * h);
+        return denom;
+    }
+
+    /**
+     * Apotization buffer, 2w x 2h
+     */
+    Vec2d.Cplx apo() {
+        if (apo == null)
+            apo = Vec2d.createCplx(2 * w, 2 * h);
+        return apo;
+    }
+
+    /**
+     * Zero-band OTF buffer (for RL on input), w x h
+     */
+    Vec2d.Cplx inputOtf() {
+        if (inputOtf == null)
+            inputOtf = Vec2d.createCplx(w, h);
+        return inputOtf;
+    }
+
+    /**
+     * Effective SIM OTF buffer (for RL on output), 2w x 2h
+     */
+    Vec2d.Cplx otfSim() {
+        if (otfSim == null)
+            otfSim = Vec2d.createCplx(2 * w, 2 * h);
+        return otfSim;
+    }
+
+    /**
+     * Temporary OTF buffer (for RL on output), 2w x 2h
+     */
+    Vec2d.Cplx otfTmp() {
+        if (otfTmp == null)
+            otfTmp = Vec2d.createCplx(2 * w, 2 * h);
+        return otfTmp;
+    }
+
+    /**
+     * Richardson-Lucy buffers (for RL on output), 2w x 2h,
+     * only the ones needed with or without acceleration are allocated
+     */
+    Vec2d.Cplx[] rlBuffers(boolean accelerate) {
+        if (rlBuffers == null)
+            rlBuffers = new Vec2d.Cplx[RLDeconvolution.NR_BUFFERS];
+        final int n = (accelerate) ? (rlBuffers.length) : (2);
+        for (int i = 0; i < n; i++)
+            if (rlBuffers[i] == null)
+                rlBuffers[i] = Vec2d.createCplx(2 * w, 2 * h);
+        return rlBuffers;
+    }
+
+    /**
+     * Richardson-Lucy buffers of a slot (for RL on input), w x h,
+     * only the ones needed with or without acceleration are allocated
+     */
+    synchronized Vec2d.Cplx[] rlInputBuffers(int slot, boolean accelerate) {
+        if (rlInputBuffers == null)
+            rlInputBuffers = new Vec2d.Cplx[shifted.length][RLDeconvolution.NR_BUFFERS];
+        final Vec2d.Cplx[] b = rlInputBuffers[slot];
+        final int n = (accelerate) ? (b.length) : (2);
+        for (int i = 0; i < n; i++)
+            if (b[i] == null)
+                b[i] = Vec2d.createCplx(w, h);
+        return b;
+    }
+
+    /**
+     * Widefield (band 0) accumulator for a slot, w x h
+     */
+    Vec2d.Cplx widefieldLow(int slot) {
+        if (widefieldLow == null)
+            widefieldLow = new Vec2d.Cplx[shifted.length];
+        if (widefieldLow[slot] == null)
+            widefieldLow[slot] = Vec2d.createCplx(w, h);
+        return widefieldLow[slot];
+    }
+
+    /**
+     * Widefield spectrum, 2w x 2h
+     */
+    Vec2d.Cplx widefieldSpectrum() {
+        if (widefieldSpectrum == null)
+            widefieldSpectrum = Vec2d.createCplx(2 * w, 2 * h);
+        return widefieldSpectrum;
+    }
+
+    /**
+     * Widefield image, 2w x 2h
+     */
+    Vec2d.Real widefieldImage() {
+        if (widefieldImage == null)
+            widefieldImage = Vec2d.createReal(2 * w, 2 * h);
+        return widefieldImage;
+    }
+
+
+    /**
+     * Bytes allocated so far by all live threads, or -1 if the JVM
+     * does not provide this information.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+        if (!(tb instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean stb = (com.sun.management.ThreadMXBean) tb;
+        if (!stb.isThreadAllocatedMemorySupported() || !stb.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long sum = 0;
+        for (long a : stb.getThreadAllocatedBytes(tb.getAllThreadIds()))
+            if (a > 0) sum += a;
+        return sum;
+    }
+
+    /**
+     * For testing: compares the memory allocated per frame
+     * with and without reusing a workspace, and the run time
+     * with serial and parallel directions
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final int frames = (args.length > 1) ? (Integer.parseInt(args[1])) : (10);
+
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam param = SimParam.create(3, 3, 5, size, 0.08, otf);
+        for (int d = 0; d < param.nrDir(); d++) {
+            double ang = d * Math.PI / param.nrDir();
+            param.dir(d).setPxPy(0.3 * size * Math.cos(ang), 0.3 * size * Math.sin(ang));
+        }
+
+        // some random input data
+        java.util.Random rnd = new java.util.Random(42);
+        Vec2d.Cplx[][] inFFT = new Vec2d.Cplx[param.nrDir()][param.nrPha()];
+        for (int d = 0; d < param.nrDir(); d++)
+            for (int p = 0; p < param.nrPha(); p++) {
+                inFFT[d][p] = Vec2d.createCplx(size, size);
+                float[] dat = inFFT[d][p].vectorData();
+                for (int i = 0; i < dat.length; i += 2)
+                    dat[i] = 100 + rnd.nextFloat();
+                inFFT[d][p].syncBuffer();
+                Transforms.fft2d(inFFT[d][p], false);
+            }
+
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+
+        // warm up (fills the filter kernel cache, FFT plans)
+        for (int i = 0; i < 3; i++) {
+            SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+            SimAlgorithm.runReconstruction(param, inFFT, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null);
+        }
+
+        long start = allocatedBytes();
+        if (start < 0) {
+            Tool.trace("JVM does not support allocation counting");
+            Tool.shutdown();
+            return;
+        }
+
+        // with a workspace
+        for (int i = 0; i < frames; i++)
+            SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+        long withWs = (allocatedBytes() - start) / frames;
+
+        // without a workspace
+        start = allocatedBytes();
+        for (int i = 0; i < frames; i++)
+            SimAlgorithm.runReconstruction(param, inFFT, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null);
+        long withoutWs = (allocatedBytes() - start) / frames;
+
+        long frameBytes = 2L * size * 2 * size * 8;
+        Tool.trace(String.format("allocated per frame: %8.2f MB with workspace, %8.2f MB without",
+                withWs / 1024. / 1024., withoutWs / 1024. / 1024.));
+        Tool.trace("filter kernel cache: " + FilterKernelCache.getDefault().printState());
+        Tool.trace((withWs < frameBytes) ?
+                "OK: less than one result-sized vector allocated per frame" :
+                "FAIL: workspace still allocates result-sized vectors per frame");
+
+        // directions one after another vs. in parallel
+        ReconstructionWorkspace wsPar = new ReconstructionWorkspace(param, true);
+        Vec2d.Real resSerial = Vec2d.createReal(2 * size, 2 * size);
+        resSerial.copy(SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                SimParam.CLIPSCALE.NONE, null, null, null));
+        Vec2d.Real diff = Vec2d.createReal(2 * size, 2 * size);
+        diff.copy(SimAlgorithm.runReconstruction(param, inFFT, wsPar, null, -1, false,
+                SimParam.CLIPSCALE.NONE, null, null, null));
+        diff.axpy(-1, resSerial);
+        Tool.trace(String.format("parallel directions, rel. difference to serial: %10.3e",
+                Math.sqrt(diff.norm2() / resSerial.norm2())));
+
+        Tool.Timer tSer = Tool.getTimer(), tPar = Tool.getTimer();
+        for (int i = 0; i < frames; i++) {
+            tSer.start();
+            SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+            tSer.hold();
+            tPar.start();
+            SimAlgorithm.runReconstruction(param, inFFT, wsPar, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+            tPar.hold();
+        }
+        Tool.trace(String.format("per frame: %8.2f ms serial directions, %8.2f ms parallel directions",
+                tSer.msElapsed() / frames, tPar.msElapsed() / frames));
+
+        Tool.shutdown();
+    }
+
+}
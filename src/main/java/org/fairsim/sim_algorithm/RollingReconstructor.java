@@ -0,0 +1,376 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Cplx;
+import org.fairsim.linalg.Transforms;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.Tool;
+
+/**
+ * Rolling-window SIM reconstruction for live streams. Raw images
+ * are added one at a time, and each one replaces the previous image at the
+ * same (direction, phase) position. A new SIM image can be obtained after
+ * every raw image.
+ * <p>
+ * As the band separation is linear, replacing one raw image only
+ * requires adding the separated difference to the bands of its direction.
+ * Only that direction is then shifted and OTF-multiplied again, the other
+ * directions' contributions are kept. The assembled spectrum is filtered
+ * as in {@link SimAlgorithm#runReconstruction}.
+ * <p>
+ * If the parameters in 'param' change, call {@link SimParam#signalRuntimeChange}
+ * (or {@link #invalidate}), so all directions are recomputed on the next
+ * call to {@link #getResult}.
+ */
+public class RollingReconstructor {
+
+    /**
+     * After this many incremental updates, a direction is separated
+     * again from its input images, to avoid accumulating rounding errors
+     */
+    static final int RESYNC_INTERVAL = 64;
+
+    private final SimParam param;
+    private final ReconstructionWorkspace ws;
+    private final int w, h;
+
+    private final Vec2d.Cplx[][] raw;          // [dir][pha], FFT'd raw images
+    private final Vec2d.Cplx[][] input;        // [dir][pha], as used for separation (corrected, RL on input)
+    private final Vec2d.Cplx[][] separate;     // [dir][comp], separated bands
+    private final Vec2d.Cplx[] contribution;   // [dir], shifted and OTF-multiplied bands, summed up
+    private final boolean[][] present;         // [dir][pha], image has been added
+    private final boolean[] dirty;             // [dir], contribution has to be recomputed
+    private final int[] updates;               // [dir], incremental updates since last full separation
+
+    private Vec2d.Cplx newRaw, newInput;       // spare vectors for the next image
+    private Vec2d.Cplx inputOtf = null;        // zero-band OTF, for RL on input
+    private int missing;
+    private int seqPos = 0;
+    private long paramStamp;
+    private boolean recomputeAll = false;
+
+    /**
+     * Create a rolling reconstructor. Image size, number of directions
+     * and phases are taken from 'param'.
+     *
+     * @param param SIM parameters, with OTF and image size set
+     */
+    public RollingReconstructor(SimParam param) {
+        this.param = param;
+        this.ws = new ReconstructionWorkspace(param);
+        this.w = param.vectorWidth();
+        this.h = param.vectorHeight();
+
+        final int nDir = param.nrDir();
+        raw = new Vec2d.Cplx[nDir][];
+        input = new Vec2d.Cplx[nDir][];
+        separate = new Vec2d.Cplx[nDir][];
+        contribution = new Vec2d.Cplx[nDir];
+        present = new boolean[nDir][];
+        dirty = new boolean[nDir];
+        updates = new int[nDir];
+
+        for (int d = 0; d < nDir; d++) {
+            SimParam.Dir par = param.dir(d);
+            raw[d] = Vec2d.createArrayCplx(par.nrPha(), w, h);
+            input[d] = Vec2d.createArrayCplx(par.nrPha(), w, h);
+            separate[d] = Vec2d.createArrayCplx(par.nrComp(), w, h);
+            contribution[d] = Vec2d.createCplx(2 * w, 2 * h);
+            present[d] = new boolean[par.nrPha()];
+        }
+        newRaw = Vec2d.createCplx(w, h);
+        newInput = Vec2d.createCplx(w, h);
+
+        reset();
+    }
+
+    /**
+     * Drop all images added so far.
+     */
+    public void reset() {
+        missing = 0;
+        for (int d = 0; d < param.nrDir(); d++) {
+            for (int p = 0; p < present[d].length; p++) {
+                present[d][p] = false;
+                raw[d][p].zero();
+                input[d][p].zero();
+                missing++;
+            }
+            for (Vec2d.Cplx s : separate[d])
+                s.zero();
+            dirty[d] = true;
+            updates[d] = 0;
+        }
+        seqPos = 0;
+        paramStamp = param.getRuntimeTimestamp();
+        recomputeAll = false;
+    }
+
+    /**
+     * Mark all directions for recomputation, e.g. after the
+     * parameters have been changed.
+     */
+    public void invalidate() {
+        recomputeAll = true;
+    }
+
+    /**
+     * Add the next raw image. The position (direction, phase)
+     * follows the image order set in 'param' (see {@link SimParam#getImgSeq}),
+     * starting at the first image after creation or {@link #reset}.
+     *
+     * @param img Raw image
+     * @return true if a full set of images is available
+     */
+    public boolean addFrame(Vec2d.Real img) {
+        final int nDir = param.nrDir(), nPha = param.nrPha();
+        for (int d = 0; d < nDir; d++)
+            for (int p = 0; p < nPha; p++)
+                if (param.getImgSeq().calcPos(d, p, 0, nDir, nPha, 1) == seqPos) {
+                    seqPos = (seqPos + 1) % (nDir * nPha);
+                    return addFrame(img, d, p);
+                }
+        throw new IllegalStateException("No image position for sequence index " + seqPos);
+    }
+
+    /**
+     * Add a raw image, replacing the image at the same position.
+     *
+     * @param img Raw image
+     * @param dir Pattern direction of the image
+     * @param pha Phase of the image
+     * @return true if a full set of images is available
+     */
+    public boolean addFrame(Vec2d.Real img, int dir, int pha) {
+
+        if (img.vectorWidth() != w || img.vectorHeight() != h)
+            throw new IllegalArgumentException("Image size does not match parameters");
+        if (dir < 0 || dir >= param.nrDir() || pha < 0 || pha >= present[dir].length)
+            throw new IndexOutOfBoundsException("Direction or phase out of range");
+
+        // parameters changed: everything gets recomputed on output anyway
+        final boolean incremental = !paramsChanged();
+
+        Transforms.fft2dReal(img, newRaw);
+        newInput.copy(newRaw);
+        prepareInput(newInput, dir, pha);
+
+        if (incremental && updates[dir] < RESYNC_INTERVAL) {
+            // add the separated difference to this direction's bands
+            SimParam.Dir par = param.dir(dir);
+            Vec2d.Cplx old = input[dir][pha];
+            old.scal(new Cplx.Float(-1));
+            old.add(newInput);
+            BandSeparation.addSeparatedInput(old, separate[dir],
+                    par.getPhases(), par.nrBand(), par.getModulations(), pha);
+            updates[dir]++;
+        } else {
+            updates[dir] = RESYNC_INTERVAL;
+        }
+
+        // keep the new image, reuse the old vectors for the next one
+        Vec2d.Cplx tmp = raw[dir][pha];
+        raw[dir][pha] = newRaw;
+        newRaw = tmp;
+        tmp = input[dir][pha];
+        input[dir][pha] = newInput;
+        newInput = tmp;
+
+        if (!present[dir][pha]) {
+            present[dir][pha] = true;
+            missing--;
+        }
+        dirty[dir] = true;
+
+        return missing == 0;
+    }
+
+    /**
+     * Returns true if a full set of images has been added
+     */
+    public boolean isComplete() {
+        return missing == 0;
+    }
+
+    /**
+     * Compute the current SIM image. Only directions that received new
+     * images since the last call are shifted and filtered again. The
+     * returned image is overwritten by the next call.
+     *
+     * @param imgClipScale Clip zero values and scale (0..255) output image?
+     * @return The reconstructed image
+     */
+    public Vec2d.Real getResult(SimParam.CLIPSCALE imgClipScale) {
+
+        if (!isComplete())
+            throw new IllegalStateException("Not all images have been added yet");
+
+        // on parameter change, prepare the input again and recompute everything
+        if (paramsChanged()) {
+            Tool.trace("Rolling reconstruction: parameters changed, recomputing");
+            inputOtf = null;
+            for (int d = 0; d < param.nrDir(); d++) {
+                for (int p = 0; p < present[d].length; p++) {
+                    input[d][p].copy(raw[d][p]);
+                    prepareInput(input[d][p], d, p);
+                }
+                updates[d] = RESYNC_INTERVAL;
+                dirty[d] = true;
+            }
+            paramStamp = param.getRuntimeTimestamp();
+            recomputeAll = false;
+        }
+
+        final FilterKernelCache.Kernels kernels = (param.useWienerFilter()) ?
+                (FilterKernelCache.getDefault().get(param)) : (null);
+
+        for (int d = 0; d < param.nrDir(); d++) {
+            if (!dirty[d])
+                continue;
+
+            SimParam.Dir par = param.dir(d);
+
+            // separate again from the input images
+            if (updates[d] >= RESYNC_INTERVAL) {
+                BandSeparation.separateBands(input[d], separate[d],
+                        par.getPhases(), par.nrBand(), par.getModulations());
+                updates[d] = 0;
+            }
+
+            // the shift works in place, so work on a copy of the bands
+            for (int c = 0; c < par.nrComp(); c++)
+                ws.separate[0][c].copy(separate[d][c]);
+
+            Vec2d.Cplx[] shifted = SimAlgorithm.shiftBands(param, d, ws, 0, kernels, false);
+
+            contribution[d].copy(shifted[0]);
+            for (int c = 1; c < par.nrComp(); c++)
+                contribution[d].add(shifted[c]);
+
+            dirty[d] = false;
+        }
+
+        ws.fullResult.zero();
+        for (int d = 0; d < param.nrDir(); d++)
+            ws.fullResult.add(contribution[d]);
+
+        return SimAlgorithm.filterOutput(param, ws, kernels, null,
+                imgClipScale, -1, null, null);
+    }
+
+    // true if param has changed since the last full computation
+    private boolean paramsChanged() {
+        return recomputeAll || param.compareRuntimeTimestamp(paramStamp);
+    }
+
+    // intensity correction and RL deconvolution of a (FFT'd) input image
+    private void prepareInput(Vec2d.Cplx in, int dir, int pha) {
+        in.scal(new Cplx.Float((float) param.dir(dir).getIntensityQuotient(pha)));
+        if (param.useRLonInput()) {
+            if (inputOtf == null) {
+                inputOtf = Vec2d.createCplx(w, h);
+                param.otf().writeOtfVector(inputOtf, 0, 0, 0);
+            }
+            RLDeconvolution.deconvolve(in, inputOtf, param, true,
+                    ws.rlInputBuffers(0, param.useRLAcceleration()));
+        }
+    }
+
+
+    /**
+     * For testing: compares the rolling reconstruction with a full
+     * reconstruction of the same images, and times both.
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (256);
+        final int frames = (args.length > 1) ? (Integer.parseInt(args[1])) : (45);
+
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam param = SimParam.create(3, 3, 5, size, 0.08, otf);
+        for (int d = 0; d < param.nrDir(); d++) {
+            double ang = d * Math.PI / param.nrDir() + 0.2;
+            param.dir(d).setPxPy(0.23 * size * Math.cos(ang), 0.23 * size * Math.sin(ang));
+        }
+        final int nImg = param.nrDir() * param.nrPha();
+
+        // a slowly moving sparse object
+        java.util.Random rnd = new java.util.Random(42);
+        int[] px = new int[200], py = new int[200];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = rnd.nextInt(size);
+            py[i] = rnd.nextInt(size);
+        }
+
+        RollingReconstructor rr = new RollingReconstructor(param);
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        Vec2d.Cplx[][] window = new Vec2d.Cplx[param.nrDir()][param.nrPha()];
+        Tool.Timer tRoll = Tool.getTimer(), tFull = Tool.getTimer();
+        double maxDiff = 0;
+
+        for (int f = 0; f < frames; f++) {
+            final int d = f / param.nrPha() % param.nrDir(), p = f % param.nrPha();
+
+            // simulate the raw image
+            Vec2d.Real img = Vec2d.createReal(size, size);
+            float[] dat = img.vectorData();
+            double kx = param.dir(d).px(1), ky = param.dir(d).py(1);
+            double pha = param.dir(d).getPhases()[p];
+            for (int i = 0; i < px.length; i++) {
+                int x = (px[i] + f / 4) % size, y = py[i];
+                double ph = 2 * Math.PI * (kx * x - ky * y) / size + pha;
+                dat[x + y * size] += (float) (100 * (1 + 0.5 * Math.cos(ph) + 0.3 * Math.cos(2 * ph)));
+            }
+            img.syncBuffer();
+
+            window[d][p] = Vec2d.createCplx(size, size);
+            Transforms.fft2dReal(img, window[d][p]);
+
+            tRoll.start();
+            boolean complete = rr.addFrame(img);
+            Vec2d.Real rolling = (complete) ? (rr.getResult(SimParam.CLIPSCALE.NONE)) : (null);
+            tRoll.stop();
+
+            if (!complete)
+                continue;
+
+            tFull.start();
+            Vec2d.Real full = SimAlgorithm.runReconstruction(param, window, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+            tFull.stop();
+
+            double diff = 0, norm = 0;
+            float[] a = rolling.vectorData(), b = full.vectorData();
+            for (int i = 0; i < a.length; i++) {
+                diff += (a[i] - b[i]) * (a[i] - b[i]);
+                norm += b[i] * b[i];
+            }
+            maxDiff = Math.max(maxDiff, Math.sqrt(diff / norm));
+        }
+
+        Tool.trace(String.format("%d frames, %dx%d: rolling %s, full (after %d frames) %s",
+                frames, size, size, tRoll, nImg, tFull));
+        Tool.trace(String.format("max. rel. difference rolling vs. full: %5.3e %s",
+                maxDiff, (maxDiff < 1e-4) ? "OK" : "FAIL"));
+
+        Tool.shutdown();
+    }
+
+}
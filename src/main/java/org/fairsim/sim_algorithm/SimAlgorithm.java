@@ -22,6 +22,7 @@ import org.fairsim.linalg.Cplx;
 import org.fairsim.linalg.Transforms;
 import org.fairsim.linalg.Vec2d;
 import org.fairsim.utils.ImageDisplay;
+import org.fairsim.utils.SimpleMT;
 import org.fairsim.utils.Tool;
 
 /**
@@ -65,6 +66,28 @@ public class SimAlgorithm {
                                           Vec2d.Cplx[][] inFFT, final int fitBand, final double fitExclude,
                                           final ImageDisplay.Factory idf,
                                           int visualFeedback, Tool.Timer tEst, boolean keepPhases) {
+        estimateParameters(param, inFFT, fitBand, fitExclude, idf,
+                visualFeedback, tEst, keepPhases, null);
+    }
+
+    /**
+     * Run the SIM parameter estimation, warm-started from the last time point
+     *
+     * @param param          The SIM parameter instance to work on
+     * @param inFFT          The input images (in Fourier space)
+     * @param fitBand        On which band to perform the kx,ky fit
+     * @param fitExclude     How much (in fraction of OTF support) to exclude from fit
+     * @param idf            ImageDisplayFactory for intermediate output (may be null)
+     * @param visualFeedback Feedback Amount of visual feedback, 0..4
+     * @param tEst           Runtime measurement (may be null)
+     * @param keepPhases     If true, phase information from SimParam will be used in band separation
+     * @param tracker        If not null, k-vectors are tracked from its last fit (see {@link ParameterTracker})
+     */
+    public static void estimateParameters(final SimParam param,
+                                          Vec2d.Cplx[][] inFFT, final int fitBand, final double fitExclude,
+                                          final ImageDisplay.Factory idf,
+                                          int visualFeedback, Tool.Timer tEst, boolean keepPhases,
+                                          final ParameterTracker tracker) {
 
         final int w = inFFT[0][0].vectorWidth(), h = inFFT[0][0].vectorHeight();
         final OtfProvider otfPr = param.otf();
@@ -92,6 +115,12 @@ public class SimAlgorithm {
         Vec2d.Real otfAtt = Vec2d.createReal(param);
         otfPr.writeAttenuationVector(otfAtt, .99, 0.15 * otfPr.getCutoff(), 0, 0);
 
+        // reduced resolution: coarse peak search on decimated spectra (only
+        // needed to about a pixel), fine fit cropped to the band overlap
+        final boolean reduced = param.useReducedEstimation();
+        final int bin = (reduced && visualFeedback == 0) ? (estimationBinning(w, h)) : (1);
+        final double fineSearch = Math.max(2.5, bin);
+
         // loop through pattern directions
         for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
 
@@ -126,50 +155,79 @@ public class SimAlgorithm {
             }
 
 
-            // duplicate input, as we will modify it for coarse peak finding
-            // TODO: this could be avoided it neither coarse peak finding
-            // NOR visual feedback is requested
-            Vec2d.Cplx c0 = separate[0].duplicate();
-            Vec2d.Cplx c1 = separate[lb].duplicate();
-            Vec2d.Cplx c2 = separate[hb].duplicate();
-
-            // dampen region around DC
-            c0.times(otfAtt);
-            c1.times(otfAtt);
-            c2.times(otfAtt);
-
-            // compute correlation: ifft, mult. in spatial, fft back
-            Transforms.fft2d(c0, true);
-            Transforms.fft2d(c1, true);
-            Transforms.fft2d(c2, true);
-            c1.timesConj(c0);
-            c2.timesConj(c0);
-            Transforms.fft2d(c1, false);
-            Transforms.fft2d(c2, false);
-
-            double[] peak;
-            double minDist = 2;
+            Vec2d.Real cntrl = Vec2d.createReal(30, 10);
+            double[] peak = null;
+
+            // tracking: narrow peak fit, starting at the last k-vector
+            final double[] trackStart = (tracker != null) ? (tracker.start(angIdx, fitBand)) : (null);
+            if (trackStart != null) {
+                double[] fit = Correlation.fitPeak(separate[0], separate[fb], 0, fitBand, otfPr,
+                        trackStart[0], trackStart[1], 0.05, tracker.getSearch(), cntrl,
+                        param.useFastPeakFit(), param.usePeakPolish(), reduced);
+                if (tracker.accept(angIdx, trackStart, fit)) {
+                    peak = fit;
+                    Tool.trace(String.format("Peak: (dir %1d) tracked from x %7.3f y %7.3f",
+                            angIdx, -trackStart[0], -trackStart[1]));
+                }
+            }
 
-            if (fitExclude > 0) {
-                // find the highest peak in corr of band0 to highest band
-                // with minDist of otfCutoff from origin, store in 'param'
+            double minDist = 2;
+            if (fitExclude > 0)
                 minDist = fitExclude * otfPr.getCutoff() / param.pxlSizeCyclesMicron();
-                peak = Correlation.locatePeak((fitBand == 1) ? (c1) : (c2), minDist);
 
-                Tool.trace(String.format("Peak: (dir %1d) located (min %4.0f) at x %5.0f y %5.0f",
-                        angIdx, minDist, peak[0], peak[1]));
-            } else {
-                // just go with the values stored in param for the coarse peak estimate
-                peak = new double[]{param.dir(angIdx).px(fitBand), param.dir(angIdx).py(fitBand)};
-                Tool.trace(String.format("Peak: (dir %1d) from sim param preset at x %5.0f y %5.0f",
-                        angIdx, peak[0], peak[1]));
+            // correlations for coarse peak finding and visual feedback
+            Vec2d.Cplx c1 = null, c2 = null;
+            if ((peak == null && fitExclude > 0) || visualFeedback > 0) {
+                // duplicate input, as we will modify it for coarse peak finding
+                Vec2d.Cplx c0 = separate[0].duplicate();
+                c1 = separate[lb].duplicate();
+                c2 = separate[hb].duplicate();
+
+                // dampen region around DC
+                c0.times(otfAtt);
+                c1.times(otfAtt);
+                c2.times(otfAtt);
+
+                if (bin > 1) {
+                    c0 = SimUtils.decimateSpectrum(c0, bin);
+                    c1 = SimUtils.decimateSpectrum(c1, bin);
+                    c2 = SimUtils.decimateSpectrum(c2, bin);
+                }
+
+                // compute correlation: ifft, mult. in spatial, fft back
+                Transforms.fft2dBatch(new Vec2d.Cplx[]{c0, c1, c2}, true);
+                c1.timesConj(c0);
+                c2.timesConj(c0);
+                Transforms.fft2dBatch(new Vec2d.Cplx[]{c1, c2}, false);
             }
 
-            // fit the peak to sub-pixel precision by cross-correlation of
-            // Fourier-shifted components
-            Vec2d.Real cntrl = Vec2d.createReal(30, 10);
-            peak = Correlation.fitPeak(separate[0], separate[fb], 0, fitBand, otfPr,
-                    -peak[0], -peak[1], 0.05, 2.5, cntrl);
+            if (peak == null) {
+                double[] coarse;
+                if (fitExclude > 0) {
+                    // find the highest peak in corr of band0 to highest band
+                    // with minDist of otfCutoff from origin, store in 'param'
+                    coarse = Correlation.locatePeak((fitBand == 1) ? (c1) : (c2), minDist / bin);
+                    coarse[0] *= bin;
+                    coarse[1] *= bin;
+
+                    Tool.trace(String.format("Peak: (dir %1d) located (min %4.0f, decimated %d) at x %5.0f y %5.0f",
+                            angIdx, minDist, bin, coarse[0], coarse[1]));
+                } else {
+                    // just go with the values stored in param for the coarse peak estimate
+                    coarse = new double[]{param.dir(angIdx).px(fitBand), param.dir(angIdx).py(fitBand)};
+                    Tool.trace(String.format("Peak: (dir %1d) from sim param preset at x %5.0f y %5.0f",
+                            angIdx, coarse[0], coarse[1]));
+                }
+
+                // fit the peak to sub-pixel precision by cross-correlation of
+                // Fourier-shifted components
+                peak = Correlation.fitPeak(separate[0], separate[fb], 0, fitBand, otfPr,
+                        -coarse[0], -coarse[1], 0.05, fineSearch, cntrl,
+                        param.useFastPeakFit(), param.usePeakPolish(), reduced);
+            }
+
+            if (tracker != null)
+                tracker.update(angIdx, fitBand, peak);
 
             // Now, either three beam / 3 bands ...
             if (lb != hb) {
@@ -324,6 +382,19 @@ public class SimAlgorithm {
     }
 
 
+    /**
+     * Decimation for the coarse peak search in reduced-resolution estimation:
+     * 2 or 4, as long as the decimated spectra stay at least 512 pxl wide
+     */
+    static int estimationBinning(int w, int h) {
+        int f = 1;
+        while (f < 4 && w / (2 * f) >= 512 && h / (2 * f) >= 512
+                && w % (2 * f) == 0 && h % (2 * f) == 0)
+            f *= 2;
+        return f;
+    }
+
+
     /**
      * Estimate absolute phases for each raw data frame.
      * This follows the non-iterative phase estimation based on auto-correlation by Wicker et al.
@@ -418,14 +489,44 @@ public class SimAlgorithm {
                                                Vec2d.Real widefieldResult,
                                                Vec2d.Real filteredWidefieldResult,
                                                Tool.Timer tRec) {
+        return runReconstruction(param, inFFT, new ReconstructionWorkspace(param),
+                idf, visualFeedback, otfBeforeShift, imgClipScale,
+                widefieldResult, filteredWidefieldResult, tRec);
+    }
+
+
+    /**
+     * Run the SIM reconstruction, using the buffers of a workspace.
+     * Reusing the same workspace for consecutive frames avoids
+     * allocating new vectors on each call. The returned image belongs
+     * to the workspace, and is overwritten by the next call.
+     *
+     * @param param                   The SIM parameter instance to work on
+     * @param inFFT                   The input images (in Fourier space)
+     * @param ws                      Workspace, has to fit 'param' (see {@link ReconstructionWorkspace#fits})
+     * @param idf                     ImageDisplayFactory for intermediate output (may be null)
+     * @param visualFeedback          Feedback Amount of visual feedback, -1 (off) ..4
+     * @param otfBeforeShift          Apply the OTF before shifting bands
+     * @param imgClipScale            Clip zero values and scale (0..255) output images?
+     * @param widefieldResult         The widefield image computed during the reconstruction (may be null)
+     * @param filteredWidefieldResult The filtered widefield image (may be null)
+     * @param tRec                    Runtime measurement (may be null)
+     * @return The reconstructed image
+     */
+    public static Vec2d.Real runReconstruction(final SimParam param,
+                                               Vec2d.Cplx[][] inFFT, final ReconstructionWorkspace ws,
+                                               ImageDisplay.Factory idf, int visualFeedback,
+                                               final boolean otfBeforeShift, final SimParam.CLIPSCALE imgClipScale,
+                                               Vec2d.Real widefieldResult,
+                                               Vec2d.Real filteredWidefieldResult,
+                                               Tool.Timer tRec) {
 
         if (tRec != null) tRec.start();
 
         final int w = inFFT[0][0].vectorWidth(), h = inFFT[0][0].vectorHeight();
 
-        final double apoB = param.getApoBend(), apoF = param.getApoCutoff(); // Bend and mag. factor of APO
-
-        final OtfProvider otfPr = param.otf();
+        if (!ws.fits(param) || w != ws.w || h != ws.h)
+            throw new IllegalArgumentException("Workspace does not match parameters or input size");
 
         ImageDisplay pwSt = null, pwSt2 = null, spSt = null, spSt2 = null;
 
@@ -442,11 +543,19 @@ public class SimAlgorithm {
             }
         }
 
-        // setup WienerFilter
-        Tool.tell("Setting up Wiener filter");
-        WienerFilter wFilter = new WienerFilter(param);
+        // setup WienerFilter: without intermediate output, the finished filter
+        // vectors are taken from the cache, otherwise they are computed here
+        WienerFilter wFilter = null;
+        FilterKernelCache.Kernels kernels = null;
         double wienParam = param.getWienerFilter();
 
+        if (visualFeedback > 0) {
+            Tool.tell("Setting up Wiener filter");
+            wFilter = ws.wienerFilter(param);
+        } else if (param.useWienerFilter()) {
+            kernels = FilterKernelCache.getDefault().get(param);
+        }
+
         if (visualFeedback > 0 && param.useWienerFilter()) {
             Vec2d.Real wd = wFilter.getDenominator(wienParam);
             wd.reciproc();
@@ -455,13 +564,157 @@ public class SimAlgorithm {
             pwSt2.addImage(wd, "Wiener denominator");
         }
 
+        // band separation, shift, OTF, sum up into 'ws.fullResult'
+        final boolean captureWidefield =
+                visualFeedback >= 0 || widefieldResult != null || filteredWidefieldResult != null;
+        assembleBands(param, inFFT, ws, kernels, wFilter, otfBeforeShift, captureWidefield,
+                imgClipScale, visualFeedback, pwSt, spSt, pwSt2, spSt2);
+
+        // -- done loop all pattern directions, 'fullResult' now holds the image --
+
+        Vec2d.Real fullResultImage = filterOutput(param, ws, kernels, wFilter,
+                imgClipScale, visualFeedback, pwSt2, spSt2);
+
+        // -----------------------------------------------------------------------
+
+        // ------------------------------------------------------------------------
+        // wide-field for comparison
+        // ------------------------------------------------------------------------
+
+        if (captureWidefield) {
+            outputWidefield(param, ws, kernels, wFilter, imgClipScale, visualFeedback,
+                    pwSt2, spSt2, widefieldResult, filteredWidefieldResult);
+        }
+
+        // stop timers
+        if (tRec != null) tRec.stop();
+
+        Tool.tell("done.");
+
+        // output parameters
+        Tool.trace(" ---- Reconstruction ---- ");
+        Tool.trace("\n" + param.prettyPrint(true));
+
+        if (visualFeedback >= 0) {
+            pwSt.display();
+            spSt.display();
+            pwSt2.display();
+        }
+
+        if (spSt2 != null)
+            spSt2.display();
+
+        return fullResultImage;
+    }
+
+
+    /**
+     * Run the first part of the SIM reconstruction: band separation, shift,
+     * OTF multiplication and summation. The result only depends on the
+     * parameters that are not filter settings, so it can be kept and filtered
+     * with different Wiener, APO or RL settings (but the same filter
+     * style) by {@link #filterSpectrum},
+     * which only has to multiply the filter and run one inverse FFT.
+     *
+     * @param param          The SIM parameter instance to work on
+     * @param inFFT          The input images (in Fourier space)
+     * @param ws             Workspace, has to fit 'param' (see {@link ReconstructionWorkspace#fits})
+     * @param otfBeforeShift Apply the OTF before shifting bands
+     * @param tRec           Runtime measurement (may be null)
+     * @return The assembled spectrum, with a copy of 'param'
+     */
+    public static AssembledSpectrum assembleSpectrum(final SimParam param,
+                                                     Vec2d.Cplx[][] inFFT, final ReconstructionWorkspace ws,
+                                                     final boolean otfBeforeShift, Tool.Timer tRec) {
+
+        if (tRec != null) tRec.start();
+
+        final int w = inFFT[0][0].vectorWidth(), h = inFFT[0][0].vectorHeight();
+        if (!ws.fits(param) || w != ws.w || h != ws.h)
+            throw new IllegalArgumentException("Workspace does not match parameters or input size");
+
+        // the cached OTF vectors speed up the shifts, the filter part is not used here
+        FilterKernelCache.Kernels kernels = null;
+        if (param.useWienerFilter())
+            kernels = FilterKernelCache.getDefault().get(param);
+
+        assembleBands(param, inFFT, ws, kernels, null, otfBeforeShift, false,
+                param.getClipScale(), -1, null, null, null, null);
+
+        AssembledSpectrum ret = new AssembledSpectrum(param, ws.fullResult);
+
+        if (tRec != null) tRec.stop();
+        return ret;
+    }
+
+    /**
+     * Run the second part of the SIM reconstruction: filter an assembled
+     * spectrum with the filter settings (Wiener parameter, APO, RL iterations)
+     * of 'filterParam', and transform it to real space. The filter style has to
+     * be the one the spectrum was assembled with.
+     * The Wiener denominator is computed on first use and kept with the spectrum.
+     *
+     * @param spec         Spectrum from {@link #assembleSpectrum}
+     * @param filterParam  Parameters to take the filter settings from
+     * @param ws           Workspace, has to fit the spectrum's parameters
+     * @param imgClipScale Clip zero values and scale (0..255) output image?
+     * @param tRec         Runtime measurement (may be null)
+     * @return The reconstructed image, belongs to the workspace
+     */
+    public static Vec2d.Real filterSpectrum(final AssembledSpectrum spec, final SimParam filterParam,
+                                            final ReconstructionWorkspace ws,
+                                            final SimParam.CLIPSCALE imgClipScale, Tool.Timer tRec) {
+
+        if (tRec != null) tRec.start();
+
+        final SimParam param = spec.setFilter(filterParam);
+        if (!ws.fits(param))
+            throw new IllegalArgumentException("Workspace does not match the assembled spectrum");
+
+        ws.fullResult.copy(spec.getNumerator());
+        WienerFilter wFilter = (param.useWienerFilter()) ? (spec.wienerFilter()) : (null);
+        Vec2d.Real ret = filterOutput(param, ws, null, wFilter, imgClipScale, -1, null, null);
+
+        if (tRec != null) tRec.stop();
+        return ret;
+    }
+
+
+    /**
+     * Band separation, shift, OTF multiplication and summation of all
+     * pattern directions into the workspace's 'fullResult', i.e. the
+     * reconstruction up to (not including) the final filter step.
+     *
+     * @param param            The SIM parameter instance to work on
+     * @param inFFT            The input images (in Fourier space)
+     * @param ws               Workspace to take the buffers from
+     * @param kernels          Cached filter vectors (may be null)
+     * @param wFilter          Wiener filter, for intermediate output (may be null without)
+     * @param otfBeforeShift   Apply the OTF before shifting bands
+     * @param captureWidefield Add band 0 to the workspace's widefield accumulator
+     * @param imgClipScale     Clip zero values and scale (0..255) intermediate images?
+     * @param visualFeedback   Feedback Amount of visual feedback, -1 (off) ..4
+     */
+    private static void assembleBands(final SimParam param, Vec2d.Cplx[][] inFFT,
+                                      final ReconstructionWorkspace ws,
+                                      final FilterKernelCache.Kernels kernels, final WienerFilter wFilter,
+                                      final boolean otfBeforeShift, final boolean captureWidefield,
+                                      final SimParam.CLIPSCALE imgClipScale, final int visualFeedback,
+                                      ImageDisplay pwSt, ImageDisplay spSt,
+                                      ImageDisplay pwSt2, ImageDisplay spSt2) {
+
+        final int w = ws.w, h = ws.h;
+        final OtfProvider otfPr = param.otf();
+        final double wienParam = param.getWienerFilter();
+
         // vectors to store the result
-        Vec2d.Cplx fullResult = Vec2d.createCplx(param, 2);
+        Vec2d.Cplx fullResult = ws.fullResult;
+        fullResult.zero();
 
         // zero-band OTF (for RL filtering)
         Vec2d.Cplx inputOtf = null;
         if (param.useRLonInput()) {
-            inputOtf = Vec2d.createCplx(param);
+            inputOtf = ws.inputOtf();
             otfPr.writeOtfVector(inputOtf, 0, 0, 0);
             if (visualFeedback > 1) {
                 Vec2d.Real tmp = Vec2d.createReal(param);
@@ -470,187 +723,158 @@ public class SimAlgorithm {
             }
         }
 
-        // loop all pattern directions
-        for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
-            final SimParam.Dir par = param.dir(angIdx);
-            Tool.tell("Reconstr. for angle " + (angIdx + 1) + "/" + param.nrDir());
-
-            Vec2d.Cplx[] separate = Vec2d.createArrayCplx(par.nrComp(), w, h);
-
-            // copy into temp. array (to not override input data)
-            // and apply correction factor
-            Vec2d.Cplx[] tmpArray = Vec2d.createArrayCplx(par.nrPha(), w, h);
-            for (int i = 0; i < par.nrPha(); i++) {
-                tmpArray[i].copy(inFFT[angIdx][i]);
-                tmpArray[i].scal(new Cplx.Float((float) par.getIntensityQuotient(i)));
-                Tool.trace(String.format(" Input data intensity corrected: a%1d p%1d --> %7.5f",
-                        angIdx, i, par.getIntensityQuotient(i)));
-            }
-
-
-            // ---- Richardson-Lucy: Deconvolve input data here ----
-            if (param.useRLonInput()) {
+        // band 0 of each direction is summed up here for the widefield output
+        if (captureWidefield)
+            for (int i = 0; i < ws.shifted.length; i++)
+                ws.widefieldLow(i).zero();
 
-                // deconvolve the input data
-                for (int i = 0; i < par.nrPha(); i++) {
+        // each direction runs as an independent task into its own buffers
+        // (not with intermediate output, as the displays are not thread-safe)
+        final boolean parallelDirs = ws.parallelDirections && visualFeedback <= 0 && param.nrDir() > 1;
 
-                    if (visualFeedback > 1) {
-                        spSt.addImage(SimUtils.spatial(tmpArray[i]),
-                                "input before deconv., ang " + angIdx + ", phase " + i);
-                    }
+        if (parallelDirs) {
 
-                    RLDeconvolution.deconvolve(tmpArray[i], inputOtf,
-                            param.getRLiterations(), true);
+            final Vec2d.Cplx[][] input = inFFT;
+            final Vec2d.Cplx rlOtf = inputOtf;
+            final FilterKernelCache.Kernels fKernels = kernels;
 
-                    if (visualFeedback > 0) {
-                        spSt.addImage(SimUtils.spatial(tmpArray[i]),
-                                "Deconvolved input, ang " + angIdx + ", phase " + i);
-                    }
+            new SimpleMT.StrPFor(0, param.nrDir()) {
+                public void at(int angIdx) {
+                    Vec2d.Cplx[] shifted = reconstructDirection(param, input, angIdx, ws, angIdx,
+                            fKernels, rlOtf, otfBeforeShift, captureWidefield, null, -1);
 
+                    // sum up this direction's partial result (into shifted[0])
+                    for (int i = 1; i < shifted.length; i++)
+                        shifted[0].add(shifted[i]);
                 }
-            }
+            };
 
-            // use the temp array as input for the band separation
-            BandSeparation.separateBands(tmpArray, separate,
-                    par.getPhases(), par.nrBand(), par.getModulations());
+            // reduce the partial results
+            for (int angIdx = 0; angIdx < param.nrDir(); angIdx++)
+                fullResult.add(ws.shifted[angIdx][0]);
 
+        } else {
 
-            // Wiener filter: Apply OTF here
-            if (otfBeforeShift && param.useWienerFilter())
-                for (int i = 0; i < (par.nrComp()); i++)
-                    otfPr.applyOtf(separate[i], (i + 1) / 2);
-
-            // ------- Shifts to correct position ----------
-            Vec2d.Cplx[] shifted = Vec2d.createArrayCplx(5, 2 * w, 2 * h);
+            // loop all pattern directions
+            for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
+                final SimParam.Dir par = param.dir(angIdx);
 
-            // band 0 is DC, so does not need shifting, only a bigger vector
-            SimUtils.placeFreq(separate[0], shifted[0]);
+                Vec2d.Cplx[] shifted = reconstructDirection(param, inFFT, angIdx, ws, 0,
+                        kernels, inputOtf, otfBeforeShift, captureWidefield, spSt, visualFeedback);
+                Vec2d.Cplx[] separate = ws.separate[0];
 
-            // higher bands need shifting
-            for (int b = 1; b < par.nrBand(); b++) {
+                // ------ Sum up result ------
+                for (int i = 0; i < par.nrBand() * 2 - 1; i++) {
+                    fullResult.add(shifted[i]);
+                }
 
-                Tool.trace("reconstr.: dir " + angIdx + ": shift band: " + b + " to: " + par.px(b) + " " + par.py(b));
 
-                // first, copy to larger vectors
-                int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
-                SimUtils.placeFreq(separate[pos], shifted[pos]);
-                SimUtils.placeFreq(separate[neg], shifted[neg]);
+                // ------ Output intermediate results ------
 
-                // then, fourier shift
-                SimUtils.fourierShift(shifted[pos], par.px(b), par.py(b));
-                SimUtils.fourierShift(shifted[neg], -par.px(b), -par.py(b));
-            }
+                if (visualFeedback > 0) {
 
-            // ------ OTF multiplication or masking ------
+                    Tool.tell("Computing interm. results");
 
-            if (param.useWienerFilter()) {
-                if (!otfBeforeShift) {
-                    // multiply with shifted OTF
-                    otfPr.applyOtf(shifted[0], 0);
-                    for (int b = 1; b < par.nrBand(); b++) {
-                        int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
-                        otfPr.applyOtf(shifted[pos], b, par.px(b), par.py(b));
-                        otfPr.applyOtf(shifted[neg], b, -par.px(b), -par.py(b));
-                    }
-                } else {
-                    // or mask for OTF support
-                    for (int b = 1; b < par.nrBand(); b++) {
-                        int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
-                        otfPr.maskOtf(shifted[pos], par.px(b), par.py(b));
-                        otfPr.maskOtf(shifted[neg], -par.px(b), -par.py(b));
-                    }
-                }
-            }
-            // ------ Sum up result ------
+                    // per-direction results
+                    Vec2d.Cplx result = Vec2d.createCplx(2 * w, 2 * h);
+                    for (int i = 0; i < par.nrBand() * 2 - 1; i++)
+                        result.add(shifted[i]);
 
-            if (param.useRLonOutput()) {
-                shifted[0].scal(1.f / param.nrDir());
-            }
+                    // loop bands in this direction
+                    for (int i = 0; i < par.nrBand(); i++) {
 
-            for (int i = 0; i < par.nrBand() * 2 - 1; i++) {
-                fullResult.add(shifted[i]);
-            }
+                        // TODO: All these should also use RL-filtering if set!
+                        // get wiener denominator for (direction, band), add to full denom for this band
+                        Vec2d.Real denom = wFilter.getIntermediateDenominator(angIdx, i, wienParam);
 
+                        // add up +- shift for this band
+                        Vec2d.Cplx thisband = shifted[i * 2];
+                        if (i != 0)
+                            thisband.add(shifted[i * 2 - 1]);
 
-            // ------ Output intermediate results ------
+                        // output the wiener denominator
+                        if (visualFeedback > 1 && !param.useNoFiltering()) {
+                            Vec2d.Real wd = denom.duplicate();
+                            wd.reciproc();
+                            wd.normalize();
+                            Transforms.swapQuadrant(wd);
+                            pwSt2.addImage(wd, String.format(
+                                    "a%1d: OTF/Wiener band %1d", angIdx, (i / 2)));
+                        }
 
-            if (visualFeedback > 0) {
+                        // apply filter and output result
+                        if (!param.useNoFiltering()) {
+                            thisband.times(denom);
+                        }
 
-                Tool.tell("Computing interm. results");
-
-                // per-direction results
-                Vec2d.Cplx result = Vec2d.createCplx(2 * w, 2 * h);
-                for (int i = 0; i < par.nrBand() * 2 - 1; i++)
-                    result.add(shifted[i]);
-
-                // loop bands in this direction
-                for (int i = 0; i < par.nrBand(); i++) {
-
-                    // TODO: All these should also use RL-filtering if set!
-                    // get wiener denominator for (direction, band), add to full denom for this band
-                    Vec2d.Real denom = wFilter.getIntermediateDenominator(angIdx, i, wienParam);
-
-                    // add up +- shift for this band
-                    Vec2d.Cplx thisband = shifted[i * 2];
-                    if (i != 0)
-                        thisband.add(shifted[i * 2 - 1]);
-
-                    // output the wiener denominator
-                    if (visualFeedback > 1 && !param.useNoFiltering()) {
-                        Vec2d.Real wd = denom.duplicate();
-                        wd.reciproc();
-                        wd.normalize();
-                        Transforms.swapQuadrant(wd);
-                        pwSt2.addImage(wd, String.format(
-                                "a%1d: OTF/Wiener band %1d", angIdx, (i / 2)));
+                        pwSt2.addImage(SimUtils.pwSpec(thisband), String.format(
+                                "a%1d: band %1d", angIdx, i));
+                        spSt2.addImage(SimUtils.spatial(thisband, imgClipScale), String.format(
+                                "a%1d: band %1d", angIdx, i));
                     }
 
-                    // apply filter and output result
+                    // per direction wiener denominator
                     if (!param.useNoFiltering()) {
-                        thisband.times(denom);
+                        Vec2d.Real fDenom = wFilter.getIntermediateDenominator(angIdx, wienParam);
+                        result.times(fDenom);
+
+                        // output the wiener denominator
+                        if (visualFeedback > 1) {
+                            Vec2d.Real wd = fDenom.duplicate();
+                            wd.reciproc();
+                            wd.normalize();
+                            Transforms.swapQuadrant(wd);
+                            pwSt2.addImage(wd, String.format(
+                                    "a%1d: OTF/Wiener all bands", angIdx));
+                        }
                     }
 
-                    pwSt2.addImage(SimUtils.pwSpec(thisband), String.format(
-                            "a%1d: band %1d", angIdx, i));
-                    spSt2.addImage(SimUtils.spatial(thisband, imgClipScale), String.format(
-                            "a%1d: band %1d", angIdx, i));
-                }
+                    pwSt2.addImage(SimUtils.pwSpec(result), String.format(
+                            "a%1d: all bands", angIdx));
+                    spSt2.addImage(SimUtils.spatial(result, imgClipScale), String.format(
+                            "a%1d: all bands", angIdx));
 
-                // per direction wiener denominator
-                if (!param.useNoFiltering()) {
-                    Vec2d.Real fDenom = wFilter.getIntermediateDenominator(angIdx, wienParam);
-                    result.times(fDenom);
-
-                    // output the wiener denominator
-                    if (visualFeedback > 1) {
-                        Vec2d.Real wd = fDenom.duplicate();
-                        wd.reciproc();
-                        wd.normalize();
-                        Transforms.swapQuadrant(wd);
-                        pwSt2.addImage(wd, String.format(
-                                "a%1d: OTF/Wiener all bands", angIdx));
+                    // power spectra before shift
+                    if (visualFeedback > 2) {
+                        for (int i = 0; i < (par.nrBand() * 2 - 1); i++)
+                            pwSt.addImage(SimUtils.pwSpec(separate[i]), String.format(
+                                    "a%1d, sep%1d, seperated band", angIdx, i));
                     }
-                }
-
-                pwSt2.addImage(SimUtils.pwSpec(result), String.format(
-                        "a%1d: all bands", angIdx));
-                spSt2.addImage(SimUtils.spatial(result, imgClipScale), String.format(
-                        "a%1d: all bands", angIdx));
 
-                // power spectra before shift
-                if (visualFeedback > 2) {
-                    for (int i = 0; i < (par.nrBand() * 2 - 1); i++)
-                        pwSt.addImage(SimUtils.pwSpec(separate[i]), String.format(
-                                "a%1d, sep%1d, seperated band", angIdx, i));
                 }
 
+
             }
+        }
+    }
 
 
-        }
+    /**
+     * Filters the assembled spectrum in the workspace's 'fullResult' (Wiener
+     * filter and APO, RL deconvolution, or none, as set in 'param'), and
+     * transforms it to the workspace's result image.
+     *
+     * @param param          The SIM parameter instance to work on
+     * @param ws             Workspace holding the assembled spectrum
+     * @param kernels        Cached filter vectors (may be null, then 'wFilter' is used)
+     * @param wFilter        Wiener filter (may be null if 'kernels' is set)
+     * @param imgClipScale   Clip zero values and scale (0..255) output images?
+     * @param visualFeedback Feedback Amount of visual feedback, -1 (off) ..4
+     * @param pwSt2          Display for intermediate output (may be null)
+     * @param spSt2          Display for intermediate output (may be null)
+     * @return The reconstructed image
+     */
+    static Vec2d.Real filterOutput(final SimParam param, final ReconstructionWorkspace ws,
+                                   final FilterKernelCache.Kernels kernels, final WienerFilter wFilter,
+                                   final SimParam.CLIPSCALE imgClipScale, final int visualFeedback,
+                                   ImageDisplay pwSt2, ImageDisplay spSt2) {
 
-        // -- done loop all pattern directions, 'fullResult' now holds the image --
+        final int w = ws.w, h = ws.h;
+        final double apoB = param.getApoBend(), apoF = param.getApoCutoff(); // Bend and mag. factor of APO
+        final double wienParam = param.getWienerFilter();
+        final OtfProvider otfPr = param.otf();
 
+        Vec2d.Cplx fullResult = ws.fullResult;
         Vec2d.Real fullResultImage = null;
 
         // ------------------------------------------------------------------------
@@ -661,29 +885,36 @@ public class SimAlgorithm {
 
             Tool.tell("Applying Wiener filter");
 
-            // multiply by wiener denominator
-            Vec2d.Real denom = wFilter.getDenominator(wienParam);
-            fullResult.times(denom);
+            if (kernels != null) {
+                // multiply by cached wiener denominator x apotization
+                fullResult.times(kernels.getDenominatorApo());
+            } else {
+                // multiply by wiener denominator
+                Vec2d.Real denom = ws.denom();
+                wFilter.getDenominator(wienParam, denom);
+                fullResult.times(denom);
+
+                if (visualFeedback > 0) {
+                    pwSt2.addImage(SimUtils.pwSpec(fullResult), "full (w/o APO)");
+                    spSt2.addImage(SimUtils.spatial(fullResult, imgClipScale), "full (w/o APO)");
+                }
 
-            if (visualFeedback > 0) {
-                pwSt2.addImage(SimUtils.pwSpec(fullResult), "full (w/o APO)");
-                spSt2.addImage(SimUtils.spatial(fullResult, imgClipScale), "full (w/o APO)");
-            }
+                // apply apotization filter
+                Vec2d.Cplx apo = ws.apo();
+                otfPr.writeApoVector(apo, apoB, apoF);
 
-            // apply apotization filter
-            Vec2d.Cplx apo = Vec2d.createCplx(2 * w, 2 * h);
-            otfPr.writeApoVector(apo, apoB, apoF);
+                if (visualFeedback > 1) {
+                    Vec2d.Real tmp = Vec2d.createReal(2 * w, 2 * h);
+                    tmp.copy(apo);
+                    Transforms.swapQuadrant(tmp);
+                    pwSt2.addImage(tmp, "Apo filter");
+                }
 
-            if (visualFeedback > 1) {
-                Vec2d.Real tmp = Vec2d.createReal(2 * w, 2 * h);
-                tmp.copy(apo);
-                Transforms.swapQuadrant(tmp);
-                pwSt2.addImage(tmp, "Apo filter");
+                fullResult.times(apo);
             }
 
-            fullResult.times(apo);
-
-            fullResultImage = SimUtils.spatial(fullResult, imgClipScale);
+            SimUtils.spatial(fullResult, ws.resultImage, imgClipScale);
+            fullResultImage = ws.resultImage;
 
             if (spSt2 != null)
                 spSt2.addImage(fullResultImage, "full result");
@@ -693,67 +924,6 @@ public class SimAlgorithm {
                 pwSt2.addImage(SimUtils.pwSpec(fullResult), "full result");
             }
 
-
-            // Add wide-field for comparison
-            if (visualFeedback >= 0 || widefieldResult != null || filteredWidefieldResult != null) {
-
-                Tool.tell("Computing wide-field");
-
-                // obtain the low freq result
-                Vec2d.Cplx lowFreqResult = Vec2d.createCplx(param, 2);
-
-                // have to do the separation again, result before had the OTF multiplied
-                for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
-
-                    final SimParam.Dir par = param.dir(angIdx);
-
-                    Vec2d.Cplx[] separate = Vec2d.createArrayCplx(par.nrComp(), w, h);
-                    BandSeparation.separateBands(inFFT[angIdx], separate,
-                            par.getPhases(), par.nrBand(), par.getModulations());
-
-                    Vec2d.Cplx tmp = Vec2d.createCplx(param, 2);
-                    SimUtils.placeFreq(separate[0], tmp);
-                    lowFreqResult.add(tmp);
-                }
-
-                // now, output the widefield
-                if (visualFeedback > 0)
-                    pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "Widefield");
-                if (visualFeedback >= 0)
-                    spSt2.addImage(SimUtils.spatial(lowFreqResult, imgClipScale), "Widefield");
-
-                if (widefieldResult != null) {
-                    widefieldResult.copy(SimUtils.spatial(lowFreqResult, imgClipScale));
-                    Tool.trace("generating widefield output");
-                }
-
-                // otf-multiply and wiener-filter the wide-field
-                otfPr.otfToVector(lowFreqResult, 0, 0, 0, false, false);
-
-                Vec2d.Real lfDenom = wFilter.getWidefieldDenominator(wienParam);
-                lowFreqResult.times(lfDenom);
-
-                // mask out freq. that could not have passed
-                // (does not really change the image)
-                otfPr.maskOtf(lowFreqResult, 0, 0);
-
-                // could apodize the result, but that would just re-apply
-                // the OTF (more or less)
-                // Vec2d.Cplx apoLowFreq = Vec2d.createCplx(2*w,2*h);
-                // otfPr.writeApoVector( apoLowFreq, 0.4, 1.2);
-                // lowFreqResult.times(apoLowFreq);
-
-                if (visualFeedback > 0)
-                    pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "filtered Widefield");
-                if (visualFeedback >= 0)
-                    spSt2.addImage(SimUtils.spatial(lowFreqResult, imgClipScale), "filtered Widefield");
-
-                if (filteredWidefieldResult != null) {
-                    filteredWidefieldResult.copy(SimUtils.spatial(lowFreqResult, imgClipScale));
-                    Tool.trace("generating filtered widefield output");
-                }
-
-            }
         }
 
         // ------------------------------------------------------------------------
@@ -766,10 +936,10 @@ public class SimAlgorithm {
 
 
             // generate the effective SIM OTF
-            Vec2d.Cplx otfSim = Vec2d.createCplx(param, 2);
+            Vec2d.Cplx otfSim = ws.otfSim();
+            otfSim.zero();
 
-            Vec2d.Cplx otfTmpPos = Vec2d.createCplx(param, 2);
-            Vec2d.Cplx otfTmpNeg = Vec2d.createCplx(param, 2);
+            Vec2d.Cplx otfTmp = ws.otfTmp();
 
             for (int ang = 0; ang < param.nrDir(); ang++) {
 
@@ -777,15 +947,15 @@ public class SimAlgorithm {
 
                 for (int b = 0; b < param.nrBand(); b++) {
 
-                    otfPr.writeOtfVector(otfTmpPos, b, par.px(b), par.py(b));
-                    otfPr.writeOtfVector(otfTmpNeg, b, -par.px(b), -par.py(b));
+                    otfPr.writeOtfVector(otfTmp, b, par.px(b), par.py(b));
 
                     if (b == 0) {
-                        otfTmpPos.scal(1.f / param.nrDir());
-                        otfSim.add(otfTmpPos);
+                        otfTmp.scal(1.f / param.nrDir());
+                        otfSim.add(otfTmp);
                     } else {
-                        otfSim.add(otfTmpPos);
-                        otfSim.add(otfTmpNeg);
+                        otfSim.add(otfTmp);
+                        otfPr.writeOtfVector(otfTmp, b, -par.px(b), -par.py(b));
+                        otfSim.add(otfTmp);
                     }
 
                 }
@@ -807,10 +977,11 @@ public class SimAlgorithm {
             }
 
             // deconvolve the result
-            RLDeconvolution.deconvolve(fullResult, otfSim,
-                    param.getRLiterations(), true);
+            RLDeconvolution.deconvolve(fullResult, otfSim, param, true,
+                    ws.rlBuffers(param.useRLAcceleration()));
 
-            fullResultImage = SimUtils.spatial(fullResult, imgClipScale);
+            SimUtils.spatial(fullResult, ws.resultImage, imgClipScale);
+            fullResultImage = ws.resultImage;
 
             if (spSt2 != null)
                 spSt2.addImage(fullResultImage, "full result (RL)");
@@ -820,140 +991,332 @@ public class SimAlgorithm {
                 pwSt2.addImage(SimUtils.pwSpec(fullResult), "full result (RL)");
             }
 
+        }
 
-            // Add wide-field for comparison
-            if (visualFeedback >= 0 || widefieldResult != null || filteredWidefieldResult != null) {
 
-                Tool.tell("Computing wide-field");
+        // ------------------------------------------------------------------------
+        // fully unfiltered SIM output
+        // ------------------------------------------------------------------------
 
-                // obtain the low freq result
-                Vec2d.Cplx lowFreqResult = Vec2d.createCplx(param, 2);
 
-                // have to do the separation again, result before had the OTF multiplied
-                for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
+        if (param.useNoFiltering()) {
 
-                    final SimParam.Dir par = param.dir(angIdx);
+            Tool.tell("Computing unfiltered result");
 
-                    Vec2d.Cplx[] separate = Vec2d.createArrayCplx(par.nrComp(), w, h);
-                    BandSeparation.separateBands(inFFT[angIdx], separate,
-                            par.getPhases(), par.nrBand(), par.getModulations());
+            SimUtils.spatial(fullResult, ws.resultImage, imgClipScale);
+            fullResultImage = ws.resultImage;
 
-                    Vec2d.Cplx tmp = Vec2d.createCplx(param, 2);
-                    SimUtils.placeFreq(separate[0], tmp);
-                    lowFreqResult.add(tmp);
-                }
+            if (spSt2 != null)
+                spSt2.addImage(fullResultImage, "full result (unfiltered!)");
 
-                // now, output the widefield
-                if (visualFeedback > 0)
-                    pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "Widefield");
-                if (visualFeedback >= 0)
-                    spSt2.addImage(SimUtils.spatial(lowFreqResult, imgClipScale), "Widefield");
 
-                if (widefieldResult != null) {
-                    widefieldResult.copy(SimUtils.spatial(lowFreqResult, imgClipScale));
-                    Tool.trace("generating widefield output");
-                }
+            if (visualFeedback > 0) {
+                pwSt2.addImage(SimUtils.pwSpec(fullResult), "full result (unfiltered)");
+            }
+
+        }
+
+        return fullResultImage;
+    }
+
+
+    /**
+     * Band separation, shift and OTF multiplication (or masking) for one
+     * pattern direction, using the buffers of one workspace slot.
+     *
+     * @param param          The SIM parameter instance to work on
+     * @param inFFT          The input images (in Fourier space)
+     * @param angIdx         The pattern direction
+     * @param ws             Workspace to take the buffers from
+     * @param slot           Which set of buffers to use
+     * @param kernels        Cached filter vectors (may be null)
+     * @param inputOtf       Zero-band OTF for RL on input (may be null if not used)
+     * @param otfBeforeShift Apply the OTF before shifting bands
+     * @param addWidefield   Add band 0 to the workspace's widefield accumulator
+     * @param spSt           Display for intermediate output (may be null)
+     * @param visualFeedback Feedback Amount of visual feedback, -1 (off) ..4
+     * @return The shifted and filtered band components
+     */
+    private static Vec2d.Cplx[] reconstructDirection(final SimParam param,
+                                                     Vec2d.Cplx[][] inFFT, final int angIdx,
+                                                     final ReconstructionWorkspace ws, final int slot,
+                                                     final FilterKernelCache.Kernels kernels,
+                                                     final Vec2d.Cplx inputOtf,
+                                                     final boolean otfBeforeShift,
+                                                     final boolean addWidefield,
+                                                     ImageDisplay spSt, int visualFeedback) {
+
+        final SimParam.Dir par = param.dir(angIdx);
+        final OtfProvider otfPr = param.otf();
+        Tool.tell("Reconstr. for angle " + (angIdx + 1) + "/" + param.nrDir());
+
+        Vec2d.Cplx[] separate = ws.separate[slot];
+
+        // copy into temp. array (to not override input data)
+        // and apply correction factor
+        Vec2d.Cplx[] tmpArray = ws.tmpArray[slot];
+        for (int i = 0; i < par.nrPha(); i++) {
+            tmpArray[i].copy(inFFT[angIdx][i]);
+            tmpArray[i].scal(new Cplx.Float((float) par.getIntensityQuotient(i)));
+            Tool.trace(String.format(" Input data intensity corrected: a%1d p%1d --> %7.5f",
+                    angIdx, i, par.getIntensityQuotient(i)));
+        }
 
-                // deconvolve the wide-field
-                Vec2d.Cplx zeroOrderOtf = Vec2d.createCplx(param, 2);
-                otfPr.writeOtfVector(zeroOrderOtf, 0, 0, 0);
-                RLDeconvolution.deconvolve(lowFreqResult, zeroOrderOtf,
-                        param.getRLiterations(), true);
 
-                if (visualFeedback > 0)
-                    pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "filtered Widefield");
-                if (visualFeedback >= 0)
-                    spSt2.addImage(SimUtils.spatial(lowFreqResult, imgClipScale), "filtered Widefield");
+        // ---- Richardson-Lucy: Deconvolve input data here ----
+        if (param.useRLonInput()) {
 
-                if (filteredWidefieldResult != null) {
-                    filteredWidefieldResult.copy(SimUtils.spatial(lowFreqResult, imgClipScale));
-                    Tool.trace("generating filtered widefield output");
+            // the widefield is taken from the data before deconvolution
+            if (addWidefield)
+                BandSeparation.addSeparatedComponent(tmpArray, ws.widefieldLow(slot),
+                        par.getPhases(), par.nrBand(), par.getModulations(), 0);
+
+            // deconvolve the input data
+            for (int i = 0; i < par.nrPha(); i++) {
+
+                if (visualFeedback > 1) {
+                    spSt.addImage(SimUtils.spatial(tmpArray[i]),
+                            "input before deconv., ang " + angIdx + ", phase " + i);
                 }
 
+                RLDeconvolution.deconvolve(tmpArray[i], inputOtf, param, true,
+                        ws.rlInputBuffers(slot, param.useRLAcceleration()));
+
+                if (visualFeedback > 0) {
+                    spSt.addImage(SimUtils.spatial(tmpArray[i]),
+                            "Deconvolved input, ang " + angIdx + ", phase " + i);
+                }
 
             }
         }
 
+        // use the temp array as input for the band separation
+        BandSeparation.separateBands(tmpArray, separate,
+                par.getPhases(), par.nrBand(), par.getModulations());
 
-        // ------------------------------------------------------------------------
-        // fully unfiltered SIM output
-        // ------------------------------------------------------------------------
+        if (addWidefield && !param.useRLonInput())
+            ws.widefieldLow(slot).add(separate[0]);
 
+        return shiftBands(param, angIdx, ws, slot, kernels, otfBeforeShift);
+    }
 
-        if (param.useNoFiltering()) {
 
-            Tool.tell("Computing unfiltered result");
+    /**
+     * Shift and OTF multiplication (or masking) for the separated bands
+     * of one pattern direction, as stored in the workspace's slot.
+     *
+     * @param param          The SIM parameter instance to work on
+     * @param angIdx         The pattern direction
+     * @param ws             Workspace to take the buffers from
+     * @param slot           Which set of buffers to use
+     * @param kernels        Cached filter vectors (may be null)
+     * @param otfBeforeShift Apply the OTF before shifting bands
+     * @return The shifted and filtered band components
+     */
+    static Vec2d.Cplx[] shiftBands(final SimParam param, final int angIdx,
+                                   final ReconstructionWorkspace ws, final int slot,
+                                   final FilterKernelCache.Kernels kernels,
+                                   final boolean otfBeforeShift) {
 
-            fullResultImage = SimUtils.spatial(fullResult, imgClipScale);
+        final SimParam.Dir par = param.dir(angIdx);
+        final OtfProvider otfPr = param.otf();
+        Vec2d.Cplx[] separate = ws.separate[slot];
+
+        // Wiener filter: Apply OTF here
+        if (otfBeforeShift && param.useWienerFilter())
+            for (int i = 0; i < (par.nrComp()); i++)
+                otfPr.applyOtf(separate[i], (i + 1) / 2);
+
+        // ------- Shifts to correct position ----------
+        Vec2d.Cplx[] shifted = ws.shifted[slot];
+
+        // band 0 is DC, so does not need shifting, only a bigger vector
+        SimUtils.placeFreq(separate[0], shifted[0]);
+
+        // higher bands need shifting, all of them in one batch
+        final int nHigh = par.nrComp() - 1;
+        Vec2d.Cplx[] hIn = new Vec2d.Cplx[nHigh], hOut = new Vec2d.Cplx[nHigh];
+        double[] kx = new double[nHigh], ky = new double[nHigh];
+        for (int b = 1; b < par.nrBand(); b++) {
+
+            Tool.trace("reconstr.: dir " + angIdx + ": shift band: " + b + " to: " + par.px(b) + " " + par.py(b));
+
+            int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
+            hIn[pos - 1] = separate[pos];
+            hOut[pos - 1] = shifted[pos];
+            kx[pos - 1] = par.px(b);
+            ky[pos - 1] = par.py(b);
+            hIn[neg - 1] = separate[neg];
+            hOut[neg - 1] = shifted[neg];
+            kx[neg - 1] = -par.px(b);
+            ky[neg - 1] = -par.py(b);
+        }
 
-            if (spSt2 != null)
-                spSt2.addImage(fullResultImage, "full result (unfiltered!)");
+        // fast: subpixel shift on input, integer shift while pasting,
+        // otherwise copy to larger vectors, then fourier shift
+        SimUtils.pasteAndFourierShift(hIn, hOut, kx, ky, param.useFastShift());
 
+        // ------ OTF multiplication or masking ------
 
-            if (visualFeedback > 0) {
-                pwSt2.addImage(SimUtils.pwSpec(fullResult), "full result (unfiltered)");
+        if (param.useWienerFilter()) {
+            if (!otfBeforeShift && kernels != null) {
+                // multiply with cached shifted OTF
+                for (int i = 0; i < par.nrComp(); i++)
+                    shifted[i].timesConj(kernels.getOtf(angIdx, i));
+            } else if (!otfBeforeShift) {
+                // multiply with shifted OTF
+                otfPr.applyOtf(shifted[0], 0);
+                for (int b = 1; b < par.nrBand(); b++) {
+                    int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
+                    otfPr.applyOtf(shifted[pos], b, par.px(b), par.py(b));
+                    otfPr.applyOtf(shifted[neg], b, -par.px(b), -par.py(b));
+                }
+            } else {
+                // or mask for OTF support
+                for (int b = 1; b < par.nrBand(); b++) {
+                    int pos = b * 2, neg = (b * 2) - 1;    // pos/neg contr. to band
+                    otfPr.maskOtf(shifted[pos], par.px(b), par.py(b));
+                    otfPr.maskOtf(shifted[neg], -par.px(b), -par.py(b));
+                }
             }
+        }
 
+        if (param.useRLonOutput()) {
+            shifted[0].scal(1.f / param.nrDir());
+        }
 
-            // Add wide-field for comparison
-            if (visualFeedback >= 0 || widefieldResult != null || filteredWidefieldResult != null) {
+        return shifted;
+    }
 
-                Tool.tell("Computing wide-field");
 
-                // obtain the low freq result
-                Vec2d.Cplx lowFreqResult = Vec2d.createCplx(param, 2);
+    /**
+     * Outputs the widefield and filtered widefield image, from band 0
+     * summed up over all directions in the workspace's widefield accumulators.
+     */
+    private static void outputWidefield(final SimParam param, final ReconstructionWorkspace ws,
+                                        final FilterKernelCache.Kernels kernels, final WienerFilter wFilter,
+                                        final SimParam.CLIPSCALE imgClipScale, final int visualFeedback,
+                                        ImageDisplay pwSt2, ImageDisplay spSt2,
+                                        Vec2d.Real widefieldResult, Vec2d.Real filteredWidefieldResult) {
 
-                // have to do the separation again, result before had the OTF multiplied
-                for (int angIdx = 0; angIdx < param.nrDir(); angIdx++) {
+        Tool.tell("Computing wide-field");
 
-                    final SimParam.Dir par = param.dir(angIdx);
+        final OtfProvider otfPr = param.otf();
 
-                    Vec2d.Cplx[] separate = Vec2d.createArrayCplx(par.nrComp(), w, h);
-                    BandSeparation.separateBands(inFFT[angIdx], separate,
-                            par.getPhases(), par.nrBand(), par.getModulations());
+        // sum up the per-slot accumulators, obtain the low freq result
+        Vec2d.Cplx lowFreq = ws.widefieldLow(0);
+        for (int i = 1; i < ws.shifted.length; i++)
+            lowFreq.add(ws.widefieldLow(i));
 
-                    Vec2d.Cplx tmp = Vec2d.createCplx(param, 2);
-                    SimUtils.placeFreq(separate[0], tmp);
-                    lowFreqResult.add(tmp);
-                }
+        Vec2d.Cplx lowFreqResult = ws.widefieldSpectrum();
+        SimUtils.placeFreq(lowFreq, lowFreqResult);
 
-                // now, output the widefield
-                if (visualFeedback > 0)
-                    pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "Widefield");
-                if (visualFeedback >= 0)
-                    spSt2.addImage(SimUtils.spatial(lowFreqResult, imgClipScale), "Widefield");
+        // now, output the widefield
+        Vec2d.Real img = (widefieldResult != null) ? (widefieldResult) : (ws.widefieldImage());
+        SimUtils.spatial(lowFreqResult, img, imgClipScale);
 
-                if (widefieldResult != null) {
-                    widefieldResult.copy(SimUtils.spatial(lowFreqResult, imgClipScale));
-                    Tool.trace("generating widefield output");
-                }
+        if (visualFeedback > 0)
+            pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "Widefield");
+        if (visualFeedback >= 0)
+            spSt2.addImage(img, "Widefield");
+        if (widefieldResult != null)
+            Tool.trace("generating widefield output");
 
-            }
-        }
+        // no filtered widefield without a filter
+        if (param.useNoFiltering())
+            return;
 
+        if (param.useWienerFilter()) {
+            // otf-multiply and wiener-filter the wide-field
+            otfPr.otfToVector(lowFreqResult, 0, 0, 0, false, false);
 
-        // -----------------------------------------------------------------------
+            Vec2d.Real lfDenom = (kernels != null) ?
+                    (kernels.getWidefieldDenominator()) :
+                    (wFilter.getWidefieldDenominator(param.getWienerFilter()));
+            lowFreqResult.times(lfDenom);
 
-        // stop timers
-        if (tRec != null) tRec.stop();
+            // mask out freq. that could not have passed
+            // (does not really change the image)
+            otfPr.maskOtf(lowFreqResult, 0, 0);
 
-        Tool.tell("done.");
+            // could apodize the result, but that would just re-apply
+            // the OTF (more or less)
+        } else {
+            // deconvolve the wide-field
+            Vec2d.Cplx zeroOrderOtf = ws.otfTmp();
+            otfPr.writeOtfVector(zeroOrderOtf, 0, 0, 0);
+            RLDeconvolution.deconvolve(lowFreqResult, zeroOrderOtf, param, true,
+                    ws.rlBuffers(param.useRLAcceleration()));
+        }
 
-        // output parameters
-        Tool.trace(" ---- Reconstruction ---- ");
-        Tool.trace("\n" + param.prettyPrint(true));
+        img = (filteredWidefieldResult != null) ? (filteredWidefieldResult) : (ws.widefieldImage());
+        SimUtils.spatial(lowFreqResult, img, imgClipScale);
 
-        if (visualFeedback >= 0) {
-            pwSt.display();
-            spSt.display();
-            pwSt2.display();
+        if (visualFeedback > 0)
+            pwSt2.addImage(SimUtils.pwSpec(lowFreqResult), "filtered Widefield");
+        if (visualFeedback >= 0)
+            spSt2.addImage(img, "filtered Widefield");
+        if (filteredWidefieldResult != null)
+            Tool.trace("generating filtered widefield output");
+    }
+
+
+    /**
+     * For testing: parameter estimation on simulated data, at full and at
+     * reduced resolution (see {@link SimParam#setReducedEstimation}),
+     * compares k-vectors, phases, modulation and timings
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (1024);
+        final int reps = (args.length > 1) ? (Integer.parseInt(args[1])) : (2);
+
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam base = SimParam.create(3, 3, 5, size, 0.08, otf);
+        base.setFastPeakFit(true, false);
+        double[][] k = new double[base.nrDir()][2];
+        for (int d = 0; d < base.nrDir(); d++) {
+            double ang = d * Math.PI / base.nrDir() + 0.2;
+            k[d][0] = 0.2317 * size * Math.cos(ang);
+            k[d][1] = 0.2317 * size * Math.sin(ang);
         }
 
-        if (spSt2 != null)
-            spSt2.display();
+        // simulated raw data
+        SimParam truth = base.duplicate();
+        for (int d = 0; d < base.nrDir(); d++) {
+            truth.dir(d).setPxPy(2 * k[d][0], 2 * k[d][1]);    // k of the outer band
+            truth.dir(d).setPhaOff(0.3 * d);
+        }
+        Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(truth, 42, 0);
+
+        SimParam[] res = new SimParam[2];
+        Tool.Timer[] tm = {Tool.getTimer(), Tool.getTimer()};
+        for (int m = 0; m < 2; m++)
+            for (int r = 0; r < reps; r++) {
+                res[m] = base.duplicate();
+                res[m].setReducedEstimation(m == 1);
+                if (r == reps - 1)
+                    tm[m].start();
+                estimateParameters(res[m], inFFT, 2, 0.6, null, 0, null);
+                if (r == reps - 1)
+                    tm[m].stop();
+            }
 
-        return fullResultImage;
-    }
+        double dk = 0, dPha = 0, dMod = 0, err = 0;
+        for (int d = 0; d < base.nrDir(); d++) {
+            SimParam.Dir f = res[0].dir(d), r = res[1].dir(d);
+            dk = Math.max(dk, Math.hypot(f.px(1) - r.px(1), f.py(1) - r.py(1)));
+            err = Math.max(err, Math.hypot(r.px(1) - k[d][0], r.py(1) - k[d][1]));
+            dPha = Math.max(dPha, Math.abs(Cplx.Double.fromPhase(f.getPhaOff())
+                    .mult(Cplx.Double.fromPhase(-r.getPhaOff())).phase()));
+            dMod = Math.max(dMod, Math.abs(f.getModulations()[2] - r.getModulations()[2]));
+        }
+        Tool.trace(String.format("%dx%d: full %s, reduced %s (decimation %d)",
+                size, size, tm[0], tm[1], estimationBinning(size, size)));
+        Tool.trace(String.format("reduced vs. full: dk %6.4e pxl (err %6.4f pxl), dpha %6.4e, dmod %6.4e -> %s",
+                dk, err, dPha, dMod, (dk < 0.02 && dPha < 0.02 && dMod < 0.02) ? ("OK") : ("FAIL")));
 
+        SimpleMT.shutdown();
+    }
 
 }
@@ -80,6 +80,12 @@ public class SimParam implements Vec2d.Size {
     private double apoBend = 0.9;            // Apo bend parameter
 
     private int rlIterations = 5;            // number of Richardson-Lucy iterations
+    private boolean rlAcceleration = false;  // extrapolate RL estimates (Biggs-Andrews)
+    private double rlTolerance = 0;          // stop RL once the rel. change is below, 0: off
+    private boolean fastShift = false;        // subpixel shift on input, integer shift by paste
+    private boolean fastPeakFit = false;      // peak fit grid by direct DFT of the correlation product
+    private boolean polishPeakFit = false;    // refine the fitted peak by gradient ascent
+    private boolean reducedEstimation = false; // coarse search decimated, fine fit on band overlap only
 
 
     double modLowLimit = 0.4, modHighLimit = 1.1, defaultModulation = 0.65;
@@ -89,6 +95,8 @@ public class SimParam implements Vec2d.Size {
 
     private long runtimeTimestamp = 0;
 
+    private boolean frozen = false;        // snapshot: all setters fail
+
 
     /**
      * Use factory method {@link #create} to obtain object
@@ -176,6 +184,7 @@ public class SimParam implements Vec2d.Size {
      * Set the image ordering
      */
     public SimParam setImgSeq(IMGSEQ i) {
+        checkMutable();
         imgSeq = i;
         return this;
     }
@@ -191,6 +200,7 @@ public class SimParam implements Vec2d.Size {
      * Set the image ordering
      */
     public SimParam setClipScale(CLIPSCALE i) {
+        checkMutable();
         clipScaleMode = i;
         return this;
     }
@@ -220,6 +230,7 @@ public class SimParam implements Vec2d.Size {
      * @param microns Number of microns per pxl
      */
     public SimParam setPxlSize(int pxl, double microns) {
+        checkMutable();
         imgSize = pxl;
         micronsPerPixel = microns;
         cyclesPerMicron = 1 / (pxl * microns);
@@ -232,6 +243,7 @@ public class SimParam implements Vec2d.Size {
      * Set the filter type to use
      */
     public void setFilterStyle(FilterStyle s) {
+        checkMutable();
         filterStyle = s;
     }
 
@@ -279,6 +291,7 @@ public class SimParam implements Vec2d.Size {
      * Set the number of RL iterations
      */
     public void setRLiterations(int n) {
+        checkMutable();
         rlIterations = n;
     }
 
@@ -289,11 +302,109 @@ public class SimParam implements Vec2d.Size {
         return rlIterations;
     }
 
+    /**
+     * Set if Richardson-Lucy is accelerated by extrapolating each estimate
+     * along its last step, and the tolerance to stop at: once the rel. change
+     * of the estimate per iteration drops below, the RL iterations end early
+     * (0: always run all). The number of RL iterations is then an upper limit.
+     * See {@link RLDeconvolution#deconvolve(Vec2d.Cplx, Vec2d.Cplx, int, boolean, boolean, double, Vec2d.Cplx[])}.
+     */
+    public void setRLAcceleration(boolean accelerate, double tolerance) {
+        checkMutable();
+        if (tolerance < 0)
+            throw new IllegalArgumentException("RL tolerance must not be negative");
+        rlAcceleration = accelerate;
+        rlTolerance = tolerance;
+    }
+
+    /**
+     * Determine if Richardson-Lucy is accelerated
+     */
+    public boolean useRLAcceleration() {
+        return rlAcceleration;
+    }
+
+    /**
+     * Get the rel. change at which Richardson-Lucy stops early, 0 if off
+     */
+    public double getRLTolerance() {
+        return rlTolerance;
+    }
+
+    /**
+     * Set if bands are shifted by the fast method: the subpixel
+     * part of the shift is done on the (small) input vector, the integer
+     * part by pasting. This saves two large FFTs per shifted component.
+     * Results agree with the standard shift at the input sample positions,
+     * but differ in between (about 2% rel. difference of the reconstruction,
+     * see {@link SimUtils#main}).
+     */
+    public void setFastShift(boolean fast) {
+        checkMutable();
+        fastShift = fast;
+    }
+
+    /**
+     * Determine if bands are shifted by the fast method
+     */
+    public boolean useFastShift() {
+        return fastShift;
+    }
+
+    /**
+     * Set how the shift vector is fitted to sub-pixel precision. With 'fast',
+     * correlations are evaluated as DFT coefficients of the product of the
+     * bands, instead of Fourier-shifting a copy of the band for every point
+     * of the search grid (same results, several times faster). With 'polish',
+     * the best grid point is refined by gradient ascent.
+     * See {@link Correlation#fitPeak(Vec2d.Cplx, Vec2d.Cplx, int, int, OtfProvider, double, double, double, double, Vec2d.Real, boolean, boolean)}.
+     */
+    public void setFastPeakFit(boolean fast, boolean polish) {
+        checkMutable();
+        fastPeakFit = fast;
+        polishPeakFit = polish;
+    }
+
+    /**
+     * Determine if the peak fit grid is evaluated by direct DFT
+     */
+    public boolean useFastPeakFit() {
+        return fastPeakFit;
+    }
+
+    /**
+     * Determine if the fitted peak is refined by gradient ascent
+     */
+    public boolean usePeakPolish() {
+        return polishPeakFit;
+    }
+
+    /**
+     * Set if the parameter estimation runs at reduced resolution: the
+     * coarse peak search on spectra decimated by 2 or 4 (for images of at
+     * least 1024 or 2048 pxl, not with visual feedback), the peak fit on
+     * the region where the bands overlap only. Faster on large images;
+     * k-vectors agree with the full estimation to within 0.01 pxl
+     * (identical at decimation 2 on simulated data).
+     */
+    public void setReducedEstimation(boolean reduced) {
+        checkMutable();
+        reducedEstimation = reduced;
+    }
+
+    /**
+     * Determine if the parameter estimation runs at reduced resolution
+     */
+    public boolean useReducedEstimation() {
+        return reducedEstimation;
+    }
+
 
     /**
      * Set the Wiener Filter parameter
      */
     public SimParam setWienerFilter(double wf) {
+        checkMutable();
         wienerFilterParameter = wf;
         return this;
     }
@@ -309,6 +420,7 @@ public class SimParam implements Vec2d.Size {
      * Set the APO cutoff factor (cutoff in relation to OTF cutoff)
      */
     public SimParam setApoCutoff(double af) {
+        checkMutable();
         apoCutOff = af;
         return this;
     }
@@ -318,6 +430,7 @@ public class SimParam implements Vec2d.Size {
      * Set the APO bend parameter (curvature of the APO)
      */
     public SimParam setApoBend(double ab) {
+        checkMutable();
         apoBend = ab;
         return this;
     }
@@ -352,6 +465,7 @@ public class SimParam implements Vec2d.Size {
     public void otf(OtfProvider otf) {
 
         if (otf != null) {
+            checkMutable();
             currentOtf2D = otf;
             otf.setPixelSize(cyclesPerMicron);
         }
@@ -427,6 +541,7 @@ public class SimParam implements Vec2d.Size {
          * Set a global phase offset.
          */
         public void setPhaOff(double pha) {
+            checkMutable();
             phaOff = pha;
         }
 
@@ -437,6 +552,7 @@ public class SimParam implements Vec2d.Size {
          * @param reset If true, resets the phase offset to 0
          */
         public void setPhases(double[] pha, boolean reset) {
+            checkMutable();
             if (pha.length != nrPhases)
                 throw new RuntimeException("Length mismatch");
             if (reset)
@@ -453,6 +569,7 @@ public class SimParam implements Vec2d.Size {
          * @param phaIdx Index of phase to set
          */
         public void setSinglePhase(double pha, int phaIdx) {
+            checkMutable();
             phases[phaIdx] = pha;
             hasIndividualPhases = true;
         }
@@ -469,6 +586,7 @@ public class SimParam implements Vec2d.Size {
          * Reset individual phases back to equidistant.
          */
         public void resetPhases(double multiplier) {
+            checkMutable();
             for (int i = 0; i < nrPhases; i++)
                 phases[i] = (2 * Math.PI * multiplier / nrPhases) * i;
             hasIndividualPhases = false;
@@ -517,6 +635,7 @@ public class SimParam implements Vec2d.Size {
          * @param cor Either an array (x[0],y[1]) or 2 numbers: x,y
          */
         public void setPxPy(double inPx, double inPy) {
+            checkMutable();
             pX = inPx / (nrBands - 1);
             pY = inPy / (nrBands - 1);
         }
@@ -589,6 +708,7 @@ public class SimParam implements Vec2d.Size {
          * Set the modulation of band n.
          */
         public boolean setModulation(int b, double m) {
+            checkMutable();
             failBand(b);
             modul[b] = m;
             return ((m > modLowLimit) & (m < modHighLimit));
@@ -624,6 +744,7 @@ public class SimParam implements Vec2d.Size {
          * Set an intensity correction factor for this angle
          */
         public void setAngleIntensityFactor(double f) {
+            checkMutable();
             angleIntensityFactor = f;
         }
 
@@ -631,6 +752,7 @@ public class SimParam implements Vec2d.Size {
          * Set a phase intensity correction factor for this angle and phase i
          */
         public void setPhaseIntensityFactor(int p, double f) {
+            checkMutable();
             phaseIntensityFactors[p] = f;
         }
 
@@ -658,6 +780,14 @@ public class SimParam implements Vec2d.Size {
 
     }
 
+    /**
+     * fail if this is a snapshot
+     */
+    void checkMutable() {
+        if (frozen)
+            throw new IllegalStateException("SimParam snapshot can not be changed, use duplicate()");
+    }
+
     /**
      * check if index belongs to a band
      */
@@ -668,6 +798,108 @@ public class SimParam implements Vec2d.Size {
 
     // ----------------------------------------------------------------------------------
 
+    /**
+     * A (mutable) copy of all parameters, sharing the OTF
+     */
+    public SimParam duplicate() {
+        return copy(currentOtf2D);
+    }
+
+    /**
+     * An immutable snapshot of all parameters, with a frozen copy of the OTF
+     * (see {@link OtfProvider#frozen}). All setters of the snapshot (and of its
+     * directions) throw an IllegalStateException, so it can be passed to
+     * concurrently running reconstructions while this instance keeps changing.
+     * To refit parameters, work on a {@link #duplicate} and snapshot that.
+     * Snapshots of snapshots return the same instance.
+     */
+    public SimParam snapshot() {
+        if (frozen)
+            return this;
+        SimParam ret = copy((currentOtf2D == null) ? (null) : (currentOtf2D.frozen()));
+        ret.frozen = true;
+        return ret;
+    }
+
+    /**
+     * Returns true if this is an immutable snapshot
+     */
+    public boolean isSnapshot() {
+        return frozen;
+    }
+
+    // copy of all settings and directions, using 'otf' as is
+    private SimParam copy(OtfProvider otf) {
+
+        SimParam ret = new SimParam(nrBands, nrDirs, nrPhases, false);
+        ret.imgSize = imgSize;
+        ret.micronsPerPixel = micronsPerPixel;
+        ret.cyclesPerMicron = cyclesPerMicron;
+        ret.currentOtf2D = otf;
+        ret.runtimeTimestamp = runtimeTimestamp;
+
+        ret.imgSeq = imgSeq;
+        ret.clipScaleMode = clipScaleMode;
+        ret.filterStyle = filterStyle;
+        ret.wienerFilterParameter = wienerFilterParameter;
+        ret.apoCutOff = apoCutOff;
+        ret.apoBend = apoBend;
+        ret.rlIterations = rlIterations;
+        ret.rlAcceleration = rlAcceleration;
+        ret.rlTolerance = rlTolerance;
+        ret.fastShift = fastShift;
+        ret.fastPeakFit = fastPeakFit;
+        ret.polishPeakFit = polishPeakFit;
+        ret.reducedEstimation = reducedEstimation;
+        ret.modLowLimit = modLowLimit;
+        ret.modHighLimit = modHighLimit;
+        ret.defaultModulation = defaultModulation;
+
+        for (int d = 0; d < nrDirs; d++) {
+            Dir in = directions[d], out = ret.directions[d];
+            out.pX = in.pX;
+            out.pY = in.pY;
+            out.phaOff = in.phaOff;
+            System.arraycopy(in.phases, 0, out.phases, 0, nrPhases);
+            out.hasIndividualPhases = in.hasIndividualPhases;
+            System.arraycopy(in.modul, 0, out.modul, 0, nrBands);
+            out.angleIntensityFactor = in.angleIntensityFactor;
+            System.arraycopy(in.phaseIntensityFactors, 0, out.phaseIntensityFactors, 0, nrPhases);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parameters for reconstructing a square region (tile) of the raw
+     * images. Shifts are rescaled to the tile size, phase offsets are moved
+     * to the tile's origin, all other settings are copied.
+     *
+     * @param size Tile size, in pixels
+     * @param x0   x-position of the tile in the raw images
+     * @param y0   y-position of the tile in the raw images
+     * @param otf  OTF to use for the tile (its pixel size is set to the tile's)
+     */
+    public SimParam forTile(int size, int x0, int y0, OtfProvider otf) {
+
+        SimParam ret = copy(otf);
+        ret.setPxlSize(size, micronsPerPixel);
+
+        final double scale = size / (double) imgSize;
+
+        for (int d = 0; d < nrDirs; d++) {
+            Dir in = directions[d], out = ret.directions[d];
+
+            out.pX = in.pX * scale;
+            out.pY = in.pY * scale;
+
+            // pattern phase at the tile's origin
+            out.phaOff = in.phaOff + 2 * Math.PI * (in.pX * x0 - in.pY * y0) / imgSize;
+        }
+
+        return ret;
+    }
+
     /**
      * Save the parameters to a configuration folder.
      * Creates sub-folders 'sim-param'
@@ -685,6 +917,7 @@ public class SimParam implements Vec2d.Size {
         fd.newDbl("wiener-parameter").setVal(wienerFilterParameter);
         fd.newDbl("apodization-cutoff").setVal(apoCutOff);
         fd.newDbl("apodization-bend").setVal(apoBend);
+        fd.newInt("reduced-estimation").setVal((reducedEstimation) ? (1) : (0));
 
         for (int d = 0; d < nrDirs; d++) {
             Conf.Folder df = fd.mk(String.format("dir-%d", d));
@@ -731,6 +964,9 @@ public class SimParam implements Vec2d.Size {
         if (fd.contains("apodization-bend")) {
             ret.setApoBend(fd.getDbl("apodization-cutoff").val());
         }
+        if (fd.contains("reduced-estimation")) {
+            ret.setReducedEstimation(fd.getInt("reduced-estimation").val() > 0);
+        }
 
 
 		// for each pattern direction ...
@@ -879,6 +1115,7 @@ public class SimParam implements Vec2d.Size {
      * update the internal timestamp to signal changes, return the timestamp
      */
     public long signalRuntimeChange() {
+        checkMutable();
         runtimeTimestamp = System.currentTimeMillis();
         return runtimeTimestamp;
     }
@@ -951,13 +1188,70 @@ public class SimParam implements Vec2d.Size {
      */
     public static void main(String[] args) throws Exception {
 
-        if (args.length < 2) {
-            System.out.println("Use: i - Input, o - Output [filename] ");
+        if (args.length < 1 || (args.length < 2 && !args[0].equals("s"))) {
+            System.out.println("Use: i - Input, o - Output [filename], s - snapshot test ");
             return;
         }
 
         SimParam foo = SimParam.create(3, 4, 5, 512, 0.082, null);
 
+        // snapshots: immutable, independent of the original
+        if (args[0].equals("s")) {
+            OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+            foo.otf(otf);
+            foo.dir(0).setPxPy(100, 50);
+
+            SimParam snap = foo.snapshot();
+            boolean ok = snap.isSnapshot() && snap.snapshot() == snap
+                    && snap.otf().isFrozen() && foo.snapshot().otf() == snap.otf();
+
+            foo.dir(0).setPxPy(120, 60);
+            foo.setWienerFilter(0.1);
+            ok &= (snap.dir(0).px(2) == 100 && snap.getWienerFilter() == 0.05);
+
+            int fails = 0;
+            try {
+                snap.dir(0).setModulation(1, 0.5);
+            } catch (IllegalStateException e) {
+                fails++;
+            }
+            try {
+                snap.setApoCutoff(1.5);
+            } catch (IllegalStateException e) {
+                fails++;
+            }
+            try {
+                snap.otf().switchAttenuation(true);
+            } catch (IllegalStateException e) {
+                fails++;
+            }
+            ok &= (fails == 3);
+
+            // OTF changes renew the frozen copy, refits work on duplicates
+            otf.switchAttenuation(true);
+            ok &= (foo.snapshot().otf() != snap.otf()) && !snap.otf().isAttenuate();
+            SimParam refit = snap.duplicate();
+            refit.dir(0).setPxPy(130, 70);
+            ok &= (!refit.isSnapshot() && snap.dir(0).px(2) == 100);
+
+            Tool.trace("Snapshot test: " + ((ok) ? ("OK") : ("FAIL")));
+
+            // estimation mode survives saving and loading
+            boolean saved = true;
+            for (boolean red : new boolean[]{false, true}) {
+                SimParam sv = foo.duplicate();
+                sv.setReducedEstimation(red);
+                Conf cfg = new Conf("fairsim");
+                sv.saveConfig(cfg.r());
+                try {
+                    saved &= (loadConfig(cfg.r()).useReducedEstimation() == red);
+                } catch (Conf.EntryNotFoundException e) {
+                    saved = false;
+                }
+            }
+            Tool.trace("Reduced estimation saved and loaded: " + ((saved) ? ("OK") : ("FAIL")));
+        }
+
         // output
         if (args[0].equals("o")) {
             Conf cfg = new Conf("fairsim");
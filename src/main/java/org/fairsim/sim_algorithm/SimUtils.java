@@ -22,6 +22,7 @@ import org.fairsim.linalg.Transforms;
 import org.fairsim.linalg.Vec;
 import org.fairsim.linalg.Vec2d;
 import org.fairsim.linalg.Vec3d;
+import org.fairsim.utils.SimpleMT;
 import org.fairsim.utils.Tool;
 
 /**
@@ -77,8 +78,7 @@ public class SimUtils {
 
         if (!doFastShift) {
             // standard, slow shift (two FFTs on 2w,2h )
-            outV.pasteFreq(inV, 0, 0);
-            outV.fft2d(true);
+            Transforms.pasteFreqIfft2d(inV, outV, 0, 0);
             outV.fourierShift(kx, -ky);
             outV.fft2d(false);
         } else {
@@ -101,6 +101,110 @@ public class SimUtils {
     }
 
 
+    /**
+     * Moves several freq space vectors, each to its own kx[i], ky[i], see
+     * {@link #fourierShift(Vec2d.Cplx, double, double)}. The FFTs of all
+     * vectors run as one batch.
+     */
+    static public void fourierShift(Vec2d.Cplx[] inV, double[] kx, double[] ky) {
+        Transforms.fft2dBatch(inV, true);
+        for (int i = 0; i < inV.length; i++)
+            Transforms.timesShiftVector(inV[i], kx[i], -ky[i]);
+        Transforms.fft2dBatch(inV, false);
+    }
+
+    /**
+     * Batch version of {@link #pasteAndFourierShift(Vec2d.Cplx, Vec2d.Cplx, double, double, boolean)},
+     * moving inV[i] to kx[i], ky[i]. The FFTs of all vectors run as one batch.
+     */
+    static public void pasteAndFourierShift(final Vec2d.Cplx[] inV, final Vec2d.Cplx[] outV,
+                                            double[] kx, double[] ky, boolean doFastShift) {
+
+        if (!doFastShift) {
+            new SimpleMT.PFor(0, inV.length) {
+                public void at(int i) {
+                    Transforms.pasteFreqIfft2d(inV[i], outV[i], 0, 0);
+                }
+            };
+            for (int i = 0; i < inV.length; i++)
+                outV[i].fourierShift(kx[i], -ky[i]);
+            Transforms.fft2dBatch(outV, false);
+        } else {
+            Transforms.fft2dBatch(inV, true);
+            for (int i = 0; i < inV.length; i++)
+                inV[i].fourierShift(kx[i] - Math.floor(kx[i]), -ky[i] - Math.floor(-ky[i]));
+            Transforms.fft2dBatch(inV, false);
+            for (int i = 0; i < inV.length; i++)
+                outV[i].pasteFreq(inV[i], (int) Math.floor(kx[i]), (int) Math.floor(-ky[i]));
+        }
+    }
+
+    /**
+     * Decimate a spectrum by 'f' in both dimensions: every f-th frequency
+     * of a copy smoothed by a Gaussian (sigma f/2 pxl), with the image
+     * centre moved to the origin first. In real space, this keeps a
+     * Gaussian-weighted region around the image centre (FWHM about 3/4 of
+     * the decimated size) at the original sampling, with less than 1%
+     * wrap-around. Plain binning would fold the whole image onto the
+     * decimated size, and correlation peaks of the folded parts cancel.
+     *
+     * @param in Spectrum, width and height have to be multiples of 'f'
+     * @param f  Decimation factor
+     * @return The decimated spectrum, as new vector. Its frequencies are in units of f pxl.
+     */
+    public static Vec2d.Cplx decimateSpectrum(Vec2d.Cplx in, final int f) {
+        final int w = in.vectorWidth(), h = in.vectorHeight();
+        if (w % f != 0 || h % f != 0 || w % 2 != 0 || h % 2 != 0)
+            throw new IllegalArgumentException("Size " + w + "x" + h + " not a multiple of " + f);
+        final int bw = w / f, bh = h / f;
+        final float[] id = in.vectorData();
+        final float[] tmp = new float[2 * bw * h];
+        Vec2d.Cplx out = Vec2d.createCplx(bw, bh);
+        final float[] od = out.vectorData();
+
+        // Gaussian weights, sign flipped for odd offsets: (-1)^x moves the image centre to 0
+        final int r = 2 * f;
+        final float[] wt = new float[2 * r + 1];
+        for (int d = -r; d <= r; d++)
+            wt[d + r] = (float) (Math.exp(-2. * d * d / (f * f)) * (((d % 2) == 0) ? (1) : (-1)));
+        // sign of the center sample, (-1)^(b*f)
+        final boolean flip = (f % 2) != 0;
+
+        // along x, for every row
+        new SimpleMT.PFor(0, h) {
+            public void at(int y) {
+                for (int bx = 0; bx < bw; bx++) {
+                    float re = 0, im = 0;
+                    for (int d = -r; d <= r; d++) {
+                        int x = ((bx * f + d) % w + w) % w;
+                        re += wt[d + r] * id[2 * (y * w + x) + 0];
+                        im += wt[d + r] * id[2 * (y * w + x) + 1];
+                    }
+                    float s = (flip && (bx % 2) != 0) ? (-1) : (1);
+                    tmp[2 * (y * bw + bx) + 0] = s * re;
+                    tmp[2 * (y * bw + bx) + 1] = s * im;
+                }
+            }
+        };
+
+        // along y
+        new SimpleMT.PFor(0, bh) {
+            public void at(int by) {
+                float s = (flip && (by % 2) != 0) ? (-1) : (1);
+                for (int d = -r; d <= r; d++) {
+                    int y = ((by * f + d) % h + h) % h;
+                    float g = s * wt[d + r];
+                    for (int bx = 0; bx < bw; bx++) {
+                        od[2 * (by * bw + bx) + 0] += g * tmp[2 * (y * bw + bx) + 0];
+                        od[2 * (by * bw + bx) + 1] += g * tmp[2 * (y * bw + bx) + 1];
+                    }
+                }
+            }
+        };
+        out.syncBuffer();
+        return out;
+    }
+
     /**
      * Return the power spectrum (as a new vector) of 'in'
      */
@@ -142,9 +246,7 @@ public class SimUtils {
      */
     public static Vec2d.Real spatial(Vec2d.Cplx in) {
         Vec2d.Real pw = Vec2d.createReal(in);
-        Vec2d.Cplx tmp = in.duplicate();
-        Transforms.fft2d(tmp, true);
-        pw.copy(tmp);
+        Transforms.ifft2dReal(in, pw);
         return pw;
     }
 
@@ -174,6 +276,24 @@ public class SimUtils {
         return pw;
     }
 
+    /**
+     * Create an image by FFTin back 'in' to spatial,
+     * clipping and scaling it afterwards. Uses the provided
+     * vectors instead of allocating new ones.
+     *
+     * @param in        Input spectrum (not changed)
+     * @param out       Output image, same size as 'in'
+     * @param clipScale Clip and / or scale the output
+     */
+    static void spatial(Vec2d.Cplx in, Vec2d.Real out,
+                        SimParam.CLIPSCALE clipScale) {
+        Transforms.ifft2dReal(in, out);
+        if (clipScale == SimParam.CLIPSCALE.CLIP)
+            clipAndScale(out, true, false);
+        if (clipScale == SimParam.CLIPSCALE.BOTH)
+            clipAndScale(out, true, true);
+    }
+
 
     /**
      * Fades borders (sizes px) of the input to zero.
@@ -374,4 +494,134 @@ public class SimUtils {
     }
 
 
+    // ------ simulated data, for testing ------
+
+    /**
+     * For testing: parameters to simulate data with (see {@link #simulateRaw}),
+     * 3 bands, 3 directions, 5 phases, 0.08 micron pixels, an estimated OTF,
+     * k-vectors at 0.23 of the image size.
+     */
+    static SimParam simulatedParam(int size) {
+        OtfProvider otf = OtfProvider.fromEstimate(1.4, 515, 0.35);
+        SimParam param = SimParam.create(3, 3, 5, size, 0.08, otf);
+        for (int d = 0; d < param.nrDir(); d++) {
+            double ang = d * Math.PI / param.nrDir() + 0.2;
+            param.dir(d).setPxPy(0.23 * size * Math.cos(ang), 0.23 * size * Math.sin(ang));
+        }
+        return param;
+    }
+
+    /**
+     * For testing: a sparse random object, 2% of the pixels at 100, the
+     * rest at 1, drawn from 'rnd'
+     */
+    static float[] sparseObject(int w, int h, java.util.Random rnd) {
+        float[] obj = new float[w * h];
+        for (int i = 0; i < obj.length; i++)
+            obj[i] = (rnd.nextFloat() < 0.02) ? (100) : (1);
+        return obj;
+    }
+
+    /**
+     * For testing: simulated raw data, see {@link #simulateRaw(SimParam, long, double, int)}
+     */
+    static Vec2d.Cplx[][] simulateRaw(SimParam param, long seed, double noise) {
+        return simulateRaw(param, seed, noise, 0);
+    }
+
+    /**
+     * For testing: simulated raw data, in Fourier space. A sparse random object
+     * (see {@link #sparseObject}) is illuminated by the SIM pattern of 'param'
+     * (k-vectors and phases; 1st harmonic at 0.5, 2nd at 0.3), imaged by its
+     * OTF, and Gaussian noise is added.
+     *
+     * @param param    Pattern, image size and OTF to simulate
+     * @param seed     Seed of the object and noise
+     * @param noise    Standard deviation of the noise (0: none)
+     * @param objShift Shift of the object in x, in pxl (e.g. for time series)
+     * @return The raw images, [dir][pha]
+     */
+    static Vec2d.Cplx[][] simulateRaw(SimParam param, long seed, double noise, int objShift) {
+        final int w = param.vectorWidth(), h = param.vectorHeight();
+        java.util.Random rnd = new java.util.Random(seed);
+        float[] obj = sparseObject(w, h, rnd);
+
+        Vec2d.Real img = Vec2d.createReal(w, h);
+        float[] dat = img.vectorData();
+        Vec2d.Cplx[][] inFFT = new Vec2d.Cplx[param.nrDir()][param.nrPha()];
+        for (int d = 0; d < param.nrDir(); d++)
+            for (int p = 0; p < param.nrPha(); p++) {
+                double kx = param.dir(d).px(1), ky = param.dir(d).py(1);
+                double pha = param.dir(d).getPhases()[p];
+                for (int y = 0; y < h; y++)
+                    for (int x = 0; x < w; x++) {
+                        double ph = 2 * Math.PI * (kx * x - ky * y) / w + pha;
+                        dat[x + y * w] = (float) (obj[(x + objShift) % w + y * w] *
+                                (1 + 0.5 * Math.cos(ph) + 0.3 * Math.cos(2 * ph)));
+                    }
+                img.syncBuffer();
+                inFFT[d][p] = Vec2d.createCplx(w, h);
+                Transforms.fft2dReal(img, inFFT[d][p]);
+                param.otf().applyOtf(inFFT[d][p], 0);
+
+                if (noise > 0) {
+                    Transforms.ifft2dReal(inFFT[d][p], img);
+                    for (int i = 0; i < dat.length; i++)
+                        dat[i] += (float) (rnd.nextGaussian() * noise);
+                    img.syncBuffer();
+                    Transforms.fft2dReal(img, inFFT[d][p]);
+                }
+            }
+        return inFFT;
+    }
+
+
+    /**
+     * For testing: compares reconstructions with the standard and the fast
+     * band shift (see {@link SimParam#setFastShift}) on simulated data, and
+     * times both.
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (256);
+        final int frames = (args.length > 1) ? (Integer.parseInt(args[1])) : (5);
+        final double maxRelDiff = 5e-2;
+
+        SimParam param = simulatedParam(size);
+        Vec2d.Cplx[][] inFFT = simulateRaw(param, 42, 0);
+
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        Vec2d.Real[] res = new Vec2d.Real[2];
+        Tool.Timer[] timer = {Tool.getTimer(), Tool.getTimer()};
+
+        for (int fast = 0; fast < 2; fast++) {
+            param.setFastShift(fast == 1);
+            SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null);
+            timer[fast].start();
+            for (int i = 0; i < frames; i++)
+                SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                        SimParam.CLIPSCALE.NONE, null, null, null);
+            timer[fast].stop();
+            res[fast] = ws.resultImage.duplicate();
+        }
+
+        // relative difference, in the L2 norm
+        double diff = 0, norm = 0;
+        float[] a = res[0].vectorData(), b = res[1].vectorData();
+        for (int i = 0; i < a.length; i++) {
+            diff += (a[i] - b[i]) * (a[i] - b[i]);
+            norm += a[i] * a[i];
+        }
+        double rel = Math.sqrt(diff / norm);
+
+        Tool.trace(String.format("%d frames, %dx%d: standard shift %s, fast shift %s",
+                frames, size, size, timer[0], timer[1]));
+        Tool.trace(String.format("rel. difference fast vs. standard shift: %5.3e (bound %5.3e) %s",
+                rel, maxRelDiff, (rel < maxRelDiff) ? "OK" : "FAIL"));
+
+        Tool.shutdown();
+    }
+
+
 }
@@ -0,0 +1,384 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Transforms;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.ComputeResources;
+import org.fairsim.utils.Tool;
+
+/**
+ * Tiled SIM reconstruction for large fields of view. The raw images
+ * are split into overlapping square tiles, which are reconstructed
+ * independently (and in parallel, as far as the memory ceiling allows)
+ * and blended back together. Memory needed for the reconstruction
+ * then depends on the tile size, not on the image size.
+ * <p>
+ * The SIM parameters are set for the full image: the k-vectors are
+ * rescaled to the tile size, the phases are moved to each tile's origin
+ * (see {@link SimParam#forTile}). Tile borders are faded with
+ * {@link SimUtils#fadeBorderCos} before reconstruction, and the
+ * overlapping regions are blended with a sin^2 ramp.
+ */
+public class TiledReconstructor {
+
+    private final SimParam param;
+    private final int tileSize, overlap, fade;
+    private final int concurrent;
+    private final long maxBytes, perTile, shared;
+    private final OtfProvider tileOtf;
+
+    /**
+     * Create a tiled reconstructor.
+     *
+     * @param param    SIM parameters (k-vectors, phases, filter settings) for the full image
+     * @param tileSize Size of the (square) tiles in raw pixels, a power of 2 is fastest
+     * @param overlap  Overlap between neighbouring tiles, in raw pixels
+     * @param maxBytes Memory ceiling for the tile reconstructions and the output image, in bytes
+     */
+    public TiledReconstructor(SimParam param, int tileSize, int overlap, long maxBytes) {
+        if (param.otf() == null)
+            throw new IllegalArgumentException("No OTF set in SimParam");
+        if (tileSize < 32 || tileSize % 2 != 0)
+            throw new IllegalArgumentException("Tile size has to be even and at least 32");
+        if (overlap < 8 || overlap > tileSize / 2)
+            throw new IllegalArgumentException("Overlap has to be between 8 and half the tile size");
+
+        this.param = param;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.fade = overlap / 4;
+
+        // all tiles share one OTF, as they all have the same size: set
+        // to the tile's pixel size once, then frozen, so concurrent tiles only read it
+        OtfProvider otf = param.otf().duplicate();
+        SimParam tp = param.forTile(tileSize, 0, 0, otf);
+        this.tileOtf = otf.frozen();
+
+        this.maxBytes = maxBytes;
+        this.perTile = bytesPerTile(param, tileSize);
+        this.shared = FilterKernelCache.estimateBytes(tp);
+        if (perTile + shared > maxBytes)
+            throw new IllegalArgumentException(String.format(
+                    "Memory ceiling %d MB too low for tile size %d (needs %d MB)",
+                    maxBytes / 1024 / 1024, tileSize, (perTile + shared) / 1024 / 1024));
+
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        this.concurrent = (int) Math.max(1, Math.min(nThreads, (maxBytes - shared) / perTile));
+
+        Tool.trace(String.format("Tiled reconstruction: tiles %d px, overlap %d px, %d tiles in parallel",
+                tileSize, overlap, concurrent));
+    }
+
+    /**
+     * Memory needed for reconstructing one tile, in bytes
+     * (not including the filter vectors shared by all tiles)
+     */
+    static long bytesPerTile(SimParam param, int tileSize) {
+        final long px = (long) tileSize * tileSize;
+        SimParam tp = SimParam.create(param.nrBand(), param.nrDir(), param.nrPha());
+        tp.setPxlSize(tileSize, 1);
+        return ReconstructionWorkspace.estimateBytes(tp)
+                + px * param.nrDir() * param.nrPha() * 8    // FFT'd input tiles
+                + px * 4;                                   // spatial tile
+    }
+
+    /**
+     * Memory needed for the output image of a w x h raw image
+     * (result and sum of blending weights, both 2w x 2h), in bytes
+     */
+    static long outputBytes(int w, int h) {
+        return 4L * w * h * (4 + 4);
+    }
+
+    /**
+     * Returns the largest power-of-2 tile size (at least 64) for which
+     * one tile of a w x h raw image can be reconstructed within 'maxBytes',
+     * or -1 if even the smallest does not fit.
+     */
+    public static int largestTileSize(SimParam param, int w, int h, long maxBytes) {
+        int best = -1;
+        for (int t = 64; t <= 8192; t *= 2) {
+            SimParam tp = SimParam.create(param.nrBand(), param.nrDir(), param.nrPha());
+            tp.setPxlSize(t, 1);
+            if (bytesPerTile(param, t) + FilterKernelCache.estimateBytes(tp) + outputBytes(w, h) <= maxBytes)
+                best = t;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the maximum number of tiles reconstructed in parallel,
+     * not counting the output image
+     */
+    public int getConcurrentTiles() {
+        return concurrent;
+    }
+
+    /**
+     * Returns the number of tiles reconstructed in parallel for a w x h raw
+     * image, with the output image counted against the memory ceiling.
+     *
+     * @throws IllegalArgumentException if not even one tile fits next to the output
+     */
+    public int getConcurrentTiles(int w, int h) {
+        long avail = maxBytes - shared - outputBytes(w, h);
+        if (avail < perTile)
+            throw new IllegalArgumentException(String.format(
+                    "Memory ceiling %d MB too low for a %dx%d image with tile size %d (needs %d MB)",
+                    maxBytes / 1024 / 1024, w, h, tileSize,
+                    (perTile + shared + outputBytes(w, h)) / 1024 / 1024));
+        return (int) Math.min(concurrent, avail / perTile);
+    }
+
+    // tile origins along one axis
+    private int[] tileOrigins(int len) {
+        if (len <= tileSize)
+            return new int[]{0};
+        final int step = tileSize - overlap;
+        int n = (len - overlap + step - 1) / step;
+        int[] ret = new int[n];
+        for (int i = 0; i < n; i++)
+            ret[i] = Math.min(i * step, len - tileSize);
+        return ret;
+    }
+
+    // blending weight along one axis, output pixel 'j' of a tile (2x upsampled)
+    private double weight(int j, boolean rampLow, boolean rampHigh) {
+        final double u = j / 2.;
+        final double len = overlap - 2 * fade;
+        double w = 1;
+        if (rampLow)
+            w *= ramp((u - fade) / len);
+        if (rampHigh)
+            w *= ramp((tileSize - 1 - u - fade) / len);
+        return w;
+    }
+
+    private static double ramp(double t) {
+        if (t <= 0) return 0;
+        if (t >= 1) return 1;
+        return Math.pow(Math.sin(t * Math.PI / 2), 2);
+    }
+
+    /**
+     * Run the tiled reconstruction.
+     *
+     * @param raw          Raw images, [direction][phase], all of the same size
+     * @param imgClipScale Clip zero values and scale (0..255) the output?
+     * @return The reconstructed image, of twice the raw image size
+     */
+    public Vec2d.Real reconstruct(final Vec2d.Real[][] raw, SimParam.CLIPSCALE imgClipScale) {
+
+        final int w = raw[0][0].vectorWidth(), h = raw[0][0].vectorHeight();
+        if (raw.length != param.nrDir())
+            throw new IllegalArgumentException("Number of directions does not match parameters");
+        for (Vec2d.Real[] d : raw) {
+            if (d.length != param.nrPha())
+                throw new IllegalArgumentException("Number of phases does not match parameters");
+            for (Vec2d.Real r : d)
+                if (r.vectorWidth() != w || r.vectorHeight() != h)
+                    throw new IllegalArgumentException("Raw images differ in size");
+        }
+
+        final int[] xOrig = tileOrigins(w), yOrig = tileOrigins(h);
+        final int nTiles = xOrig.length * yOrig.length;
+        final int concurrent = getConcurrentTiles(w, h);
+
+        final Vec2d.Real result = Vec2d.createReal(2 * w, 2 * h);
+        final float[] weightSum = new float[4 * w * h];
+
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+
+        // each worker reconstructs every 'concurrent'-th tile, with its own
+        // buffers and its own share of the compute threads
+        new ComputeResources.PartFor(0, Math.min(concurrent, nTiles)) {
+            public void at(int worker) {
+
+                final int ts = tileSize;
+                ReconstructionWorkspace ws = null;
+                Vec2d.Real tile = Vec2d.createReal(ts, ts);
+                Vec2d.Cplx[][] inFFT = new Vec2d.Cplx[param.nrDir()][];
+                for (int d = 0; d < param.nrDir(); d++)
+                    inFFT[d] = Vec2d.createArrayCplx(param.nrPha(), ts, ts);
+
+                for (int idx = worker; idx < nTiles; idx += concurrent) {
+                    final int tx = idx % xOrig.length, ty = idx / xOrig.length;
+                    final int x0 = xOrig[tx], y0 = yOrig[ty];
+
+                    SimParam tp = param.forTile(ts, x0, y0, tileOtf);
+                    if (ws == null)
+                        ws = new ReconstructionWorkspace(tp);
+
+                    // cut out, fade borders, FFT
+                    for (int d = 0; d < param.nrDir(); d++)
+                        for (int p = 0; p < param.nrPha(); p++) {
+                            copyTile(raw[d][p], tile, x0, y0);
+                            SimUtils.fadeBorderCos(tile, fade);
+                            Transforms.fft2dReal(tile, inFFT[d][p]);
+                        }
+
+                    Vec2d.Real rec = SimAlgorithm.runReconstruction(tp, inFFT, ws, null, -1,
+                            false, SimParam.CLIPSCALE.NONE, null, null, null);
+
+                    addTile(rec, result, weightSum, x0, y0,
+                            tx > 0, tx < xOrig.length - 1, ty > 0, ty < yOrig.length - 1);
+
+                    Tool.trace(String.format("Tiled reconstruction: tile %d/%d done", idx + 1, nTiles));
+                }
+            }
+        };
+
+        // normalize by the sum of weights
+        float[] res = result.vectorData();
+        for (int i = 0; i < res.length; i++)
+            if (weightSum[i] > 0)
+                res[i] /= weightSum[i];
+        result.syncBuffer();
+
+        if (imgClipScale == SimParam.CLIPSCALE.CLIP)
+            SimUtils.clipAndScale(result, true, false);
+        if (imgClipScale == SimParam.CLIPSCALE.BOTH)
+            SimUtils.clipAndScale(result, true, true);
+
+        t1.stop();
+        Tool.trace(String.format("Tiled reconstruction: %d tiles, took %s", nTiles, t1));
+
+        return result;
+    }
+
+    // copy a tile from the raw image, zero outside the image
+    private static void copyTile(Vec2d.Real img, Vec2d.Real tile, int x0, int y0) {
+        final int w = img.vectorWidth(), h = img.vectorHeight();
+        final int ts = tile.vectorWidth();
+        final float[] in = img.vectorData(), out = tile.vectorData();
+        for (int y = 0; y < ts; y++)
+            for (int x = 0; x < ts; x++) {
+                int xi = x + x0, yi = y + y0;
+                out[x + y * ts] = (xi < w && yi < h) ? (in[xi + yi * w]) : (0);
+            }
+        tile.syncBuffer();
+    }
+
+    // add a weighted reconstructed tile to the result
+    private void addTile(Vec2d.Real rec, Vec2d.Real result, float[] weightSum,
+                         int x0, int y0, boolean left, boolean right, boolean top, boolean bottom) {
+        final int ts = 2 * tileSize, wo = result.vectorWidth(), ho = result.vectorHeight();
+        final float[] in = rec.vectorData();
+
+        final double[] wx = new double[ts], wy = new double[ts];
+        for (int i = 0; i < ts; i++) {
+            wx[i] = weight(i, left, right);
+            wy[i] = weight(i, top, bottom);
+        }
+
+        synchronized (result) {
+            final float[] out = result.vectorData();
+            for (int y = 0; y < ts; y++)
+                for (int x = 0; x < ts; x++) {
+                    int xo = x + 2 * x0, yo = y + 2 * y0;
+                    if (xo >= wo || yo >= ho)
+                        continue;
+                    float f = (float) (wx[x] * wy[y]);
+                    out[xo + yo * wo] += f * in[x + y * ts];
+                    weightSum[xo + yo * wo] += f;
+                }
+        }
+    }
+
+
+    /**
+     * For testing: compares a tiled reconstruction of simulated data
+     * with a reconstruction of the full image.
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final int tileSize = (args.length > 1) ? (Integer.parseInt(args[1])) : (256);
+        final int overlap = (args.length > 2) ? (Integer.parseInt(args[2])) : (64);
+
+        SimParam param = SimUtils.simulatedParam(size);
+        for (int d = 0; d < param.nrDir(); d++)
+            param.dir(d).setPhaOff(0.3 * d + 0.1);
+
+        // simulated raw data, in real space for the tiles
+        Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(param, 42, 0);
+        Vec2d.Real[][] raw = new Vec2d.Real[param.nrDir()][param.nrPha()];
+        for (int d = 0; d < param.nrDir(); d++)
+            for (int p = 0; p < param.nrPha(); p++) {
+                raw[d][p] = Vec2d.createReal(size, size);
+                Transforms.ifft2dReal(inFFT[d][p], raw[d][p]);
+            }
+
+        // full reconstruction
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        Tool.Timer tFull = Tool.getTimer();
+        tFull.start();
+        Vec2d.Real full = SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1,
+                false, SimParam.CLIPSCALE.NONE, null, null, null);
+        tFull.stop();
+        long fullBytes = ReconstructionWorkspace.estimateBytes(param) +
+                FilterKernelCache.estimateBytes(param);
+
+        // tiled reconstruction, memory for two tiles
+        SimParam tp = SimParam.create(param.nrBand(), param.nrDir(), param.nrPha());
+        tp.setPxlSize(tileSize, 1);
+        long maxBytes = 2 * bytesPerTile(param, tileSize) + FilterKernelCache.estimateBytes(tp)
+                + outputBytes(size, size);
+        TiledReconstructor tr = new TiledReconstructor(param, tileSize, overlap, maxBytes);
+
+        // a ceiling that leaves no room for the output image is rejected
+        boolean rejected = false;
+        try {
+            new TiledReconstructor(param, tileSize, overlap, bytesPerTile(param, tileSize)
+                    + FilterKernelCache.estimateBytes(tp))
+                    .reconstruct(raw, SimParam.CLIPSCALE.NONE);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+
+        Tool.Timer tTiled = Tool.getTimer();
+        tTiled.start();
+        Vec2d.Real tiled = tr.reconstruct(raw, SimParam.CLIPSCALE.NONE);
+        tTiled.stop();
+
+        // compare, without the image borders
+        final int b = 2 * overlap, wo = 2 * size;
+        double diff = 0, norm = 0;
+        float[] a = tiled.vectorData(), f = full.vectorData();
+        for (int y = b; y < wo - b; y++)
+            for (int x = b; x < wo - b; x++) {
+                double v = a[x + y * wo] - f[x + y * wo];
+                diff += v * v;
+                norm += f[x + y * wo] * f[x + y * wo];
+            }
+        double rel = Math.sqrt(diff / norm);
+
+        Tool.trace(String.format("full %dx%d: %s, est. %d MB", size, size, tFull,
+                fullBytes / 1024 / 1024));
+        Tool.trace(String.format("tiled (%d px, overlap %d): %s, ceiling %d MB, %d tile(s) in parallel",
+                tileSize, overlap, tTiled, maxBytes / 1024 / 1024, tr.getConcurrentTiles(size, size)));
+        Tool.trace(String.format("rel. difference tiled vs. full (w/o borders): %5.3e, too low ceiling rejected: %b %s",
+                rel, rejected, (rel < 5e-2 && rejected) ? "OK" : "FAIL"));
+
+        Tool.shutdown();
+    }
+
+}
@@ -18,9 +18,7 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 
 package org.fairsim.sim_algorithm;
 
-import org.fairsim.linalg.MTool;
 import org.fairsim.linalg.Vec2d;
-import org.fairsim.utils.SimpleMT;
 import org.fairsim.utils.Tool;
 
 /**
@@ -54,40 +52,11 @@ public class WienerFilter {
     public void addWienerDenominator(final Vec2d.Real vec,
                                      final int d, final int b, final boolean useAtt) {
 
-        // parameters
-        final int w = vec.vectorWidth(), h = vec.vectorHeight();
+        // OTF^2 at +-(kx,ky), from the primitive OTF tables
         final SimParam.Dir dir = sp.dir(d);
         final double cyclMicron = sp.pxlSizeCyclesMicron();
-
-        // loop the vector x,y
-        new SimpleMT.PFor(0, h) {
-            public void at(int y) {
-                for (int x = 0; x < w; x++) {
-
-                    // wrap to coordinates: x in [-w,w], y in [-h, h]
-                    double xh = (x < w / 2) ? (x) : (x - w);
-                    double yh = (y < h / 2) ? (-y) : (h - y);
-
-                    // from these, calculate distance to +-(kx,ky), convert to cycl/microns
-                    double rad1 = MTool.fhypot(xh - dir.px(b), yh - dir.py(b)) * cyclMicron;
-                    double rad2 = MTool.fhypot(xh + dir.px(b), yh + dir.py(b)) * cyclMicron;
-
-                    // get OTF, at that distance, for that band, un-attenuated
-                    float otfVal1 = sp.otf().getOtfVal(b, rad1, false).absSq();
-                    float otfVal2 = sp.otf().getOtfVal(b, rad2, false).absSq();
-
-                    // if attenuate, do so
-                    if (useAtt) {
-                        otfVal1 *= sp.otf().getAttVal(b, rad1);
-                        otfVal2 *= sp.otf().getAttVal(b, rad2);
-                    }
-
-                    // store for Wiener denominator
-                    vec.set(x, y, vec.get(x, y) + otfVal1 + otfVal2);
-
-                }
-            }
-        };
+        sp.otf().addOtfAbs2(vec, b, dir.px(b), dir.py(b), cyclMicron, useAtt);
+        sp.otf().addOtfAbs2(vec, b, -dir.px(b), -dir.py(b), cyclMicron, useAtt);
     }
 
 
@@ -101,7 +70,10 @@ public class WienerFilter {
         final int w = sp.vectorWidth(), h = sp.vectorHeight();
 
         t1.start();
-        wDenom = Vec2d.createReal(2 * w, 2 * h);
+        if (wDenom == null || wDenom.vectorWidth() != 2 * w || wDenom.vectorHeight() != 2 * h)
+            wDenom = Vec2d.createReal(2 * w, 2 * h);
+        else
+            wDenom.zero();
         boolean useAtt = sp.otf().isAttenuate();
 
         // loop directions, bands
@@ -125,14 +97,27 @@ public class WienerFilter {
      * @param wParam Wiener filter parameter
      */
     public Vec2d.Real getDenominator(double wParam) {
-        Vec2d.Real ret = wDenom.duplicate();
-        final int w = ret.vectorWidth(), h = ret.vectorHeight();
-        for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++)
-                ret.set(x, y, 1 / (ret.get(x, y) + (float) (wParam * wParam)));
+        Vec2d.Real ret = Vec2d.createReal(wDenom);
+        getDenominator(wParam, ret);
         return ret;
     }
 
+    /**
+     * Writes the reciproc Wiener denominator to 'out'.
+     *
+     * @param wParam Wiener filter parameter
+     * @param out    Output vector, 2w x 2h
+     */
+    public void getDenominator(double wParam, Vec2d.Real out) {
+        Vec2d.failSize(out, wDenom);
+        final float[] in = wDenom.vectorData();
+        final float[] dat = out.vectorData();
+        final float w2 = (float) (wParam * wParam);
+        for (int i = 0; i < dat.length; i++)
+            dat[i] = 1 / (in[i] + w2);
+        out.syncBuffer();
+    }
+
 
     /**
      * Returns a denominator for filtering the wide-field,
@@ -0,0 +1,348 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.sim_algorithm;
+
+import org.fairsim.linalg.Transforms;
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.utils.SimpleMT;
+import org.fairsim.utils.Tool;
+
+/**
+ * Reconstruction of one dataset with a range of Wiener parameters,
+ * e.g. to calibrate the parameter. The bands are assembled once
+ * (see {@link SimAlgorithm#assembleSpectrum}), only the Wiener filter,
+ * APO and the inverse FFT run per parameter, for several parameters
+ * in parallel, as far as a memory ceiling allows. Optionally, some
+ * spectral quality metrics are computed for each output.
+ */
+public class WienerSweep {
+
+    /**
+     * Metric: fraction of the spectral power beyond the widefield OTF
+     * cutoff, i.e. carried by the resolution enhancement
+     */
+    public static final int HIGH_FREQ_POWER = 0;
+
+    /**
+     * Metric: mean power in the outer 20% of the SIM passband (OTF cutoff plus
+     * the longest k-vector), relative to the mean power between 10% and 50%
+     * of the OTF cutoff. Rises as noise is amplified.
+     */
+    public static final int NOISE_RATIO = 1;
+
+    /**
+     * Metric: sum of negative values / sum of absolute values of the (unclipped)
+     * image. Rises with ringing artifacts.
+     */
+    public static final int NEGATIVE_FRACTION = 2;
+
+    private final double[] wParams;
+    private final Vec2d.Real[] images;
+    private final double[][] metrics;
+    private final int concurrent;
+
+    private WienerSweep(double[] wParams, Vec2d.Real[] images, double[][] metrics, int concurrent) {
+        this.wParams = wParams;
+        this.images = images;
+        this.metrics = metrics;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Number of Wiener parameters in the sweep
+     */
+    public int size() {
+        return wParams.length;
+    }
+
+    /**
+     * The i'th Wiener parameter
+     */
+    public double getWienerParam(int i) {
+        return wParams[i];
+    }
+
+    /**
+     * The reconstruction with the i'th Wiener parameter
+     */
+    public Vec2d.Real getImage(int i) {
+        return images[i];
+    }
+
+    /**
+     * The metrics of the i'th reconstruction (see {@link #HIGH_FREQ_POWER},
+     * {@link #NOISE_RATIO}, {@link #NEGATIVE_FRACTION}), or null if not computed
+     */
+    public double[] getMetrics(int i) {
+        return (metrics == null) ? (null) : (metrics[i]);
+    }
+
+    /**
+     * Number of outputs that were filtered in parallel
+     */
+    public int getConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Memory needed per output filtered in parallel (filtered spectrum
+     * and Wiener denominator, 2w x 2h), in bytes
+     */
+    static long bytesPerSlot(SimParam param) {
+        return 4L * param.vectorWidth() * param.vectorHeight() * (8 + 4);
+    }
+
+    /**
+     * Memory needed besides the parallel outputs: workspace, assembled
+     * spectrum with its Wiener filter, and 'n' output images, in bytes
+     */
+    static long sharedBytes(SimParam param, int n) {
+        final long px = 4L * param.vectorWidth() * param.vectorHeight();
+        return ReconstructionWorkspace.estimateBytes(param) + px * (8 + 4) + n * px * 4;
+    }
+
+    /**
+     * Reconstruct with each Wiener parameter in 'wParams', with the heap
+     * memory currently available as ceiling. See
+     * {@link #run(SimParam, Vec2d.Cplx[][], double[], SimParam.CLIPSCALE, boolean, long, Tool.Timer)}.
+     */
+    public static WienerSweep run(final SimParam param, Vec2d.Cplx[][] inFFT,
+                                  final double[] wParams, final SimParam.CLIPSCALE imgClipScale,
+                                  final boolean computeMetrics, Tool.Timer tRec) {
+        Runtime rt = Runtime.getRuntime();
+        long avail = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        return run(param, inFFT, wParams, imgClipScale, computeMetrics, avail, tRec);
+    }
+
+    /**
+     * Reconstruct with each Wiener parameter in 'wParams'. All other
+     * settings (APO, OTF, ...) are taken from 'param', which has to use
+     * the Wiener filter.
+     *
+     * @param param          The SIM parameters
+     * @param inFFT          The input images (in Fourier space)
+     * @param wParams        Wiener parameters to reconstruct with
+     * @param imgClipScale   Clip zero values and scale (0..255) output images?
+     * @param computeMetrics If to compute the spectral quality metrics
+     * @param maxBytes       Memory ceiling for the sweep, including the output images, in bytes
+     * @param tRec           Runtime measurement (may be null)
+     */
+    public static WienerSweep run(final SimParam param, Vec2d.Cplx[][] inFFT,
+                                  final double[] wParams, final SimParam.CLIPSCALE imgClipScale,
+                                  final boolean computeMetrics, final long maxBytes, Tool.Timer tRec) {
+
+        if (!param.useWienerFilter())
+            throw new IllegalArgumentException("Wiener sweep needs the Wiener filter style");
+        if (wParams.length == 0)
+            throw new IllegalArgumentException("No Wiener parameters given");
+        final long perSlot = bytesPerSlot(param), shared = sharedBytes(param, wParams.length);
+        if (perSlot + shared > maxBytes)
+            throw new IllegalArgumentException(String.format(
+                    "Memory ceiling %d MB too low for %d outputs (needs %d MB)",
+                    maxBytes / 1024 / 1024, wParams.length, (perSlot + shared) / 1024 / 1024));
+
+        if (tRec != null) tRec.start();
+
+        // assemble once
+        final ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        final AssembledSpectrum spec = SimAlgorithm.assembleSpectrum(param, inFFT, ws, false, null);
+        final WienerFilter wFilter = spec.wienerFilter();
+        final int w2 = 2 * ws.w, h2 = 2 * ws.h;
+
+        // APO, the same for all outputs
+        final Vec2d.Cplx apo = ws.apo();
+        param.otf().writeApoVector(apo, param.getApoBend(), param.getApoCutoff());
+        final float[] apoDat = apo.vectorData();
+        final float[] num = spec.getNumerator().vectorData();
+
+        final RadiusMap dist = (computeMetrics) ?
+                (RadiusMap.get(w2, h2, 0, 0, param.pxlSizeCyclesMicron())) : (null);
+        final double cutOff = param.otf().getCutoff();
+        double maxK = 0;
+        for (int d = 0; d < param.nrDir(); d++)
+            maxK = Math.max(maxK, param.dir(d).getPxPyLen(param.nrBand() - 1));
+        final double simCutOff = cutOff + maxK * param.pxlSizeCyclesMicron();
+
+        // one set of buffers per concurrently filtered output, as many as fit.
+        // Slots run on pool threads, so each inverse FFT gets its own instance.
+        final int slots = (int) Math.min(Math.min(wParams.length, SimpleMT.getParallelism()),
+                (maxBytes - shared) / perSlot);
+        final Vec2d.Cplx[] spectra = Vec2d.createArrayCplx(slots, w2, h2);
+        final Vec2d.Real[] denoms = new Vec2d.Real[slots];
+        for (int s = 0; s < slots; s++)
+            denoms[s] = Vec2d.createReal(w2, h2);
+
+        final Vec2d.Real[] images = new Vec2d.Real[wParams.length];
+        final double[][] metrics = (computeMetrics) ? (new double[wParams.length][]) : (null);
+
+        new SimpleMT.StrPFor(0, slots) {
+            public void at(int s) {
+                final float[] fr = spectra[s].vectorData();
+                final float[] den = denoms[s].vectorData();
+
+                for (int i = s; i < wParams.length; i += slots) {
+
+                    // Wiener denominator and APO, in one pass
+                    wFilter.getDenominator(wParams[i], denoms[s]);
+                    for (int j = 0; j < den.length; j++) {
+                        fr[2 * j] = (num[2 * j] * den[j]) * apoDat[2 * j];
+                        fr[2 * j + 1] = (num[2 * j + 1] * den[j]) * apoDat[2 * j];
+                    }
+                    spectra[s].syncBuffer();
+
+                    images[i] = Vec2d.createReal(w2, h2);
+                    Transforms.ifft2dReal(spectra[s], images[i]);
+
+                    if (computeMetrics)
+                        metrics[i] = metrics(fr, images[i], dist, cutOff, simCutOff);
+
+                    if (imgClipScale == SimParam.CLIPSCALE.CLIP)
+                        SimUtils.clipAndScale(images[i], true, false);
+                    if (imgClipScale == SimParam.CLIPSCALE.BOTH)
+                        SimUtils.clipAndScale(images[i], true, true);
+                }
+            }
+        };
+
+        if (tRec != null) tRec.stop();
+        return new WienerSweep(wParams.clone(), images, metrics, slots);
+    }
+
+    // spectral quality metrics of one filtered spectrum 'fr' and its image
+    private static double[] metrics(final float[] fr, final Vec2d.Real img, final RadiusMap dist,
+                                    final double cutOff, final double simCutOff) {
+
+        final int w = img.vectorWidth(), h = img.vectorHeight();
+        double total = 0, high = 0, edge = 0, mid = 0;
+        int nEdge = 0, nMid = 0;
+
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++) {
+                final double r = dist.get(x, y);
+                final int i = 2 * (x + y * w);
+                final double pw = fr[i] * fr[i] + fr[i + 1] * fr[i + 1];
+                if (r > 0)
+                    total += pw;
+                if (r > cutOff)
+                    high += pw;
+                if (r > 0.8 * simCutOff && r <= simCutOff) {
+                    edge += pw;
+                    nEdge++;
+                }
+                if (r > 0.1 * cutOff && r <= 0.5 * cutOff) {
+                    mid += pw;
+                    nMid++;
+                }
+            }
+
+        double neg = 0, abs = 0;
+        for (float v : img.vectorData()) {
+            if (v < 0)
+                neg -= v;
+            abs += Math.abs(v);
+        }
+
+        double[] ret = new double[3];
+        ret[HIGH_FREQ_POWER] = (total > 0) ? (high / total) : (0);
+        ret[NOISE_RATIO] = (nEdge > 0 && mid > 0) ? ((edge / nEdge) / (mid / nMid)) : (0);
+        ret[NEGATIVE_FRACTION] = (abs > 0) ? (neg / abs) : (0);
+        return ret;
+    }
+
+
+    /**
+     * For testing: a 20-point sweep vs. one reconstruction per parameter,
+     * on simulated data
+     */
+    public static void main(String[] args) {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (512);
+        final int nrW = (args.length > 1) ? (Integer.parseInt(args[1])) : (20);
+
+        SimParam param = SimUtils.simulatedParam(size);
+
+        // simulated raw data, with some noise
+        Vec2d.Cplx[][] inFFT = SimUtils.simulateRaw(param, 42, 0.5);
+
+        double[] wParams = new double[nrW];
+        for (int i = 0; i < nrW; i++)
+            wParams[i] = 0.01 * Math.pow(1.25, i);
+
+        // warm up, then time one reconstruction
+        ReconstructionWorkspace ws = new ReconstructionWorkspace(param);
+        SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                SimParam.CLIPSCALE.NONE, null, null, null);
+        Tool.Timer tOne = Tool.getTimer(), tSweep = Tool.getTimer();
+
+        double maxErr = 0;
+        int nrOne = 0;
+        for (int i = 0; i < nrW; i += Math.max(1, nrW / 4)) {
+            nrOne++;
+            param.setWienerFilter(wParams[i]);
+            tOne.start();
+            Vec2d.Real ref = SimAlgorithm.runReconstruction(param, inFFT, ws, null, -1, false,
+                    SimParam.CLIPSCALE.NONE, null, null, null).duplicate();
+            tOne.hold();
+            WienerSweep single = WienerSweep.run(param, inFFT, new double[]{wParams[i]},
+                    SimParam.CLIPSCALE.NONE, false, null);
+            ref.axpy(-1, single.getImage(0));
+            maxErr = Math.max(maxErr, Math.sqrt(ref.norm2() / single.getImage(0).norm2()));
+        }
+
+        WienerSweep sweep = WienerSweep.run(param, inFFT, wParams, SimParam.CLIPSCALE.NONE, true, tSweep);
+
+        for (int i = 0; i < sweep.size(); i++) {
+            double[] m = sweep.getMetrics(i);
+            Tool.trace(String.format("w %7.4f: high freq. power %6.4f, noise ratio %8.3e, negative %6.4f",
+                    sweep.getWienerParam(i), m[HIGH_FREQ_POWER], m[NOISE_RATIO], m[NEGATIVE_FRACTION]));
+        }
+
+        // memory ceiling for one slot: same images, filtered one by one; too low: rejected
+        final int prevPar = SimpleMT.getParallelism();
+        SimpleMT.setParallelism(Math.max(4, prevPar));
+        WienerSweep wide = WienerSweep.run(param, inFFT, wParams, SimParam.CLIPSCALE.NONE, false, null);
+        WienerSweep capped = WienerSweep.run(param, inFFT, wParams, SimParam.CLIPSCALE.NONE, false,
+                sharedBytes(param, nrW) + bytesPerSlot(param), null);
+        SimpleMT.setParallelism(prevPar);
+        double capErr = 0;
+        for (int i = 0; i < nrW; i++) {
+            Vec2d.Real d = capped.getImage(i).duplicate();
+            d.axpy(-1, wide.getImage(i));
+            capErr = Math.max(capErr, Math.sqrt(d.norm2() / wide.getImage(i).norm2()));
+        }
+        boolean rejected = false;
+        try {
+            WienerSweep.run(param, inFFT, wParams, SimParam.CLIPSCALE.NONE, false,
+                    sharedBytes(param, nrW), null);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        boolean capOk = (capped.getConcurrent() == 1 && capErr == 0 && rejected);
+        Tool.trace(String.format("memory ceiling: %d vs. %d outputs in parallel, rel. difference %5.3e, " +
+                "too low ceiling rejected: %b", wide.getConcurrent(), capped.getConcurrent(), capErr, rejected));
+
+        boolean monotonic = sweep.getMetrics(0)[NOISE_RATIO] > sweep.getMetrics(nrW - 1)[NOISE_RATIO];
+        Tool.trace(String.format("%dx%d, %d Wiener parameters: sweep %s, single reconstruction %7.1f ms",
+                size, size, nrW, tSweep, tOne.msElapsed() / nrOne));
+        Tool.trace(String.format("max. rel. difference to single reconstructions %5.3e -> %s",
+                maxErr, (maxErr < 1e-5 && monotonic && capOk) ? ("OK") : ("FAIL")));
+        SimpleMT.shutdown();
+    }
+
+}
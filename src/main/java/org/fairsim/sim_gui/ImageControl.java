@@ -21,6 +21,8 @@ package org.fairsim.sim_gui;
 import org.fairsim.linalg.MTool;
 import org.fairsim.linalg.Transforms;
 import org.fairsim.linalg.Vec2d;
+import org.fairsim.sim_algorithm.ParameterTracker;
+import org.fairsim.sim_algorithm.ReconstructionWorkspace;
 import org.fairsim.sim_algorithm.SimAlgorithm;
 import org.fairsim.sim_algorithm.SimParam;
 import org.fairsim.sim_algorithm.SimUtils;
@@ -38,6 +40,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * GUI elements to set up OTF
@@ -78,6 +82,11 @@ public class ImageControl {
     final Tiles.LComboBox<String> videoAutoUpdateMode =
             new Tiles.LComboBox<String>("auto-update", updateModes);
 
+    // k-vector tracking of the auto-update, reset when the input changes
+    private final JCheckBox trackKVectorsBox = new JCheckBox("track k");
+    private final ParameterTracker autoUpdateTracker = new ParameterTracker();
+    private final JCheckBox reducedEstimationBox = new JCheckBox("fast est.");
+
     // prefactor correction spinners and auto selector
     Tiles.LNSpinner[] prefactorAngSpinner;
     Tiles.LNSpinner[][] prefactorPhaSpinner;
@@ -163,7 +172,15 @@ public class ImageControl {
         row2.add(maxTimePointsLabel);
         row2.add(Box.createRigidArea(new Dimension(5, 1)));
         row2.add(videoAutoUpdateMode);
+        row2.add(trackKVectorsBox);
+        row2.add(reducedEstimationBox);
         row2.add(Box.createHorizontalGlue());
+        trackKVectorsBox.setToolTipText(
+                "Parameter estimation starts from the last k-vectors (time series only)");
+        reducedEstimationBox.setToolTipText("<html>Parameter estimation at reduced resolution,"
+                + "<br />for the live preview of large (1024 pxl and up) images."
+                + "<br />Stored with the parameters, also used by all other estimations");
+        reducedEstimationBox.setSelected(simParam.useReducedEstimation());
 
         // add the video-select sliders
         JPanel row3 = new JPanel();
@@ -383,6 +400,7 @@ public class ImageControl {
         importImageButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
 
+                autoUpdateTracker.reset();
                 if (isVideoStack) {
                     // import as time-laspe stack
                     importImageDialog(imgBox.getSelectedItem(),
@@ -420,6 +438,7 @@ public class ImageControl {
         imgBox.addSelectListener(
                 new Tiles.SelectListener<ImageSelector.ImageInfo>() {
                     public void selected(ImageSelector.ImageInfo inf, int i) {
+                        autoUpdateTracker.reset();
                         updateIfVideoCanBeUsed();
                     }
                 });
@@ -427,10 +446,26 @@ public class ImageControl {
         // selected number of z-planes changed
         zSliceVideoSpinner.addNumberListener(new Tiles.NumberListener() {
             public void number(double d, Tiles.LNSpinner e) {
+                autoUpdateTracker.reset();
                 updateIfVideoCanBeUsed();
             }
         });
 
+        // switch reduced-resolution estimation on / off
+        reducedEstimationBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                simParam.setReducedEstimation(reducedEstimationBox.isSelected());
+                autoUpdateTracker.reset();
+            }
+        });
+
+        // switch k-vector tracking on / off, start from a full search
+        trackKVectorsBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                autoUpdateTracker.reset();
+            }
+        });
+
         // change the auto-update mode
         videoAutoUpdateMode.addSelectListener(new Tiles.SelectListener<String>() {
             public void selected(String e, int i) {
@@ -560,6 +595,7 @@ public class ImageControl {
 
         isVideoStack = onoff;
 
+        autoUpdateTracker.reset();
         sucessfulImport = false;
         runAutoUpdate(0);
 
@@ -631,6 +667,8 @@ public class ImageControl {
             simPreviewDisplay.addImage(Vec2d.createReal(simWidth, simHeight),
                     "SIM preview Image");
 
+            ReconstructionWorkspace ws = null;
+
             while (true) {
 
                 // stop the thread if the import was not successful
@@ -679,14 +717,16 @@ public class ImageControl {
                     runEstimatePhaseVariation(prefactorMethodBox.getSelectedIndex());
                 }
 
-                // update the parameter estimation
+                // update the parameter estimation, if selected starting
+                // from the last k-vectors
                 if (updateMode > 2) {
 
                     SimAlgorithm.estimateParameters(
                             simParam, theFFTImages,
                             fsGUI.parc.getFitBand(),
                             fsGUI.parc.getFitExclude(),
-                            null, 0, null);
+                            null, 0, null, false,
+                            (trackKVectorsBox.isSelected()) ? (autoUpdateTracker) : (null));
 
                 }
 
@@ -697,9 +737,12 @@ public class ImageControl {
 
                         Tool.trace("AUTO-UPDATE: updating wide-field view ");
 
+                        if (ws == null || !ws.fits(simParam))
+                            ws = new ReconstructionWorkspace(simParam);
+
                         Vec2d.Real simRecon = SimAlgorithm.runReconstruction(
-                                simParam, theFFTImages,
-                                null, 0, false, SimParam.CLIPSCALE.BOTH, null);
+                                simParam, theFFTImages, ws,
+                                null, 0, false, SimParam.CLIPSCALE.BOTH, null, null, null);
 
                         if (simPreviewDisplay != null) {
                             simPreviewDisplay.setImage(simRecon, 0, "SIM image");
@@ -960,6 +1003,10 @@ public class ImageControl {
         Vec2d.Real widefield = Vec2d.createReal(imgSize, imgSize);
         int imageCount = 0;
 
+        // images are transformed together, once all are imported
+        List<Vec2d.Real> toFFT = new ArrayList<Vec2d.Real>();
+        List<Vec2d.Cplx> fftOut = new ArrayList<Vec2d.Cplx>();
+
         for (int d = 0; d < simParam.nrDir(); d++) {
 
             theImages[d] = new Vec2d.Real[simParam.dir(d).nrPha()];
@@ -993,10 +1040,9 @@ public class ImageControl {
                     theImages[d][p] = curImg;
                 }
 
-
                 theFFTImages[d][p] = Vec2d.createCplx(theImages[d][p]);
-                theFFTImages[d][p].copy(theImages[d][p]);
-                Transforms.fft2d(theFFTImages[d][p], false);
+                toFFT.add(theImages[d][p]);
+                fftOut.add(theFFTImages[d][p]);
 
                 if (rawDataDisplay != null) {
 
@@ -1011,6 +1057,9 @@ public class ImageControl {
             }
         }
 
+        Transforms.fft2dRealBatch(toFFT.toArray(new Vec2d.Real[0]),
+                fftOut.toArray(new Vec2d.Cplx[0]));
+
         if (rawDataDisplay != null) {
             widefield.scal(1.f / simParam.getImgPerZ());
             rawDataDisplay.setImage(widefield, 0, "Image: proj. widefield");
@@ -1209,10 +1258,14 @@ public class ImageControl {
         JPanel p2 = new JPanel();
         final JCheckBox genWidefieldCB = new JCheckBox("generate widefield?");
         final JCheckBox genFilteredWidefieldCB = new JCheckBox("generate filtered widefield?");
+        final JCheckBox trackCB = new JCheckBox("track k-vectors between time points?");
+        trackCB.setSelected(trackKVectorsBox.isSelected());
+        trackCB.setEnabled(videoAutoUpdateMode.getSelectedIndex() > 2);
         p2.setLayout(new BoxLayout(p2, BoxLayout.PAGE_AXIS));
 
         p2.add(genWidefieldCB);
         p2.add(genFilteredWidefieldCB);
+        p2.add(trackCB);
 
         // dialog
         final JDialog imageDialog = new JDialog(baseframe,
@@ -1248,6 +1301,7 @@ public class ImageControl {
                         (int) stopSpinner.getVal());
 
                 brt.setWidefield(genWidefieldCB.isSelected(), genFilteredWidefieldCB.isSelected());
+                brt.setTracking(trackCB.isSelected());
 
                 ok.setEnabled(false);
                 ok.setText("running");
@@ -1291,6 +1345,7 @@ public class ImageControl {
 
         boolean compWidefield = false;
         boolean compFilteredWidefield = false;
+        boolean trackKVectors = false;
 
         final int updateMode;
 
@@ -1313,6 +1368,10 @@ public class ImageControl {
 
         }
 
+        void setTracking(boolean track) {
+            this.trackKVectors = track;
+        }
+
         @Override
         public void run() {
 
@@ -1331,6 +1390,13 @@ public class ImageControl {
             ImageDisplay filteredWidefieldOutputDisplay = (compFilteredWidefield) ? (
                     idpFactory.create(simWidth, simHeight, "filtered widefield batch results")) : (null);
 
+            // buffers reused for all time points
+            ReconstructionWorkspace ws = null;
+            Vec2d.Real widefield = (compWidefield) ? (Vec2d.createReal(simWidth, simHeight)) : (null);
+            Vec2d.Real filteredWidefield = (compFilteredWidefield) ? (Vec2d.createReal(simWidth, simHeight)) : (null);
+
+            // k-vectors drift little between time points, each batch starts with a full search
+            ParameterTracker tracker = (trackKVectors) ? (new ParameterTracker()) : (null);
 
             for (int timePos = start; timePos < stop; timePos++) {
 
@@ -1354,14 +1420,14 @@ public class ImageControl {
                             simParam, theFFTImages,
                             fsGUI.parc.getFitBand(),
                             fsGUI.parc.getFitExclude(),
-                            null, 0, null);
+                            null, 0, null, false, tracker);
                 }
 
-                Vec2d.Real widefield = (compWidefield) ? (Vec2d.createReal(simWidth, simHeight)) : (null);
-                Vec2d.Real filteredWidefield = (compFilteredWidefield) ? (Vec2d.createReal(simWidth, simHeight)) : (null);
+                if (ws == null || !ws.fits(simParam))
+                    ws = new ReconstructionWorkspace(simParam);
 
                 Vec2d.Real simRecon = SimAlgorithm.runReconstruction(
-                        simParam, theFFTImages, null, 0, false,
+                        simParam, theFFTImages, ws, null, 0, false,
                         simParam.getClipScale(), widefield, filteredWidefield, null);
 
                 simOutputDisplay.addImage(simRecon, "timeslice t:" + timePos);
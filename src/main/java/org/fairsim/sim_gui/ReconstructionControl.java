@@ -18,6 +18,9 @@ along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
 
 package org.fairsim.sim_gui;
 
+import org.fairsim.linalg.Vec2d;
+import org.fairsim.sim_algorithm.AssembledSpectrum;
+import org.fairsim.sim_algorithm.ReconstructionWorkspace;
 import org.fairsim.sim_algorithm.SimAlgorithm;
 import org.fairsim.sim_algorithm.SimParam;
 import org.fairsim.utils.ImageDisplay;
@@ -51,6 +54,15 @@ public class ReconstructionControl {
 
     int verbosity = 0;
 
+    // filter preview: the assembled spectrum is kept, so changing the
+    // Wiener / APO / RL settings only reruns the filter step
+    private AssembledSpectrum spectrum = null;
+    private Vec2d.Cplx[][] spectrumImages = null;
+    private ReconstructionWorkspace previewWs = null;
+    private ImageDisplay previewDisplay = null;
+    private double[] pendingFilter = null;   // next settings to preview, EDT only
+    private boolean previewRunning = false;  // EDT only
+
     public JPanel getPanel() {
         return ourContent;
     }
@@ -184,6 +196,26 @@ public class ReconstructionControl {
         p1.add(rlInterationCount);
         p1.add(Box.createRigidArea(new Dimension(0, 5)));
 
+        // preview of filter changes
+        final JCheckBox preview = new JCheckBox("Preview filter changes", false);
+        preview.setToolTipText("<html>Re-filter the reconstruction on each change<br />"
+                + "of the Wiener, APO or RL setting (the bands are<br />"
+                + "only assembled once)");
+        p1.add(preview);
+        p1.add(Box.createRigidArea(new Dimension(0, 5)));
+
+        Tiles.NumberListener previewListener = new Tiles.NumberListener() {
+            public void number(double n, Tiles.LNSpinner e) {
+                if (preview.isSelected())
+                    previewFilter(filterTypeBox.getSelectedItem(), wienerParam.getVal(),
+                            apoCutOff.getVal(), apoBend.getVal(), (int) rlInterationCount.getVal());
+            }
+        };
+        wienerParam.addNumberListener(previewListener);
+        apoCutOff.addNumberListener(previewListener);
+        apoBend.addNumberListener(previewListener);
+        rlInterationCount.addNumberListener(previewListener);
+
 
         // ok and cancel buttons
         JButton ok = new JButton("Set");
@@ -225,6 +257,78 @@ public class ReconstructionControl {
     }
 
 
+    /**
+     * Show the reconstruction filtered with the given settings in a preview
+     * window. The bands are assembled on the first call (and again if images
+     * or parameters changed), later calls only rerun the filter step.
+     * Changes arriving while a preview is computed are merged into one update.
+     */
+    void previewFilter(SimParam.FilterStyle style, double wiener, double apoCut,
+                       double apoBend, int rlIterations) {
+
+        if (simParam.otf() == null || imgc.theFFTImages == null || !paramAvailable || running)
+            return;
+
+        pendingFilter = new double[]{style.ordinal(), wiener, apoCut, apoBend, rlIterations};
+        if (!previewRunning)
+            runPreview();
+    }
+
+    // compute the preview for 'pendingFilter' in the background
+    private void runPreview() {
+
+        final double[] f = pendingFilter;
+        pendingFilter = null;
+        previewRunning = true;
+
+        final Vec2d.Cplx[][] images = imgc.theFFTImages;
+        final SimParam fp = simParam.duplicate();
+        fp.setFilterStyle(SimParam.FilterStyle.values()[(int) f[0]]);
+        fp.setWienerFilter(f[1]);
+        fp.setApoCutoff(f[2]);
+        fp.setApoBend(f[3]);
+        fp.setRLiterations((int) f[4]);
+
+        (new SwingWorker<Vec2d.Real, Object>() {
+
+            final Tool.Timer t1 = Tool.getTimer();
+
+            @Override
+            public Vec2d.Real doInBackground() {
+                if (spectrum == null || spectrumImages != images || !spectrum.fits(fp)) {
+                    if (previewWs == null || !previewWs.fits(fp))
+                        previewWs = new ReconstructionWorkspace(fp);
+                    spectrum = SimAlgorithm.assembleSpectrum(fp, images, previewWs, false, null);
+                    spectrumImages = images;
+                }
+                return SimAlgorithm.filterSpectrum(spectrum, fp, previewWs, fp.getClipScale(), t1);
+            }
+
+            @Override
+            protected void done() {
+                previewRunning = false;
+                try {
+                    Vec2d.Real img = get();
+                    String label = String.format("Wiener %5.3f, APO %3.1f / %3.1f", f[1], f[2], f[3]);
+                    if (previewDisplay == null) {
+                        previewDisplay = idpFactory.create(
+                                img.vectorWidth(), img.vectorHeight(), "Filter preview");
+                        previewDisplay.addImage(img, label);
+                    } else {
+                        previewDisplay.setImage(img, 0, label);
+                    }
+                    previewDisplay.display();
+                    Tool.trace("Filter preview took " + t1);
+                } catch (Exception e) {
+                    Tool.trace("Filter preview failed: " + e);
+                }
+                if (pendingFilter != null)
+                    runPreview();
+            }
+        }).execute();
+    }
+
+
     /**
      * just here to not clutter the ActionPerformed event with so much code
      */
@@ -0,0 +1,494 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide budget of compute threads. The parallel loops of
+ * {@link SimpleMT} and the worker threads of the bundled JTransforms
+ * ({@link org.fairsim.extern.jtransforms.ConcurrencyUtils}) run on the
+ * same work-stealing pools, so together they never use more threads
+ * than the budget.
+ * <p>
+ * By default, all work runs on one shared pool. For running several
+ * reconstructions side by side, {@link #acquire} leases a
+ * {@link Partition} of the budget with its own threads: work started
+ * through {@link Partition#run}, including all nested loops and FFTs,
+ * stays on those threads. Partitions together never exceed the budget.
+ * {@link PartFor} runs a set of concurrent jobs that way, as used by
+ * the batch and tiled reconstructions.
+ * <p>
+ * The budget defaults to the system property 'fairsim.threads', or the
+ * number of processors. When running several JVMs on one node, set the
+ * property so their budgets add up to the number of cores.
+ */
+public final class ComputeResources {
+
+    private ComputeResources() {
+    }
+
+    private static int budget = 0;
+    private static int leased = 0;
+    private static Pool shared = null;
+    private static final List<Pool> partitions = new ArrayList<Pool>();
+
+    private static final ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+
+    static {
+        setThreadBudget(defaultBudget());
+    }
+
+    /**
+     * A pool of compute threads, with CPU time accounting
+     */
+    static final class Pool {
+        final String name;
+        final ForkJoinPool fj;
+        final Set<Worker> alive =
+                Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+        final AtomicLong cpuOfFinished = new AtomicLong(0);
+        long lastWall = System.nanoTime(), lastCpu = 0;
+
+        Pool(String name, int threads) {
+            this.name = name;
+            this.fj = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+                    return new Worker(p, Pool.this);
+                }
+            }, null, false);
+        }
+
+        // CPU time used by all (current and former) workers, in ns
+        long cpuNanos() {
+            long sum = cpuOfFinished.get();
+            for (Worker w : alive) {
+                long t = tmx.getThreadCpuTime(w.getId());
+                if (t > 0)
+                    sum += t;
+            }
+            return sum;
+        }
+
+        // utilisation since the last call: CPU time / (wall time * threads)
+        synchronized double utilisation() {
+            long wall = System.nanoTime(), cpu = cpuNanos();
+            double u = (cpu - lastCpu) / ((double) (wall - lastWall) * fj.getParallelism());
+            lastWall = wall;
+            lastCpu = cpu;
+            return u;
+        }
+
+        String state() {
+            return String.format("%s: %d threads (%d alive, %d active), %d queued, %d steals, util. %5.1f%%",
+                    name, fj.getParallelism(), fj.getPoolSize(), fj.getActiveThreadCount(),
+                    fj.getQueuedTaskCount() + fj.getQueuedSubmissionCount(), fj.getStealCount(),
+                    (tmx.isThreadCpuTimeSupported()) ? (100 * utilisation()) : (Double.NaN));
+        }
+    }
+
+    /**
+     * Worker thread, knows the pool it belongs to
+     */
+    static final class Worker extends ForkJoinWorkerThread {
+        final Pool owner;
+
+        Worker(ForkJoinPool p, Pool owner) {
+            super(p);
+            this.owner = owner;
+            setName(owner.name + "-" + getPoolIndex());
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            owner.alive.add(this);
+        }
+
+        @Override
+        protected void onTermination(Throwable ex) {
+            long t = tmx.getCurrentThreadCpuTime();
+            if (t > 0)
+                owner.cpuOfFinished.addAndGet(t);
+            owner.alive.remove(this);
+            super.onTermination(ex);
+        }
+    }
+
+    /**
+     * A share of the thread budget, with its own threads
+     */
+    public static final class Partition {
+        private final Pool pool;
+        private boolean closed = false;
+
+        private Partition(Pool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Run 'job' on the threads of this partition and wait for it.
+         * Exceptions thrown by 'job' are passed on.
+         */
+        public void run(Runnable job) {
+            if (closed)
+                throw new IllegalStateException("Partition already released");
+            pool.fj.invoke(ForkJoinTask.adapt(job));
+        }
+
+        /**
+         * Number of threads of this partition
+         */
+        public int getThreads() {
+            return pool.fj.getParallelism();
+        }
+
+        /**
+         * Return the threads to the budget
+         */
+        public void release() {
+            synchronized (ComputeResources.class) {
+                if (closed)
+                    return;
+                closed = true;
+                pool.fj.shutdown();
+                partitions.remove(pool);
+                leased -= pool.fj.getParallelism();
+                ComputeResources.class.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Runs concurrent jobs, each on its own partition of the budget: like
+     * {@link SimpleMT.StrPFor}, but the loops and FFTs started by at(i) stay
+     * on the threads of the job's partition instead of competing on the
+     * shared pool. With more jobs than threads in the budget, jobs are
+     * distributed round-robin over one partition per thread. Started from
+     * a compute thread (nested), the jobs run on the caller's pool instead.
+     */
+    public static abstract class PartFor {
+        /**
+         * Like for(int i=s; i<e; i++), each i on a partition
+         */
+        protected PartFor(int s, int e) {
+            runPartitioned(this, s, e);
+        }
+
+        /**
+         * Called for every index in loop
+         */
+        protected abstract void at(int pos);
+    }
+
+    private static void runPartitioned(final PartFor loop, final int s, final int e) {
+        if (e - s <= 1 || Thread.currentThread() instanceof Worker) {
+            new SimpleMT.StrPFor(s, e) {
+                public void at(int i) {
+                    loop.at(i);
+                }
+            };
+            return;
+        }
+
+        // split the budget: equal shares, the remainder to the first partitions
+        final int nrPart, b;
+        synchronized (ComputeResources.class) {
+            b = budget;
+            nrPart = Math.min(e - s, b);
+        }
+        final Partition[] part = new Partition[nrPart];
+        try {
+            for (int j = 0; j < nrPart; j++)
+                part[j] = acquire(b / nrPart + ((j < b % nrPart) ? (1) : (0)));
+        } catch (InterruptedException ex) {
+            for (Partition p : part)
+                if (p != null)
+                    p.release();
+            throw new RuntimeException("Interrupted while waiting for compute threads");
+        }
+
+        final RuntimeException[] err = new RuntimeException[1];
+        Thread[] th = new Thread[nrPart];
+        for (int j = 0; j < nrPart; j++) {
+            final int jj = j;
+            th[j] = new Thread(String.format("fairsim-job%d", j)) {
+                public void run() {
+                    try {
+                        part[jj].run(new Runnable() {
+                            public void run() {
+                                for (int i = s + jj; i < e; i += nrPart)
+                                    loop.at(i);
+                            }
+                        });
+                    } catch (RuntimeException ex) {
+                        synchronized (err) {
+                            if (err[0] == null)
+                                err[0] = ex;
+                        }
+                    } finally {
+                        part[jj].release();
+                    }
+                }
+            };
+            th[j].start();
+        }
+        for (Thread t : th) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("Interrupted while waiting for partitioned jobs");
+            }
+        }
+        if (err[0] != null)
+            throw err[0];
+    }
+
+    /**
+     * Budget used if not set otherwise: the system property
+     * 'fairsim.threads', or the number of processors
+     */
+    public static int defaultBudget() {
+        Integer n = Integer.getInteger("fairsim.threads");
+        return (n != null && n > 0) ? (n) : (Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Set the total number of compute threads. Work already running
+     * finishes on the old threads.
+     */
+    public static synchronized void setThreadBudget(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("Thread budget has to be at least 1");
+        if (n < leased)
+            throw new IllegalStateException(String.format(
+                    "%d threads are leased to partitions, budget can not be set to %d", leased, n));
+        budget = n;
+        Pool old = shared;
+        shared = new Pool("fairsim", n);
+        if (old != null)
+            old.fj.shutdown();
+        Tool.trace("ComputeResources: thread budget " + n);
+    }
+
+    /**
+     * Get the total number of compute threads
+     */
+    public static synchronized int getThreadBudget() {
+        return budget;
+    }
+
+    /**
+     * Lease 'threads' of the budget as a partition, waiting until
+     * enough threads have been released by other partitions.
+     */
+    public static Partition acquire(int threads) throws InterruptedException {
+        synchronized (ComputeResources.class) {
+            if (threads < 1 || threads > budget)
+                throw new IllegalArgumentException(String.format(
+                        "Partition of %d threads not possible with a budget of %d", threads, budget));
+            while (leased + threads > budget)
+                ComputeResources.class.wait();
+            leased += threads;
+            Pool p = new Pool(String.format("fairsim-part%d", partitions.size()), threads);
+            partitions.add(p);
+            return new Partition(p);
+        }
+    }
+
+    /**
+     * Number of threads currently leased to partitions
+     */
+    public static synchronized int getLeasedThreads() {
+        return leased;
+    }
+
+    /**
+     * The pool to use from the calling thread: for compute threads
+     * their own pool, the shared pool otherwise
+     */
+    static ForkJoinPool currentPool() {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker)
+            return ((Worker) t).getPool();
+        return sharedPool();
+    }
+
+    private static synchronized ForkJoinPool sharedPool() {
+        return shared.fj;
+    }
+
+    /**
+     * Number of threads of the pool the calling thread uses
+     */
+    public static int currentParallelism() {
+        return currentPool().getParallelism();
+    }
+
+    /**
+     * Run a task on the calling thread's pool (see {@link #currentPool}).
+     * Used by the bundled JTransforms instead of its own thread pool.
+     */
+    public static Future<?> submit(Runnable task) {
+        Thread t = Thread.currentThread();
+        if (t instanceof Worker)
+            return ForkJoinTask.adapt(task).fork();
+        return sharedPool().submit(task);
+    }
+
+    /**
+     * Stop the shared pool. Loops started afterwards run serially.
+     */
+    public static void shutdown() {
+        sharedPool().shutdown();
+    }
+
+    /**
+     * Returns a summary of budget and pools. Utilisation is the CPU
+     * time used by the pool's threads since the last call, relative to
+     * what its threads could have used.
+     */
+    public static synchronized String printState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Thread budget %d, %d leased to partitions\n", budget, leased));
+        sb.append(" ").append(shared.state()).append("\n");
+        for (Pool p : partitions)
+            sb.append(" ").append(p.state()).append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * For testing: loops and FFTs in the shared pool and in two partitions,
+     * checks that no thread outside the pools does the work
+     */
+    public static void main(String[] args) throws Exception {
+
+        // two partitions are run side by side, so at least 2 threads
+        setThreadBudget(Math.max(2, (args.length > 0) ? (Integer.parseInt(args[0])) : (getThreadBudget())));
+        final int n = getThreadBudget();
+        final int size = 512;
+
+        final Set<Thread> computeThreads =
+                Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+        // workload: FFTs on each row block, loops nested around them
+        final Runnable work = new Runnable() {
+            public void run() {
+                new SimpleMT.StrPFor(0, 4) {
+                    public void at(int i) {
+                        org.fairsim.linalg.Vec2d.Cplx v =
+                                org.fairsim.linalg.Vec2d.createCplx(size, size);
+                        for (int k = 0; k < 5; k++) {
+                            v.fft2d(false);
+                            v.fft2d(true);
+                        }
+                        new SimpleMT.PFor(0, 1000) {
+                            public void at(int j) {
+                                computeThreads.add(Thread.currentThread());
+                            }
+                        };
+                    }
+                };
+            }
+        };
+
+        Tool.Timer t1 = Tool.getTimer();
+        t1.start();
+        work.run();
+        t1.stop();
+        Tool.trace("shared pool: " + t1);
+        Tool.trace(printState());
+
+        // two partitions, each half of the budget, running concurrently
+        final Partition[] part = {acquire(Math.max(1, n / 2)), acquire(Math.max(1, n - n / 2))};
+        Thread[] th = new Thread[2];
+        t1 = Tool.getTimer();
+        t1.start();
+        for (int i = 0; i < 2; i++) {
+            final int j = i;
+            th[i] = new Thread() {
+                public void run() {
+                    part[j].run(work);
+                }
+            };
+            th[i].start();
+        }
+        for (Thread t : th)
+            t.join();
+        t1.stop();
+        Tool.trace("two partitions: " + t1);
+        Tool.trace(printState());
+        for (Partition p : part)
+            p.release();
+
+        // concurrent jobs, each on its own partition: every job's loops
+        // stay on one pool, and no threads stay leased afterwards
+        final int jobs = Math.max(2, Math.min(4, n));
+        final List<Set<ForkJoinPool>> jobPools = new ArrayList<Set<ForkJoinPool>>();
+        for (int i = 0; i < jobs; i++)
+            jobPools.add(Collections.newSetFromMap(new ConcurrentHashMap<ForkJoinPool, Boolean>()));
+        new PartFor(0, jobs) {
+            public void at(final int i) {
+                new SimpleMT.PFor(0, 1000) {
+                    public void at(int j) {
+                        Thread t = Thread.currentThread();
+                        if (t instanceof Worker)
+                            jobPools.get(i).add(((Worker) t).getPool());
+                        computeThreads.add(t);
+                    }
+                };
+            }
+        };
+        Set<ForkJoinPool> all = new java.util.HashSet<ForkJoinPool>();
+        boolean onePoolEach = true;
+        for (Set<ForkJoinPool> jp : jobPools) {
+            onePoolEach &= (jp.size() == 1);
+            all.addAll(jp);
+        }
+        Tool.trace(String.format("PartFor: %d jobs on %d pools, one pool per job: %b, leased after: %d %s",
+                jobs, all.size(), onePoolEach, getLeasedThreads(),
+                (onePoolEach && all.size() == Math.min(jobs, n) && getLeasedThreads() == 0) ? ("OK") : ("FAIL")));
+
+        // all FFT and loop work has to happen on pool threads
+        int foreign = 0;
+        for (Thread t : computeThreads)
+            if (!(t instanceof Worker) && t != Thread.currentThread())
+                foreign++;
+        int jtThreads = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().startsWith("pool-"))
+                jtThreads++;
+        Tool.trace(String.format("Threads outside the pools: %d loop threads, %d executor threads %s",
+                foreign, jtThreads, (foreign == 0 && jtThreads == 0) ? ("OK") : ("FAIL")));
+
+        shutdown();
+    }
+
+}
@@ -21,6 +21,8 @@ package org.fairsim.utils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -47,33 +49,44 @@ import java.util.concurrent.*;
  * };
  *
  * </code>
+ * <p>
+ * Loops run on the work-stealing pools of {@link ComputeResources}.
+ * Loops may be started from any number of threads at the same time,
+ * and loops nested inside a loop run in parallel as well, on the
+ * same pool. Ranges are split adaptively: only while they are large
+ * enough and other workers are likely idle. An exception thrown in 'at' is passed on
+ * to the thread that started the loop.
  */
 public final class SimpleMT {
 
-    private static final int nrThreads = Runtime.getRuntime().availableProcessors();
-
-    static {
-        Tool.trace("SimpleMT: Init to " + nrThreads + " threads ");
-    }
-
-    private static final ExecutorService ex =
-            Executors.newFixedThreadPool(nrThreads);
+    static private volatile boolean doParallel = true;
 
-    static private boolean doParallel = true;
-    static private boolean parallelInProgress = false;
+    // ranges are not split below 1/GRAIN_SPLIT of their share per thread
+    private static final int GRAIN_SPLIT = 8;
+    // stop splitting if this many tasks are already queued
+    private static final int MAX_SURPLUS = 3;
 
+    /**
+     * Set the number of threads used for parallel loops. This sets
+     * the process-wide budget, see {@link ComputeResources#setThreadBudget}.
+     */
+    public static void setParallelism(int n) {
+        ComputeResources.setThreadBudget(n);
+    }
 
-    /*
-    public interface SubLoop {
-	public void pfor(int s, int e);
-
-    } */
+    /**
+     * Get the number of threads available to parallel loops
+     * started from the calling thread
+     */
+    public static int getParallelism() {
+        return ComputeResources.currentParallelism();
+    }
 
     /**
      * Helpfull class to run parallel loops
      */
     public static abstract class PFor {
-        private final int start, end, inc;
+        private final int start, end;
 
         /**
          * Like for(int i=s; i<e; i++)
@@ -81,7 +94,6 @@ public final class SimpleMT {
         protected PFor(int s, int e) {
             start = s;
             end = e;
-            inc = 1;
             SimpleMT.execute(this);
         }
 
@@ -92,7 +104,9 @@ public final class SimpleMT {
     }
 
     /**
-     * Helpfull class to run parallel loops
+     * Helpfull class to run parallel loops. Indices are distributed
+     * round-robin over the threads, so with at most as many indices
+     * as threads, every index runs concurrently.
      */
     public static abstract class StrPFor {
         private final int start, end;
@@ -114,111 +128,151 @@ public final class SimpleMT {
 
     // -----------------------------------------------------
 
+    /**
+     * Stop the thread pool. Loops started afterwards run serially.
+     */
     public static void shutdown() {
-        ex.shutdown();
+        ComputeResources.shutdown();
     }
 
     /**
      * Execute a parallel loop, called by the constructor
      */
     private static void execute(final PFor loop) {
-        if (doParallel && (!parallelInProgress)) {
-            // only run the outermost loop in parallel
-            parallelInProgress = true;
-
-            // split the loop into sub-loop
-            final int[][] sp = split(nrThreads, loop.start, loop.end);
-            List<Calls> cb = new ArrayList<Calls>(nrThreads);
-            for (int i = 0; i < nrThreads; i++) {
-                final int j = i;
-                cb.add(new Calls() {
-                    final int s = sp[j][0], e = sp[j][1];
-
-                    public Object call() {
-                        for (int i = s; i < e; i += loop.inc)
-                            loop.at(i);
-                        return null;
-                    }
-                });
-            }
-            execute(cb);
-            parallelInProgress = false;
-
-        } else {
-            // run in serial if already in parallel loop, or parallel is turned off
-            for (int i = loop.start; i < loop.end; i += loop.inc)
+        final ForkJoinPool p = ComputeResources.currentPool();
+        final int n = loop.end - loop.start;
+        if (!doParallel || n < 2 || p.isShutdown()) {
+            for (int i = loop.start; i < loop.end; i++)
                 loop.at(i);
+            return;
         }
+        int grain = Math.max(1, n / (p.getParallelism() * GRAIN_SPLIT));
+        run(p, new RangeTask(loop, loop.start, loop.end, grain));
     }
 
     /**
      * Execute a parallel loop, called by the constructor
      */
     private static void execute(final StrPFor loop) {
-        if (doParallel && (!parallelInProgress)) {
-            // only run the outermost loop in parallel
-            parallelInProgress = true;
-
-            // split the loop into sub-loop
-            List<Calls> cb = new ArrayList<Calls>(nrThreads);
-            final int nr = nrThreads;
-
-            for (int i = 0; i < nr; i++) {
-                final int j = i;
-                cb.add(new Calls() {
-                    public Object call() {
-                        for (int i = loop.start + j; i < loop.end; i += nr)
-                            loop.at(i);
-                        return null;
-                    }
-                });
-            }
-            execute(cb);
-            parallelInProgress = false;
-
-        } else {
-            // run in serial if already in parallel loop, or parallel is turned off
+        final ForkJoinPool p = ComputeResources.currentPool();
+        final int n = loop.end - loop.start;
+        if (!doParallel || n < 2 || p.isShutdown()) {
             for (int i = loop.start; i < loop.end; i++)
                 loop.at(i);
+            return;
         }
+        run(p, new StrideTask(loop, Math.min(n, p.getParallelism())));
     }
 
+    // run in the current pool if called from one of its workers (nested loop),
+    // otherwise submit to the pool and wait
+    private static void run(ForkJoinPool p, ForkJoinTask<?> task) {
+        if (ForkJoinTask.getPool() == p)
+            task.invoke();
+        else
+            p.invoke(task);
+    }
 
     /**
-     * Abbreviation
+     * Splits off halves of the range while they are larger than the grain
+     * and there are idle workers to steal them, runs the rest itself
      */
-    private interface Calls extends Callable<Object> {
-    }
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final PFor loop;
+        final int lo, hi, grain;
+
+        RangeTask(PFor loop, int lo, int hi, int grain) {
+            this.loop = loop;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
 
-	/**
-     * execute and wait for all callables
-     */
-    static void execute(List<Calls> jobs) {
-        try {
-            List<Future<Object>> fut = ex.invokeAll(jobs);
-            for (Future<Object> t : fut)
-                t.get();
-        } catch (InterruptedException e) {
-            System.err.println("ERR: " + e);
-        } catch (ExecutionException e) {
-            System.err.println("ERR: " + e);
+        @Override
+        protected void compute() {
+            int h = hi;
+            List<RangeTask> forked = null;
+            while (h - lo > grain && getSurplusQueuedTaskCount() <= MAX_SURPLUS) {
+                int mid = (lo + h) >>> 1;
+                RangeTask t = new RangeTask(loop, mid, h, grain);
+                t.fork();
+                if (forked == null)
+                    forked = new ArrayList<RangeTask>();
+                forked.add(t);
+                h = mid;
+            }
+
+            RuntimeException err = null;
+            try {
+                for (int i = lo; i < h; i++)
+                    loop.at(i);
+            } catch (RuntimeException e) {
+                err = e;
+            }
+            err = joinAll(forked, err);
+            if (err != null)
+                throw err;
         }
     }
 
-
     /**
-     * split a range into n parts
+     * Runs every nr-th index of a StrPFor, one task per stride
      */
-    static int[][] split(int pr, int start, int end) {
-        int[][] sp = new int[pr][2];
-        int inc = (end - start) / pr;
+    private static final class StrideTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final StrPFor loop;
+        final int nr;
+
+        StrideTask(StrPFor loop, int nr) {
+            this.loop = loop;
+            this.nr = nr;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> forked = new ArrayList<RecursiveAction>(nr);
+            for (int j = 1; j < nr; j++) {
+                final int s = loop.start + j;
+                RecursiveAction t = new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    protected void compute() {
+                        for (int i = s; i < loop.end; i += nr)
+                            loop.at(i);
+                    }
+                };
+                t.fork();
+                forked.add(t);
+            }
+
+            RuntimeException err = null;
+            try {
+                for (int i = loop.start; i < loop.end; i += nr)
+                    loop.at(i);
+            } catch (RuntimeException e) {
+                err = e;
+            }
+            err = joinAll(forked, err);
+            if (err != null)
+                throw err;
+        }
+    }
 
-        for (int i = 0; i < pr; i++) {
-            sp[i][0] = (inc * (i + 0)) + start;
-            sp[i][1] = (inc * (i + 1)) + start;
+    // join all forked tasks (latest first), return the first exception seen
+    private static RuntimeException joinAll(List<? extends ForkJoinTask<?>> forked,
+                                            RuntimeException err) {
+        if (forked == null)
+            return err;
+        for (int k = forked.size() - 1; k >= 0; k--) {
+            try {
+                forked.get(k).join();
+            } catch (RuntimeException e) {
+                if (err == null)
+                    err = e;
+            }
         }
-        sp[pr - 1][1] = end;
-        return sp;
+        return err;
     }
 
     /**
@@ -233,13 +287,10 @@ public final class SimpleMT {
 
 
     /**
-     * For testing
+     * For testing: timing, stress test with concurrent callers and
+     * nested loops, exception propagation
      */
-    public static void main(String[] args) {
-
-        int[][] s = split(4, 2, 20);
-        for (int i = 0; i < 4; i++)
-            System.out.println("->" + s[i][0] + " " + s[i][1]);
+    public static void main(String[] args) throws Exception {
 
         Tool.Timer t1 = Tool.getTimer();
         Tool.Timer t2 = Tool.getTimer();
@@ -285,6 +336,71 @@ public final class SimpleMT {
             Tool.trace("---");
 
         }
+
+        // stress test: many callers at once, each with nested loops
+        final int callers = (args.length > 0) ? (Integer.parseInt(args[0])) : (64);
+        final int rounds = (args.length > 1) ? (Integer.parseInt(args[1])) : (100);
+        final int threads = (args.length > 2) ? (Integer.parseInt(args[2])) : (8);
+        setParallelism(threads);
+        final AtomicInteger wrong = new AtomicInteger(0);
+        Thread[] th = new Thread[callers];
+        Tool.Timer t4 = Tool.getTimer();
+        t4.start();
+        for (int c = 0; c < callers; c++) {
+            final int seed = c;
+            th[c] = new Thread() {
+                public void run() {
+                    for (int r = 0; r < rounds; r++) {
+                        final int outer = 4 + (seed + r) % 13, inner = 100 + 37 * seed;
+                        final AtomicLong sum = new AtomicLong(0);
+                        new StrPFor(0, outer) {
+                            public void at(final int i) {
+                                new PFor(0, inner) {
+                                    public void at(int k) {
+                                        sum.addAndGet(i * inner + k);
+                                    }
+                                };
+                            }
+                        };
+                        long n = (long) outer * inner;
+                        if (sum.get() != n * (n - 1) / 2)
+                            wrong.incrementAndGet();
+                    }
+                }
+            };
+            th[c].start();
+        }
+        for (Thread t : th)
+            t.join();
+        t4.stop();
+        Tool.trace(String.format("Stress test: %d callers x %d rounds of nested loops on %d threads, %d wrong, took %s",
+                callers, rounds, threads, wrong.get(), t4));
+
+        // exceptions reach the caller, also from nested loops
+        int caught = 0;
+        for (int depth = 0; depth < 2; depth++) {
+            final int d = depth;
+            try {
+                new PFor(0, 1000) {
+                    public void at(int i) {
+                        if (d == 0 && i == 777)
+                            throw new IllegalStateException("test " + i);
+                        if (d == 1)
+                            new PFor(0, 100) {
+                                public void at(int k) {
+                                    if (k == 55)
+                                        throw new IllegalStateException("nested test");
+                                }
+                            };
+                    }
+                };
+            } catch (IllegalStateException e) {
+                caught++;
+            }
+        }
+        Tool.trace("Exception propagation: " + ((caught == 2) ? ("OK") : ("FAIL")));
+        Tool.trace("Stress test: " + ((wrong.get() == 0) ? ("OK") : ("FAIL")));
+
         // shutdown the executer
         SimpleMT.shutdown();
 
@@ -0,0 +1,266 @@
+/*
+This file is part of Free Analysis and Interactive Reconstruction
+for Structured Illumination Microscopy (fairSIM).
+
+fairSIM is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 2 of the License, or
+(at your option) any later version.
+
+fairSIM is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fairSIM.  If not, see <http://www.gnu.org/licenses/>
+*/
+
+package org.fairsim.utils;
+
+import org.fairsim.linalg.Vec2d;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a 32-bit float (hyper-)stack to an uncompressed TIFF file, one
+ * slice at a time and in any order. All sizes are known up front, so the
+ * header and all IFDs are written on creation and every slice goes straight
+ * to its position in the file. Only one slice is held in memory.
+ * The file carries an ImageJ description (slices, frames, unit), so ImageJ
+ * opens it as hyperstack. Files larger than 4 GB only get the first IFD,
+ * which ImageJ reads by the image count in its description.
+ */
+public class TiffStackWriter implements AutoCloseable {
+
+    private static final int HEADER = 8;
+    private static final int ENTRY = 12;
+
+    private final int w, h, nZ, nT;
+    private final long sliceBytes, dataOffset;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Create the file (overwriting an existing one) and write its header.
+     *
+     * @param fname          File name
+     * @param w              Width of the slices
+     * @param h              Height of the slices
+     * @param nZ             Number of z-slices per time point
+     * @param nT             Number of time points
+     * @param micronsPerPxl  Pixel size, in microns
+     */
+    public TiffStackWriter(String fname, int w, int h, int nZ, int nT, double micronsPerPxl)
+            throws IOException {
+        if (w < 1 || h < 1 || nZ < 1 || nT < 1)
+            throw new IllegalArgumentException("Stack dimensions must be positive");
+        this.w = w;
+        this.h = h;
+        this.nZ = nZ;
+        this.nT = nT;
+        this.sliceBytes = 4L * w * h;
+
+        final int n = nZ * nT;
+        final byte[] desc = description(n, nZ, nT);
+
+        // layout: header, IFDs, description, resolution, image data
+        final int firstIfd = ifdBytes(true);
+        final int nIfd = (HEADER + firstIfd + (long) (n - 1) * ifdBytes(false)
+                + desc.length + 8 + n * sliceBytes > 0xffffffffL) ? (1) : (n);
+        final long descOffset = HEADER + firstIfd + (long) (nIfd - 1) * ifdBytes(false);
+        final long resOffset = descOffset + desc.length;
+        this.dataOffset = resOffset + 8;
+        if (dataOffset > 0xffffffffL)
+            throw new IllegalArgumentException("Too many slices for a TIFF file");
+
+        ByteBuffer hdr = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.BIG_ENDIAN);
+        hdr.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(HEADER);
+        for (int i = 0; i < nIfd; i++) {
+            boolean first = (i == 0);
+            long next = (i + 1 < nIfd) ? (hdr.position() + ifdBytes(first)) : (0);
+            hdr.putShort((short) ((first) ? (14) : (13)));
+            entry(hdr, 254, 4, 1, 0);                       // NewSubfileType
+            entry(hdr, 256, 4, 1, w);                       // ImageWidth
+            entry(hdr, 257, 4, 1, h);                       // ImageLength
+            entryShort(hdr, 258, 32);                       // BitsPerSample
+            entryShort(hdr, 262, 1);                        // Photometric: BlackIsZero
+            if (first)
+                entry(hdr, 270, 2, desc.length, descOffset);  // ImageDescription
+            entry(hdr, 273, 4, 1, dataOffset + i * sliceBytes); // StripOffsets
+            entryShort(hdr, 277, 1);                        // SamplesPerPixel
+            entry(hdr, 278, 4, 1, h);                       // RowsPerStrip
+            entry(hdr, 279, 4, 1, sliceBytes);              // StripByteCounts
+            entry(hdr, 282, 5, 1, resOffset);               // XResolution
+            entry(hdr, 283, 5, 1, resOffset);               // YResolution
+            entryShort(hdr, 296, 1);                        // ResolutionUnit: none
+            entryShort(hdr, 339, 3);                        // SampleFormat: float
+            hdr.putInt((int) next);
+        }
+        hdr.put(desc);
+        long scale = Math.max(1, Math.min(0xffffffffL, Math.round(1e6 / micronsPerPxl)));
+        hdr.putInt((int) scale).putInt(1000000);
+        hdr.flip();
+
+        file = new RandomAccessFile(fname, "rw");
+        file.setLength(dataOffset + n * sliceBytes);
+        channel = file.getChannel();
+        while (hdr.hasRemaining())
+            channel.write(hdr, hdr.position());
+        buffer = ByteBuffer.allocate((int) sliceBytes).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static int ifdBytes(boolean first) {
+        return 2 + ((first) ? (14) : (13)) * ENTRY + 4;
+    }
+
+    private static void entry(ByteBuffer b, int tag, int type, int count, long value) {
+        b.putShort((short) tag).putShort((short) type).putInt(count).putInt((int) value);
+    }
+
+    // SHORT values are left-aligned in the value field
+    private static void entryShort(ByteBuffer b, int tag, int value) {
+        b.putShort((short) tag).putShort((short) 3).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+    private static byte[] description(int n, int nZ, int nT) {
+        StringBuilder s = new StringBuilder("ImageJ=1.53t\nimages=" + n + "\n");
+        if (nZ > 1)
+            s.append("slices=").append(nZ).append("\n");
+        if (nT > 1)
+            s.append("frames=").append(nT).append("\n");
+        if (nZ > 1 && nT > 1)
+            s.append("hyperstack=true\n");
+        s.append("unit=micron\nloop=false\n\0");
+        return s.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write one slice. Can be called in any order, calls are serialized.
+     *
+     * @param t   Time point, 0 .. nT-1
+     * @param z   z-slice, 0 .. nZ-1
+     * @param img The image, w x h
+     */
+    public synchronized void write(int t, int z, Vec2d.Real img) throws IOException {
+        if (t < 0 || t >= nT || z < 0 || z >= nZ)
+            throw new IllegalArgumentException("Slice position out of range");
+        if (img.vectorWidth() != w || img.vectorHeight() != h)
+            throw new IllegalArgumentException("Slice size does not match the stack");
+        buffer.clear();
+        buffer.asFloatBuffer().put(img.vectorData());
+        long pos = dataOffset + (t * (long) nZ + z) * sliceBytes;
+        while (buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+    }
+
+    /**
+     * Close the file. Slices not written are zero.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Read slice 'n' of an uncompressed, single-strip 32-bit float TIFF
+     * (as written by this class). Slices past the last IFD are located
+     * as ImageJ does, contiguous after the first one.
+     *
+     * @return The pixels, row by row
+     */
+    public static float[] readSlice(String fname, int n) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(fname, "r");
+        try {
+            byte[] hb = new byte[8];
+            f.readFully(hb);
+            ByteOrder bo = (hb[0] == 'I') ? (ByteOrder.LITTLE_ENDIAN) : (ByteOrder.BIG_ENDIAN);
+            long ifd = ByteBuffer.wrap(hb).order(bo).getInt(4) & 0xffffffffL;
+
+            long[] first = null, cur = null;
+            for (int i = 0; i <= n && ifd != 0; i++) {
+                f.seek(ifd);
+                byte[] cb = new byte[2];
+                f.readFully(cb);
+                int cnt = ByteBuffer.wrap(cb).order(bo).getShort() & 0xffff;
+                byte[] eb = new byte[cnt * ENTRY + 4];
+                f.readFully(eb);
+                ByteBuffer e = ByteBuffer.wrap(eb).order(bo);
+                cur = new long[]{-1, 0, 0, 0, -1};    // offset, width, height, bits, slice index
+                for (int k = 0; k < cnt; k++) {
+                    int tag = e.getShort(k * ENTRY) & 0xffff;
+                    int type = e.getShort(k * ENTRY + 2) & 0xffff;
+                    long val = (type == 3) ? (e.getShort(k * ENTRY + 8) & 0xffff)
+                            : (e.getInt(k * ENTRY + 8) & 0xffffffffL);
+                    if (tag == 256) cur[1] = val;
+                    if (tag == 257) cur[2] = val;
+                    if (tag == 258) cur[3] = val;
+                    if (tag == 273) cur[0] = val;
+                }
+                cur[4] = i;
+                if (first == null)
+                    first = cur;
+                ifd = e.getInt(cnt * ENTRY) & 0xffffffffL;
+            }
+            if (first == null || first[3] != 32)
+                throw new IOException("Not a 32-bit TIFF: " + fname);
+
+            final int px = (int) (first[1] * first[2]);
+            long pos = (cur[4] == n) ? (cur[0]) : (first[0] + n * 4L * px);
+            byte[] pb = new byte[4 * px];
+            f.seek(pos);
+            f.readFully(pb);
+            float[] ret = new float[px];
+            ByteBuffer.wrap(pb).order(bo).asFloatBuffer().get(ret);
+            return ret;
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * For testing: writes a stack in random slice order, reads it back
+     */
+    public static void main(String[] args) throws IOException {
+
+        final int size = (args.length > 0) ? (Integer.parseInt(args[0])) : (256);
+        final int nZ = 3, nT = 4;
+        java.io.File tmp = java.io.File.createTempFile("fairsim-tiff", ".tif");
+        tmp.deleteOnExit();
+
+        Vec2d.Real[] slices = new Vec2d.Real[nZ * nT];
+        java.util.Random rnd = new java.util.Random(42);
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = Vec2d.createReal(size, size);
+            float[] d = slices[i].vectorData();
+            for (int j = 0; j < d.length; j++)
+                d[j] = (float) rnd.nextGaussian();
+            slices[i].syncBuffer();
+        }
+
+        java.util.List<Integer> order = new java.util.ArrayList<Integer>();
+        for (int i = 0; i < slices.length; i++)
+            order.add(i);
+        java.util.Collections.shuffle(order, rnd);
+
+        TiffStackWriter tw = new TiffStackWriter(tmp.getPath(), size, size, nZ, nT, 0.04);
+        for (int i : order)
+            tw.write(i / nZ, i % nZ, slices[i]);
+        tw.close();
+
+        boolean same = true;
+        for (int i = 0; i < slices.length; i++)
+            same &= java.util.Arrays.equals(readSlice(tmp.getPath(), i), slices[i].vectorData());
+
+        Tool.trace(String.format("%d slices %dx%d written out of order, %d bytes, read back identical: %b -> %s",
+                slices.length, size, size, tmp.length(), same, (same) ? ("OK") : ("FAIL")));
+    }
+
+}